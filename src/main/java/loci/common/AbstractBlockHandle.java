@@ -0,0 +1,614 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only IRandomAccess over a source that is fetched in fixed-size
+ * blocks, such as a remote file.  Fetched blocks are kept in a least
+ * recently used cache, so that seeking is free and only the blocks that
+ * are actually read are fetched.
+ *
+ * Subclasses implement {@link #fetch(long, byte[], int)} and
+ * {@link #length()}.  Positional reads are safe for concurrent use.
+ *
+ * @see IRandomAccess
+ */
+public abstract class AbstractBlockHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  /** Default number of bytes in each block. */
+  public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  /** Default maximum number of cached blocks. */
+  public static final int DEFAULT_CACHE_BLOCKS = 64;
+
+  /** Error message to be used when instantiating an EOFException. */
+  protected static final String EOF_ERROR_MSG =
+    "Attempting to read beyond end of file.";
+
+  // -- Fields --
+
+  private final int blockSize;
+
+  private final int cacheBlocks;
+
+  /** Cached blocks, keyed by block index, in order of last access. */
+  private final Map<Long, byte[]> cache;
+
+  private long fp;
+
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  private final byte[] scratch = new byte[8];
+
+  private long hits;
+
+  private long misses;
+
+  // -- Constructor --
+
+  /**
+   * @param blockSize the number of bytes in each block
+   * @param cacheBlocks the maximum number of blocks to cache
+   */
+  protected AbstractBlockHandle(int blockSize, final int cacheBlocks) {
+    if (blockSize <= 0 || cacheBlocks <= 0) {
+      throw new IllegalArgumentException("Invalid block size " + blockSize +
+        " or cache size " + cacheBlocks);
+    }
+    this.blockSize = blockSize;
+    this.cacheBlocks = cacheBlocks;
+    this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+        if (size() > AbstractBlockHandle.this.cacheBlocks) {
+          blockEvicted(eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  // -- AbstractBlockHandle API methods --
+
+  /** @return the number of bytes in each block */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** @return the maximum number of cached blocks */
+  public int getCacheSize() {
+    return cacheBlocks;
+  }
+
+  /** @return the number of block reads that were satisfied by the cache */
+  public synchronized long getCacheHitCount() {
+    return hits;
+  }
+
+  /** @return the number of blocks that were fetched */
+  public synchronized long getCacheMissCount() {
+    return misses;
+  }
+
+  /**
+   * Reads bytes from the underlying source.
+   *
+   * @param offset the offset of the first byte to read
+   * @param b the array to fill
+   * @param len the number of bytes to read; the range never extends beyond
+   *        {@link #length()}
+   * @throws IOException if the bytes cannot be read
+   */
+  protected abstract void fetch(long offset, byte[] b, int len)
+    throws IOException;
+
+  /**
+   * Returns the given block, from the cache if possible and otherwise by
+   * fetching it.
+   *
+   * @param index the index of the block
+   * @return the contents of the block, which is shorter than the block size
+   *         only if it is the last block
+   * @throws IOException if the block cannot be fetched
+   */
+  protected byte[] getBlock(long index) throws IOException {
+    synchronized (this) {
+      byte[] block = cache.get(index);
+      if (block != null) {
+        hits++;
+        return block;
+      }
+      misses++;
+    }
+    byte[] block = load(index);
+    putBlock(index, block);
+    return block;
+  }
+
+  /**
+   * Fetches a block that is not in the cache.
+   *
+   * @param index the index of the block
+   * @return the contents of the block
+   * @throws IOException if the block cannot be fetched
+   */
+  protected byte[] load(long index) throws IOException {
+    long offset = index * blockSize;
+    byte[] block = new byte[(int) Math.min(blockSize, length() - offset)];
+    fetch(offset, block, block.length);
+    return block;
+  }
+
+  /**
+   * Called with this handle's lock held when a block is removed from the
+   * cache to make room for another.  The default implementation does
+   * nothing.
+   *
+   * @param index the index of the evicted block
+   */
+  protected void blockEvicted(long index) {
+  }
+
+  /**
+   * Adds a block to the cache, e.g. one that was fetched along with
+   * other information.
+   *
+   * @param index the index of the block
+   * @param block the contents of the block
+   */
+  protected synchronized void putBlock(long index, byte[] block) {
+    cache.put(index, block);
+  }
+
+  /**
+   * @param index the index of a block
+   * @return true if the block is cached
+   */
+  protected synchronized boolean isCached(long index) {
+    return cache.containsKey(index);
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  @Override
+  public synchronized void close() throws IOException {
+    cache.clear();
+  }
+
+  /* @see IRandomAccess.getFilePointer() */
+  @Override
+  public long getFilePointer() {
+    return fp;
+  }
+
+  /* @see IRandomAccess.getOrder() */
+  @Override
+  public ByteOrder getOrder() {
+    return order;
+  }
+
+  /* @see IRandomAccess.setOrder(ByteOrder) */
+  @Override
+  public void setOrder(ByteOrder order) {
+    this.order = order;
+  }
+
+  /* @see IRandomAccess.read(byte[]) */
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  /* @see IRandomAccess.read(byte[], int, int) */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = read(fp, b, off, len);
+    if (n <= 0) {
+      return 0;
+    }
+    fp += n;
+    return n;
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer) */
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return read(buffer, 0, buffer.capacity());
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer, int, int) */
+  @Override
+  public int read(ByteBuffer buffer, int off, int len) throws IOException {
+    ByteBuffer dst = buffer.duplicate();
+    dst.limit(off + len);
+    dst.position(off);
+    int n = read(fp, dst);
+    if (n <= 0) {
+      return 0;
+    }
+    fp += n;
+    return n;
+  }
+
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    long length = length();
+    if (pos >= length) {
+      return -1;
+    }
+    int n = (int) Math.min(len, length - pos);
+    int copied = 0;
+    while (copied < n) {
+      long p = pos + copied;
+      byte[] block = getBlock(p / blockSize);
+      int blockOffset = (int) (p % blockSize);
+      int count = Math.min(n - copied, block.length - blockOffset);
+      System.arraycopy(block, blockOffset, b, off + copied, count);
+      copied += count;
+    }
+    return n;
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    long length = length();
+    if (pos >= length) {
+      return -1;
+    }
+    int n = (int) Math.min(dst.remaining(), length - pos);
+    int copied = 0;
+    while (copied < n) {
+      long p = pos + copied;
+      byte[] block = getBlock(p / blockSize);
+      int blockOffset = (int) (p % blockSize);
+      int count = Math.min(n - copied, block.length - blockOffset);
+      dst.put(block, blockOffset, count);
+      copied += count;
+    }
+    return n;
+  }
+
+  /**
+   * Each block is fetched at most once, so no coalescing is needed.
+   *
+   * @see IRandomAccess#readBatch(List)
+   */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    long length = length();
+    for (ReadRequest r : requests) {
+      if (r.getEnd() > length) {
+        throw new EOFException(EOF_ERROR_MSG);
+      }
+    }
+    for (ReadRequest r : requests) {
+      read(r.getOffset(), r.getBuffer(), r.getBufferOffset(), r.getLength());
+    }
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0) {
+      throw new IOException("Negative seek offset: " + pos);
+    }
+    fp = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput.readBoolean() */
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  /* @see java.io.DataInput.readByte() */
+  @Override
+  public byte readByte() throws IOException {
+    if (fp >= length()) {
+      throw new EOFException(EOF_ERROR_MSG);
+    }
+    byte[] block = getBlock(fp / blockSize);
+    return block[(int) (fp++ % blockSize)];
+  }
+
+  /* @see java.io.DataInput.readChar() */
+  @Override
+  public char readChar() throws IOException {
+    return fill(2).getChar();
+  }
+
+  /* @see java.io.DataInput.readDouble() */
+  @Override
+  public double readDouble() throws IOException {
+    return fill(8).getDouble();
+  }
+
+  /* @see java.io.DataInput.readFloat() */
+  @Override
+  public float readFloat() throws IOException {
+    return fill(4).getFloat();
+  }
+
+  /* @see java.io.DataInput.readFully(byte[]) */
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  /* @see java.io.DataInput.readFully(byte[], int, int) */
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (fp + len > length()) {
+      throw new EOFException(EOF_ERROR_MSG);
+    }
+    read(b, off, len);
+  }
+
+  /* @see java.io.DataInput.readInt() */
+  @Override
+  public int readInt() throws IOException {
+    return fill(4).getInt();
+  }
+
+  /* @see java.io.DataInput.readLine() */
+  @Override
+  public String readLine() throws IOException {
+    long length = length();
+    if (fp >= length) {
+      return null;
+    }
+    StringBuilder line = new StringBuilder();
+    while (fp < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') {
+        break;
+      }
+      if (c == '\r') {
+        if (fp < length && readUnsignedByte() != '\n') {
+          fp--;
+        }
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /* @see java.io.DataInput.readLong() */
+  @Override
+  public long readLong() throws IOException {
+    return fill(8).getLong();
+  }
+
+  /* @see java.io.DataInput.readShort() */
+  @Override
+  public short readShort() throws IOException {
+    return fill(2).getShort();
+  }
+
+  /* @see java.io.DataInput.readUnsignedByte() */
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  /* @see java.io.DataInput.readUnsignedShort() */
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  /* @see java.io.DataInput.readUTF() */
+  @Override
+  public String readUTF() throws IOException {
+    int len = readUnsignedShort();
+    byte[] b = new byte[len];
+    readFully(b);
+    return new String(b, Constants.ENCODING);
+  }
+
+  /* @see java.io.DataInput.skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, length() - fp));
+    fp += skipped;
+    return skipped;
+  }
+
+  // -- DataOutput API methods --
+
+  /* @see java.io.DataOutput.write(byte[]) */
+  @Override
+  public void write(byte[] b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.write(byte[], int, int) */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer) */
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer, int, int) */
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.write(int) */
+  @Override
+  public void write(int b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeBoolean(boolean) */
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeByte(int) */
+  @Override
+  public void writeByte(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeBytes(String) */
+  @Override
+  public void writeBytes(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeChar(int) */
+  @Override
+  public void writeChar(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeChars(String) */
+  @Override
+  public void writeChars(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeDouble(double) */
+  @Override
+  public void writeDouble(double v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeFloat(float) */
+  @Override
+  public void writeFloat(float v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeInt(int) */
+  @Override
+  public void writeInt(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeLong(long) */
+  @Override
+  public void writeLong(long v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeShort(int) */
+  @Override
+  public void writeShort(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeUTF(String) */
+  @Override
+  public void writeUTF(String str) throws IOException {
+    throw readOnly();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads the next <code>n</code> bytes into a buffer in the current byte
+   * order.
+   */
+  private ByteBuffer fill(int n) throws IOException {
+    readFully(scratch, 0, n);
+    ByteBuffer b = ByteBuffer.wrap(scratch, 0, n);
+    b.order(order);
+    return b;
+  }
+
+  private static HandleException readOnly() {
+    return new HandleException("This stream is read-only.");
+  }
+
+}
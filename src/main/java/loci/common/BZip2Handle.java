@@ -34,9 +34,16 @@ package loci.common;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * StreamHandle implementation for reading from BZip2-compressed files
  * or byte arrays.  Instances of BZip2Handle are read-only.
@@ -47,6 +54,36 @@ import java.io.IOException;
  */
 public class BZip2Handle extends StreamHandle {
 
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(BZip2Handle.class);
+
+  // -- Static fields --
+
+  private static volatile int parallelism = 1;
+
+  /** Indexes of recently opened files, keyed by absolute path. */
+  private static final Cache<String, BZip2Index> INDEXES =
+    CacheBuilder.newBuilder().maximumSize(64).softValues().build();
+
+  static {
+    String threads = System.getProperty("bzip2Parallelism");
+    if (threads != null) {
+      try {
+        parallelism = Math.max(1, Integer.parseInt(threads));
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid bzip2 parallelism: {}", threads);
+      }
+    }
+  }
+
+  // -- Fields --
+
+  /** Positions of the compressed blocks within the file. */
+  private BZip2Index index;
+
   // -- Constructor --
 
   /**
@@ -56,22 +93,23 @@ public class BZip2Handle extends StreamHandle {
    * @throws HandleException if the given file is not a BZip2 file.
    */
   public BZip2Handle(String file) throws IOException {
+    this(file, true);
+  }
+
+  /**
+   * Construct a new BZip2Handle, optionally skipping the check of the file's
+   * name and magic bytes, e.g. because {@link HandleDetector} has already
+   * made it.
+   */
+  BZip2Handle(String file, boolean check) throws IOException {
     super();
     this.file = file;
-    if (!isBZip2File(file)) {
+    if (check && !isBZip2File(file)) {
       throw new HandleException(file + " is not a BZip2 file.");
     }
 
-    resetStream();
-
-    length = 0;
-    while (true) {
-      int skip = stream.skipBytes(1024);
-      if (skip <= 0) {
-        break;
-      }
-      length += skip;
-    }
+    index = getIndex(new File(file));
+    length = index.getLength();
 
     resetStream();
   }
@@ -98,11 +136,67 @@ public class BZip2Handle extends StreamHandle {
     return new String(b, Constants.ENCODING).equals("BZ");
   }
 
+  /**
+   * Sets the number of blocks that may be decompressed concurrently.
+   * If greater than 1, blocks ahead of the current position are located by
+   * scanning the compressed data and decompressed on a shared
+   * {@link java.util.concurrent.ForkJoinPool}.  The default is 1, i.e.
+   * decompression on the calling thread only, and can also be set with
+   * the <code>bzip2Parallelism</code> system property.
+   *
+   * @param threads the number of blocks to decompress ahead; must be positive
+   */
+  public static void setParallelism(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid parallelism: " + threads);
+    }
+    parallelism = threads;
+  }
+
+  /** @return the number of blocks that may be decompressed concurrently */
+  public static int getParallelism() {
+    return parallelism;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /**
+   * If <code>pos</code> is behind the current position, or in a later
+   * block, decompression resumes from the start of the block containing
+   * <code>pos</code>.
+   *
+   * @see IRandomAccess#seek(long)
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    int block = index.find(pos);
+    long start = block < 0 ? 0 : index.getOutputOffset(block);
+    if (pos < fp || start > fp) {
+      if (block <= 0) {
+        resetStream();
+      }
+      else {
+        if (stream != null) stream.close();
+        stream = new DataInputStream(
+          index.open(new File(file), block, parallelism));
+      }
+      fp = start;
+    }
+    super.seek(pos);
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    if (stream != null) stream.close();
+    if (parallelism > 1) {
+      stream = new DataInputStream(new ParallelBZip2InputStream(
+        new File(file), ParallelBZip2InputStream.FIRST_BLOCK, 0,
+        index.getBlockSize100k(), parallelism, null));
+      return;
+    }
     BufferedInputStream bis = new BufferedInputStream(
       new FileInputStream(file), RandomAccessInputStream.MAX_OVERHEAD);
     int skipped = 0;
@@ -112,5 +206,20 @@ public class BZip2Handle extends StreamHandle {
     stream = new DataInputStream(new CBZip2InputStream(bis));
   }
 
+  // -- Helper methods --
+
+  /**
+   * Returns an index of the given file, from the cache if it is up to date,
+   * and otherwise by decompressing the whole file.
+   */
+  private static BZip2Index getIndex(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    BZip2Index index = INDEXES.getIfPresent(key);
+    if (index == null || !index.matches(file)) {
+      index = BZip2Index.build(file, parallelism);
+      INDEXES.put(key, index);
+    }
+    return index;
+  }
 
 }
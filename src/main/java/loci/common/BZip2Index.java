@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A random access index for a BZip2 file.  BZip2 compresses each block of
+ * up to 900 KB independently, so recording the bit offset and decompressed
+ * offset of every block is enough to resume decompression at the block
+ * containing any position.
+ *
+ * @see BZip2Handle
+ */
+class BZip2Index {
+
+  // -- Constants --
+
+  /** Length of the "BZ" magic that CBZip2InputStream expects to be skipped. */
+  private static final int MAGIC_LENGTH = 2;
+
+  // -- Fields --
+
+  private final long fileLength;
+  private final long lastModified;
+  private final int blockSize100k;
+  private final long length;
+  private final long[] outputOffsets;
+  private final long[] bitOffsets;
+
+  // -- Constructor --
+
+  private BZip2Index(long fileLength, long lastModified, int blockSize100k,
+    long length, long[] outputOffsets, long[] bitOffsets)
+  {
+    this.fileLength = fileLength;
+    this.lastModified = lastModified;
+    this.blockSize100k = blockSize100k;
+    this.length = length;
+    this.outputOffsets = outputOffsets;
+    this.bitOffsets = bitOffsets;
+  }
+
+  // -- BZip2Index API methods --
+
+  /**
+   * Decompresses the whole of the given file, recording the position of
+   * each block.
+   *
+   * @param file the BZip2 file to index
+   * @param parallelism the number of blocks to decompress concurrently
+   * @return the index
+   * @throws IOException if the file cannot be read or is not valid BZip2
+   */
+  static BZip2Index build(File file, int parallelism) throws IOException {
+    long fileLength = file.length();
+    long lastModified = file.lastModified();
+    final List<long[]> blocks = new ArrayList<long[]>();
+
+    InputStream in = openAt(file, MAGIC_LENGTH);
+    long length = 0;
+    int blockSize100k;
+    try {
+      in.mark(2);
+      in.read();
+      blockSize100k = in.read() - '0';
+      in.reset();
+      InputStream bz;
+      if (parallelism > 1) {
+        bz = new ParallelBZip2InputStream(file,
+          ParallelBZip2InputStream.FIRST_BLOCK, 0, blockSize100k, parallelism,
+          new CBZip2InputStream.BlockListener() {
+            @Override
+            public void blockStart(long bitOffset, long outputOffset) {
+              blocks.add(new long[] {outputOffset, bitOffset});
+            }
+          });
+      }
+      else {
+        bz = new CBZip2InputStream(in,
+          new CBZip2InputStream.BlockListener() {
+            @Override
+            public void blockStart(long bitOffset, long outputOffset) {
+              blocks.add(new long[] {
+                outputOffset, bitOffset + MAGIC_LENGTH * 8});
+            }
+          });
+      }
+      byte[] buf = new byte[65536];
+      while (true) {
+        int n = bz.read(buf, 0, buf.length);
+        if (n < 0) break;
+        length += n;
+      }
+      bz.close();
+    }
+    finally {
+      in.close();
+    }
+
+    // the last position recorded is that of the end-of-stream marker
+    int count = blocks.size();
+    while (count > 0 && blocks.get(count - 1)[0] >= length) {
+      count--;
+    }
+    long[] outputOffsets = new long[count];
+    long[] bitOffsets = new long[count];
+    for (int i=0; i<count; i++) {
+      outputOffsets[i] = blocks.get(i)[0];
+      bitOffsets[i] = blocks.get(i)[1];
+    }
+    return new BZip2Index(fileLength, lastModified, blockSize100k, length,
+      outputOffsets, bitOffsets);
+  }
+
+  /**
+   * @param file the BZip2 file
+   * @return true if the file has not changed since this index was built
+   */
+  boolean matches(File file) {
+    return file.length() == fileLength && file.lastModified() == lastModified;
+  }
+
+  /** @return the total decompressed length of the file */
+  long getLength() {
+    return length;
+  }
+
+  /** @return the number of blocks */
+  int getBlockCount() {
+    return outputOffsets.length;
+  }
+
+  /** @return the decompressed offset of the given block */
+  long getOutputOffset(int block) {
+    return outputOffsets[block];
+  }
+
+  /** @return the offset in bits within the file of the given block */
+  long getBitOffset(int block) {
+    return bitOffsets[block];
+  }
+
+  /** @return the block size from the stream header, 1 to 9 */
+  int getBlockSize100k() {
+    return blockSize100k;
+  }
+
+  /**
+   * @param pos an offset in the decompressed data
+   * @return the block containing <code>pos</code>, or -1 if there is none
+   */
+  int find(long pos) {
+    int i = Arrays.binarySearch(outputOffsets, pos);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * Opens a stream that decompresses the given file from the start of a
+   * block.
+   *
+   * @param file the BZip2 file
+   * @param block the block from which to start
+   * @param parallelism the number of blocks to decompress concurrently
+   * @return a stream positioned at {@link #getOutputOffset(int)}
+   * @throws IOException if the file cannot be read
+   */
+  InputStream open(File file, int block, int parallelism) throws IOException {
+    long bitOffset = bitOffsets[block];
+    if (parallelism > 1) {
+      return new ParallelBZip2InputStream(file, bitOffset,
+        outputOffsets[block], blockSize100k, parallelism, null);
+    }
+    InputStream in = openAt(file, bitOffset >>> 3);
+    try {
+      return new CBZip2InputStream(in, blockSize100k, (int) (bitOffset & 7));
+    }
+    catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  // -- Helper methods --
+
+  private static InputStream openAt(File file, long offset) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(offset);
+    }
+    catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return new BufferedInputStream(in, RandomAccessInputStream.MAX_OVERHEAD);
+  }
+
+}
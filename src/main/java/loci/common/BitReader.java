@@ -0,0 +1,312 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads bits, most significant bit first, from a
+ * {@link RandomAccessInputStream}.
+ *
+ * Unlike {@link RandomAccessInputStream#readBits(int)}, which reads the
+ * stream one byte at a time, the stream is read in large blocks and bits
+ * are taken from a 64-bit accumulator, so that each call to
+ * {@link #readBits(int)} usually costs a few shifts.  This makes it
+ * suitable for decoders that read many small codes, such as LZW, or
+ * pixels packed into 12 bits.
+ *
+ * Reading starts at the stream's current bit position.  While a BitReader
+ * is in use, the stream must not be read or moved by other means;
+ * {@link #close()} moves the stream to the next unread bit, so that
+ * reading can continue with the stream's own methods.
+ */
+public class BitReader implements Closeable {
+
+  // -- Constants --
+
+  /** Maximum number of bits that can be read or peeked at once. */
+  public static final int MAX_BITS = 57;
+
+  /** Default number of bytes read from the stream at once. */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  // -- Fields --
+
+  private final RandomAccessInputStream in;
+
+  private final byte[] buffer;
+
+  /** Position in the stream of the first byte in the buffer. */
+  private long bufferStart;
+
+  /** Index of the next byte to move from the buffer to the accumulator. */
+  private int pos;
+
+  /** Number of valid bytes in the buffer. */
+  private int limit;
+
+  private boolean eof;
+
+  /** Unread bits, aligned with the most significant bit. */
+  private long bits;
+
+  /** Number of unread bits in the accumulator. */
+  private int bitCount;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a bit reader starting at the stream's current bit.
+   *
+   * @param in the stream from which to read
+   * @throws IOException if the stream's position cannot be determined
+   */
+  public BitReader(RandomAccessInputStream in) throws IOException {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs a bit reader starting at the stream's current bit.
+   *
+   * @param in the stream from which to read
+   * @param bufferSize the number of bytes to read from the stream at once
+   * @throws IOException if the stream's position cannot be determined
+   */
+  public BitReader(RandomAccessInputStream in, int bufferSize)
+    throws IOException
+  {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size: " +
+        bufferSize);
+    }
+    this.in = in;
+    buffer = new byte[bufferSize];
+    bufferStart = in.getFilePointer();
+    skipBits(in.getCurrentBit());
+  }
+
+  // -- BitReader API methods --
+
+  /**
+   * Reads an unsigned value.
+   *
+   * @param n the number of bits to read, from 0 to {@link #MAX_BITS}
+   * @return the value of the next n bits
+   * @throws EOFException if fewer than n bits remain
+   * @throws IOException if the stream cannot be read
+   */
+  public long readBits(int n) throws IOException {
+    checkBits(n, MAX_BITS);
+    if (n == 0) {
+      return 0;
+    }
+    if (bitCount < n) {
+      fill();
+      if (bitCount < n) {
+        throw new EOFException();
+      }
+    }
+    long value = bits >>> (64 - n);
+    bits <<= n;
+    bitCount -= n;
+    return value;
+  }
+
+  /**
+   * Returns the value of the next bits without consuming them.  Bits past
+   * the end of the stream are read as 0.
+   *
+   * @param n the number of bits to peek at, from 0 to {@link #MAX_BITS}
+   * @return the value of the next n bits
+   * @throws IOException if the stream cannot be read
+   */
+  public long peekBits(int n) throws IOException {
+    checkBits(n, MAX_BITS);
+    if (n == 0) {
+      return 0;
+    }
+    if (bitCount < n) {
+      fill();
+    }
+    return bits >>> (64 - n);
+  }
+
+  /**
+   * Reads consecutive unsigned values of the same width.
+   *
+   * @param values the array into which values are read
+   * @param off the index of the first value to read
+   * @param len the number of values to read
+   * @param n the number of bits in each value, from 0 to 32
+   * @throws EOFException if fewer than <code>len * n</code> bits remain
+   * @throws IOException if the stream cannot be read
+   */
+  public void readBits(int[] values, int off, int len, int n)
+    throws IOException
+  {
+    checkBits(n, 32);
+    if (n == 0) {
+      for (int i=off; i<off+len; i++) {
+        values[i] = 0;
+      }
+      return;
+    }
+    int shift = 64 - n;
+    for (int i=off; i<off+len; i++) {
+      if (bitCount < n) {
+        fill();
+        if (bitCount < n) {
+          throw new EOFException();
+        }
+      }
+      values[i] = (int) (bits >>> shift);
+      bits <<= n;
+      bitCount -= n;
+    }
+  }
+
+  /**
+   * Skips bits.
+   *
+   * @param n the number of bits to skip
+   * @throws EOFException if fewer than n bits remain
+   * @throws IOException if the stream cannot be read
+   */
+  public void skipBits(long n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("Bits to skip cannot be negative");
+    }
+    if (n <= bitCount) {
+      consume((int) n);
+      return;
+    }
+    n -= bitCount;
+    bits = 0;
+    bitCount = 0;
+    long bytes = n / 8;
+    if (bytes <= limit - pos) {
+      pos += bytes;
+    }
+    else {
+      long target = bufferStart + pos + bytes;
+      if (target > in.length()) {
+        throw new EOFException();
+      }
+      in.seek(target);
+      bufferStart = target;
+      pos = 0;
+      limit = 0;
+      eof = false;
+    }
+    readBits((int) (n % 8));
+  }
+
+  /**
+   * Skips to the next byte boundary, unless the next bit is already the
+   * first bit of a byte.
+   */
+  public void alignToByte() {
+    consume(bitCount % 8);
+  }
+
+  /** @return true if the next bit is the first bit of a byte */
+  public boolean isBitOnByteBoundary() {
+    return bitCount % 8 == 0;
+  }
+
+  /** @return the position of the next bit in the stream, in bits */
+  public long getBitPosition() {
+    return (bufferStart + pos) * 8 - bitCount;
+  }
+
+  /**
+   * Moves the stream to the next unread bit.  The stream itself is not
+   * closed.
+   *
+   * @throws IOException if the stream cannot be moved
+   */
+  @Override
+  public void close() throws IOException {
+    long position = getBitPosition();
+    in.seek(position / 8);
+    in.setCurrentBit((int) (position % 8));
+  }
+
+  // -- Helper methods --
+
+  private void checkBits(int n, int max) {
+    if (n < 0 || n > max) {
+      throw new IllegalArgumentException("Bits to read must be between 0 " +
+        "and " + max + ": " + n);
+    }
+  }
+
+  private void consume(int n) {
+    bits = n == 64 ? 0 : bits << n;
+    bitCount -= n;
+  }
+
+  /**
+   * Moves whole bytes into the accumulator until it holds more than
+   * {@link #MAX_BITS} - 1 bits, or the stream is exhausted.
+   */
+  private void fill() throws IOException {
+    while (bitCount < MAX_BITS) {
+      if (pos == limit && !refill()) {
+        return;
+      }
+      bits |= (buffer[pos++] & 0xffL) << (56 - bitCount);
+      bitCount += 8;
+    }
+  }
+
+  /** Reads the next block of the stream into the buffer. */
+  private boolean refill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    bufferStart += limit;
+    pos = 0;
+    limit = 0;
+    int r = in.read(buffer, 0, buffer.length);
+    if (r <= 0) {
+      eof = true;
+      return false;
+    }
+    limit = r;
+    return true;
+  }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes bits, most significant bit first, to a
+ * {@link RandomAccessOutputStream}.
+ *
+ * Unlike {@link RandomAccessOutputStream#writeBits(int, int)}, which
+ * handles one bit at a time and writes each byte separately, bits are
+ * packed into a 64-bit accumulator and written to the stream in large
+ * blocks.  This makes it suitable for encoders that write many small codes,
+ * or pixels packed into 12 or 14 bits.
+ *
+ * Writing continues any bits that were written to the stream with
+ * {@link RandomAccessOutputStream#writeBits(int, int)} but do not yet fill
+ * a byte.  While a BitWriter is in use, the stream must not be written to
+ * by other means; {@link #close()} pads the last byte with zeros and
+ * writes all pending bytes to the stream.
+ *
+ * @see BitReader
+ */
+public class BitWriter implements Closeable {
+
+  // -- Constants --
+
+  /** Maximum number of bits that can be written at once. */
+  public static final int MAX_BITS = 57;
+
+  /** Default number of bytes written to the stream at once. */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  // -- Fields --
+
+  private final RandomAccessOutputStream out;
+
+  private final byte[] buffer;
+
+  /** Number of bytes in the buffer. */
+  private int count;
+
+  /** Number of bytes written to the stream so far. */
+  private long written;
+
+  /** Pending bits, aligned with the most significant bit. */
+  private long bits;
+
+  /** Number of pending bits in the accumulator. */
+  private int bitCount;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a bit writer that continues the stream's bits.
+   *
+   * @param out the stream to which bits are written
+   */
+  public BitWriter(RandomAccessOutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs a bit writer that continues the stream's bits.
+   *
+   * @param out the stream to which bits are written
+   * @param bufferSize the number of bytes to write to the stream at once
+   */
+  public BitWriter(RandomAccessOutputStream out, int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size: " +
+        bufferSize);
+    }
+    this.out = out;
+    buffer = new byte[bufferSize];
+    int partial = out.takePartialByte();
+    bitCount = partial >> 8;
+    bits = (long) (partial & 0xff) << 56;
+  }
+
+  // -- BitWriter API methods --
+
+  /**
+   * Writes the low bits of a value.
+   *
+   * @param value the value to write; higher bits are ignored
+   * @param n the number of bits to write, from 0 to {@link #MAX_BITS}
+   * @throws IOException if the stream cannot be written
+   */
+  public void writeBits(long value, int n) throws IOException {
+    checkBits(n, MAX_BITS);
+    if (n == 0) {
+      return;
+    }
+    if (bitCount + n > 64) {
+      drain();
+    }
+    bits |= (value << (64 - n)) >>> bitCount;
+    bitCount += n;
+  }
+
+  /**
+   * Writes consecutive values using the same number of bits for each.
+   *
+   * @param values the values to write; higher bits are ignored
+   * @param off the index of the first value to write
+   * @param len the number of values to write
+   * @param n the number of bits to write for each value, from 0 to 32
+   * @throws IOException if the stream cannot be written
+   */
+  public void writeBits(int[] values, int off, int len, int n)
+    throws IOException
+  {
+    checkBits(n, 32);
+    if (n == 0) {
+      return;
+    }
+    int shift = 64 - n;
+    for (int i=off; i<off+len; i++) {
+      if (bitCount + n > 64) {
+        drain();
+      }
+      bits |= ((long) values[i] << shift) >>> bitCount;
+      bitCount += n;
+    }
+  }
+
+  /**
+   * Writes the bits represented by a bit string.
+   *
+   * @param bitString a string of '0' and/or '1' characters
+   * @throws IllegalArgumentException If any characters other than
+   *   '0' and '1' appear in the string.
+   * @throws IOException if the stream cannot be written
+   * @see RandomAccessOutputStream#writeBits(String)
+   */
+  public void writeBits(String bitString) throws IOException {
+    if (bitString == null) {
+      throw new IllegalArgumentException("Bit string cannot be null");
+    }
+    for (int i=0; i<bitString.length(); i++) {
+      char c = bitString.charAt(i);
+      if (c != '0' && c != '1') {
+        throw new IllegalArgumentException(
+          "Found illegal character '" + c + "'; write terminated");
+      }
+      writeBits(c - '0', 1);
+    }
+  }
+
+  /**
+   * Pads the current byte with zeros, unless the next bit is already the
+   * first bit of a byte.
+   *
+   * @throws IOException if the stream cannot be written
+   */
+  public void alignToByte() throws IOException {
+    int pad = (8 - bitCount % 8) % 8;
+    if (pad > 0) {
+      writeBits(0, pad);
+    }
+  }
+
+  /** @return true if the next bit is the first bit of a byte */
+  public boolean isBitOnByteBoundary() {
+    return bitCount % 8 == 0;
+  }
+
+  /** @return the number of bits written */
+  public long getBitCount() {
+    return (written + count) * 8 + bitCount;
+  }
+
+  /**
+   * Writes all whole bytes to the stream.  Bits that do not yet fill a byte
+   * remain pending.
+   *
+   * @throws IOException if the stream cannot be written
+   */
+  public void flush() throws IOException {
+    drain();
+    flushBuffer();
+  }
+
+  /**
+   * Pads the last byte with zeros, and writes all pending bytes to the
+   * stream.  The stream itself is not closed.
+   *
+   * @throws IOException if the stream cannot be written
+   */
+  @Override
+  public void close() throws IOException {
+    alignToByte();
+    flush();
+  }
+
+  // -- Helper methods --
+
+  private void checkBits(int n, int max) {
+    if (n < 0 || n > max) {
+      throw new IllegalArgumentException("Bits to write must be between 0 " +
+        "and " + max + ": " + n);
+    }
+  }
+
+  /** Moves whole bytes from the accumulator to the buffer. */
+  private void drain() throws IOException {
+    while (bitCount >= 8) {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) (bits >>> 56);
+      bits <<= 8;
+      bitCount -= 8;
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      written += count;
+      count = 0;
+    }
+  }
+
+}
@@ -0,0 +1,423 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of fixed-size file blocks, shared by any number of
+ * handles.  Blocks are keyed by a file key and block index; see
+ * {@link #getFileKey(File)}.
+ *
+ * The cache is divided into independently locked segments, each of which
+ * evicts its least recently used blocks once it exceeds its share of the
+ * capacity.  When several threads miss on the same block at once, only one
+ * of them reads it, and the others wait for that read.
+ *
+ * Instances of BlockCache are thread-safe.
+ *
+ * @see NIOFileHandle#setBlockCacheEnabled(boolean)
+ */
+public class BlockCache {
+
+  // -- Constants --
+
+  /** Default size of each block, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /** Default capacity of the shared cache, in bytes (256 MB). */
+  public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+  /** Number of segments; a power of two. */
+  private static final int SEGMENT_COUNT = 16;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(BlockCache.class);
+
+  // -- Static fields --
+
+  private static BlockCache shared;
+
+  // -- Fields --
+
+  private final long capacity;
+
+  private final int blockSize;
+
+  private final Segment[] segments;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  // -- Constructor --
+
+  /**
+   * @param capacity the maximum number of bytes held by cached blocks
+   * @param blockSize the size of each block, in bytes
+   */
+  public BlockCache(long capacity, int blockSize) {
+    if (capacity <= 0 || blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity +
+        " or block size " + blockSize);
+    }
+    this.capacity = capacity;
+    this.blockSize = blockSize;
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i=0; i<segments.length; i++) {
+      segments[i] = new Segment(Math.max(1, capacity / SEGMENT_COUNT));
+    }
+  }
+
+  // -- BlockCache API methods --
+
+  /**
+   * Returns the cache shared by all handles that opt into caching.  Unless
+   * set with {@link #setShared(BlockCache)}, it is created on first use with
+   * a capacity of {@link #DEFAULT_CAPACITY} bytes, or the number of bytes
+   * given by the <code>blockCacheSize</code> system property.
+   *
+   * @return the shared cache
+   */
+  public static synchronized BlockCache getShared() {
+    if (shared == null) {
+      long size = DEFAULT_CAPACITY;
+      String property = System.getProperty("blockCacheSize");
+      if (property != null) {
+        try {
+          size = Long.parseLong(property);
+        }
+        catch (NumberFormatException e) {
+          LOGGER.warn("Invalid block cache size: {}", property);
+        }
+      }
+      shared = new BlockCache(size, DEFAULT_BLOCK_SIZE);
+    }
+    return shared;
+  }
+
+  /**
+   * Replaces the shared cache.  Handles that have already opted in keep
+   * using the previous cache.
+   *
+   * @param cache the new shared cache, or null to create a default cache
+   *        on next use
+   */
+  public static synchronized void setShared(BlockCache cache) {
+    shared = cache;
+  }
+
+  /**
+   * Returns a key that identifies the current contents of a file.  The key
+   * includes the length and modification time, so that blocks cached
+   * before the file was changed are not used afterwards.
+   *
+   * @param file a file on disk
+   * @return the key for the file
+   * @throws IOException if the canonical path cannot be determined
+   */
+  public static String getFileKey(File file) throws IOException {
+    return file.getCanonicalPath() + ":" + file.length() + ":" +
+      file.lastModified();
+  }
+
+  /**
+   * Reads bytes from a file through the cache.  Blocks that are not cached
+   * are read from the given channel.
+   *
+   * @param fileKey the key of the file
+   * @param channel the channel from which to read missing blocks
+   * @param pos the offset of the first byte to read
+   * @param dst the buffer to fill; its position is advanced by the number
+   *        of bytes read
+   * @return the number of bytes read, which is less than the remaining
+   *         space in <code>dst</code> only at the end of the file, or -1 if
+   *         <code>pos</code> is at or beyond the end of the file
+   * @throws IOException if a block cannot be read
+   */
+  public int read(String fileKey, final FileChannel channel, long pos,
+    ByteBuffer dst) throws IOException
+  {
+    int total = 0;
+    while (dst.hasRemaining()) {
+      long p = pos + total;
+      final long index = p / blockSize;
+      byte[] block = getBlock(new Key(fileKey, index), new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return load(channel, index);
+        }
+      });
+      int offset = (int) (p - index * blockSize);
+      if (offset >= block.length) {
+        break;
+      }
+      int n = Math.min(dst.remaining(), block.length - offset);
+      dst.put(block, offset, n);
+      total += n;
+      if (block.length < blockSize) {
+        break;
+      }
+    }
+    return total == 0 && dst.hasRemaining() ? -1 : total;
+  }
+
+  /** Removes all blocks from the cache. */
+  public void clear() {
+    for (Segment s : segments) {
+      s.clear();
+    }
+  }
+
+  /** @return the maximum number of bytes held by cached blocks */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /** @return the size of each block, in bytes */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** @return the number of bytes currently held by cached blocks */
+  public long getResidentBytes() {
+    long bytes = 0;
+    for (Segment s : segments) {
+      bytes += s.getBytes();
+    }
+    return bytes;
+  }
+
+  /** @return the number of block lookups satisfied by the cache */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of block lookups that required a read, including
+   *         those that waited for another thread's read
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** @return the number of blocks evicted to make room for others */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** @return the fraction of block lookups satisfied by the cache */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /** Resets the hit, miss and eviction counters to zero. */
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public String toString() {
+    return "BlockCache[resident=" + getResidentBytes() + "/" + capacity +
+      ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+      ", evictions=" + getEvictionCount() + "]";
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Returns the given block, loading it if it is not cached and not
+   * already being loaded by another thread.
+   */
+  private byte[] getBlock(Key key, Callable<byte[]> loader)
+    throws IOException
+  {
+    Segment segment = segments[(key.hashCode() ^ (key.hashCode() >>> 16)) &
+      (SEGMENT_COUNT - 1)];
+    FutureTask<byte[]> task;
+    boolean owner = false;
+    synchronized (segment) {
+      byte[] block = segment.blocks.get(key);
+      if (block != null) {
+        hits.incrementAndGet();
+        return block;
+      }
+      misses.incrementAndGet();
+      task = segment.loading.get(key);
+      if (task == null) {
+        task = new FutureTask<byte[]>(loader);
+        segment.loading.put(key, task);
+        owner = true;
+      }
+    }
+    if (owner) {
+      task.run();
+    }
+    try {
+      byte[] block = task.get();
+      if (owner) {
+        segment.put(key, block);
+      }
+      return block;
+    }
+    catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while reading block");
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+    finally {
+      if (owner) {
+        synchronized (segment) {
+          segment.loading.remove(key);
+        }
+      }
+    }
+  }
+
+  /** Reads a whole block, which is shorter only at the end of the file. */
+  private byte[] load(FileChannel channel, long index) throws IOException {
+    long offset = index * blockSize;
+    int len = (int) Math.max(0, Math.min(blockSize, channel.size() - offset));
+    ByteBuffer block = ByteBuffer.allocate(len);
+    while (block.hasRemaining()) {
+      if (channel.read(block, offset + block.position()) < 0) {
+        break;
+      }
+    }
+    if (block.hasRemaining()) {
+      byte[] b = new byte[block.position()];
+      System.arraycopy(block.array(), 0, b, 0, b.length);
+      return b;
+    }
+    return block.array();
+  }
+
+  // -- Helper classes --
+
+  /** Identifies a block of a file. */
+  private static final class Key {
+    private final String file;
+    private final long index;
+
+    Key(String file, long index) {
+      this.file = file;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return index == k.index && file.equals(k.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return file.hashCode() * 31 + (int) (index ^ (index >>> 32));
+    }
+  }
+
+  /** A part of the cache with its own lock and share of the capacity. */
+  private final class Segment {
+    /** Cached blocks in order of last access; guarded by this segment. */
+    final LinkedHashMap<Key, byte[]> blocks =
+      new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    /** Blocks being read; guarded by this segment. */
+    final Map<Key, FutureTask<byte[]>> loading =
+      new HashMap<Key, FutureTask<byte[]>>();
+
+    private final long capacity;
+    private long bytes;
+
+    Segment(long capacity) {
+      this.capacity = capacity;
+    }
+
+    synchronized void put(Key key, byte[] block) {
+      byte[] old = blocks.put(key, block);
+      if (old != null) {
+        bytes -= old.length;
+      }
+      bytes += block.length;
+      Iterator<byte[]> it = blocks.values().iterator();
+      while (bytes > capacity && it.hasNext()) {
+        byte[] eldest = it.next();
+        if (eldest == block) {
+          break;
+        }
+        it.remove();
+        bytes -= eldest.length;
+        evictions.incrementAndGet();
+      }
+    }
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+
+    synchronized void clear() {
+      blocks.clear();
+      bytes = 0;
+    }
+  }
+
+}
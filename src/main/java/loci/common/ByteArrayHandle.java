@@ -34,9 +34,16 @@ package loci.common;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
 
 /**
  * A wrapper for a byte array that implements the IRandomAccess interface.
@@ -186,6 +193,83 @@ public class ByteArrayHandle extends AbstractNIOHandle {
     return len;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    if (pos >= src.limit()) {
+      return -1;
+    }
+    int n = (int) Math.min(len, src.limit() - pos);
+    src.position((int) pos);
+    src.get(b, off, n);
+    return n;
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    if (pos >= src.limit()) {
+      return -1;
+    }
+    int n = (int) Math.min(dst.remaining(), src.limit() - pos);
+    src.limit((int) pos + n);
+    src.position((int) pos);
+    dst.put(src);
+    return n;
+  }
+
+  /**
+   * The data is already in memory, so each request is copied directly and
+   * no coalescing is needed.
+   *
+   * @see IRandomAccess#readBatch(List)
+   */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    ByteBuffer src = buffer.duplicate();
+    for (ReadRequest r : requests) {
+      if (r.getEnd() > src.limit()) {
+        throw new EOFException(EOF_ERROR_MSG);
+      }
+    }
+    for (ReadRequest r : requests) {
+      src.position((int) r.getOffset());
+      src.get(r.getBuffer(), r.getBufferOffset(), r.getLength());
+    }
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    readTyped(ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    readTyped(IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    readTyped(LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    readTyped(FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    readTyped(DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
@@ -503,4 +587,21 @@ public class ByteArrayHandle extends AbstractNIOHandle {
     write(b);
   }
 
+  // -- Helper methods --
+
+  /**
+   * Fills the remaining space of a typed buffer from the current position,
+   * copying directly from the backing buffer.
+   *
+   * @param dst the typed buffer to fill
+   * @param size the number of bytes in each value
+   */
+  private void readTyped(Buffer dst, int size) throws IOException {
+    int n = TypedReads.checkLength(this, dst, size);
+    ByteBuffer src = buffer.duplicate().order(buffer.order());
+    src.limit(src.position() + n);
+    TypedReads.put(src, dst);
+    buffer.position(buffer.position() + n);
+  }
+
 }
@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of reusable byte buffers, grouped into power-of-two
+ * size classes.  {@link NIOByteBufferProvider} borrows buffers from a pool
+ * when refilling an {@link NIOFileHandle}, so that random access reads do not
+ * allocate (and throw away) a new buffer every time the window moves.
+ *
+ * Instances of ByteBufferPool are thread-safe.
+ *
+ * @see NIOByteBufferProvider#setBufferPool(ByteBufferPool)
+ */
+public class ByteBufferPool {
+
+  // -- Constants --
+
+  /** Size of the smallest size class, in bytes. */
+  public static final int MIN_BUFFER_SIZE = 4096;
+
+  /** Size of the largest size class, in bytes. */
+  public static final int MAX_BUFFER_SIZE = 1 << 30;
+
+  /** Base 2 logarithm of {@link #MIN_BUFFER_SIZE}. */
+  private static final int MIN_SHIFT = 12;
+
+  /** Number of size classes. */
+  private static final int CLASS_COUNT = 31 - MIN_SHIFT;
+
+  // -- Fields --
+
+  /** Maximum number of bytes that may be held by idle buffers. */
+  private final long maxPooledBytes;
+
+  /** Whether or not direct buffers are allocated. */
+  private final boolean direct;
+
+  /** Idle buffers, indexed by size class. */
+  private final List<Queue<ByteBuffer>> pool;
+
+  /** Number of bytes currently held by idle buffers. */
+  private final AtomicLong pooledBytes = new AtomicLong();
+
+  /** Number of requests satisfied by an idle buffer. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of requests that required a new allocation. */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Number of released buffers that could not be pooled. */
+  private final AtomicLong discards = new AtomicLong();
+
+  // -- Constructor --
+
+  /**
+   * Constructs a new, empty pool.
+   *
+   * @param maxPooledBytes the maximum number of bytes that may be held
+   *        by idle buffers; buffers released beyond this limit are left
+   *        to the garbage collector
+   * @param direct true if direct buffers should be allocated, false
+   *        for heap buffers
+   */
+  public ByteBufferPool(long maxPooledBytes, boolean direct) {
+    if (maxPooledBytes < 0) {
+      throw new IllegalArgumentException("Pool size cannot be negative");
+    }
+    this.maxPooledBytes = maxPooledBytes;
+    this.direct = direct;
+    pool = new ArrayList<Queue<ByteBuffer>>(CLASS_COUNT);
+    for (int i=0; i<CLASS_COUNT; i++) {
+      pool.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+  }
+
+  // -- ByteBufferPool API methods --
+
+  /**
+   * Borrows a buffer of at least the given size.  The returned buffer is
+   * cleared, big-endian, and has its limit set to <code>size</code>; its
+   * capacity may be larger.
+   *
+   * @param size the number of bytes required
+   * @return a buffer from the pool, or a newly allocated buffer if no
+   *         idle buffer of the right size class is available
+   */
+  public ByteBuffer acquire(int size) {
+    int index = getSizeClass(size);
+    ByteBuffer buffer = null;
+    if (index >= 0) {
+      buffer = pool.get(index).poll();
+    }
+    if (buffer == null) {
+      misses.incrementAndGet();
+      buffer = allocate(index < 0 ? size : 1 << (index + MIN_SHIFT));
+    }
+    else {
+      hits.incrementAndGet();
+      pooledBytes.addAndGet(-buffer.capacity());
+    }
+    buffer.clear();
+    buffer.limit(size);
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool.  The caller must not use the buffer
+   * (or any view of it) afterwards.  Buffers that do not belong to a size
+   * class of this pool, or that would exceed the pool's capacity, are
+   * silently dropped.
+   *
+   * @param buffer the buffer to return; may be null
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    int index = getSizeClass(capacity);
+    if (index < 0 || capacity != 1 << (index + MIN_SHIFT) ||
+      buffer.isDirect() != direct || buffer.isReadOnly())
+    {
+      discards.incrementAndGet();
+      return;
+    }
+    while (true) {
+      long current = pooledBytes.get();
+      if (current + capacity > maxPooledBytes) {
+        discards.incrementAndGet();
+        return;
+      }
+      if (pooledBytes.compareAndSet(current, current + capacity)) {
+        break;
+      }
+    }
+    pool.get(index).offer(buffer);
+  }
+
+  /** Drops all idle buffers. */
+  public void clear() {
+    for (Queue<ByteBuffer> queue : pool) {
+      ByteBuffer buffer;
+      while ((buffer = queue.poll()) != null) {
+        pooledBytes.addAndGet(-buffer.capacity());
+      }
+    }
+  }
+
+  /**
+   * @return true if this pool allocates direct buffers.
+   */
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * @return the maximum number of bytes that may be held by idle buffers.
+   */
+  public long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  /**
+   * @return the number of bytes currently held by idle buffers.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * @return the number of {@link #acquire(int)} calls that were satisfied
+   *         by an idle buffer.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of {@link #acquire(int)} calls that required a new
+   *         buffer to be allocated.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of {@link #release(ByteBuffer)} calls whose buffer
+   *         was dropped instead of pooled.
+   */
+  public long getDiscardCount() {
+    return discards.get();
+  }
+
+  /** Resets the hit, miss and discard counters to zero. */
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    discards.set(0);
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public String toString() {
+    return "ByteBufferPool[direct=" + direct + ", pooled=" + getPooledBytes() +
+      "/" + maxPooledBytes + ", hits=" + getHitCount() + ", misses=" +
+      getMissCount() + ", discards=" + getDiscardCount() + "]";
+  }
+
+  // -- Helper methods --
+
+  /**
+   * @return the index of the smallest size class that can hold
+   *         <code>size</code> bytes, or -1 if the size is too large to pool.
+   */
+  private static int getSizeClass(int size) {
+    if (size > MAX_BUFFER_SIZE) {
+      return -1;
+    }
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  private ByteBuffer allocate(int size) {
+    return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton that finds any of several byte patterns in a single
+ * pass over the input.  Each input byte costs one table lookup, however
+ * many patterns there are.
+ *
+ * The automaton is built once and is immutable, so it can be shared between
+ * threads; the caller keeps the current state.
+ *
+ * @see RandomAccessInputStream#findString(boolean, int, String...)
+ */
+final class BytePatternMatcher {
+
+  // -- Constants --
+
+  private static final int[] NO_MATCHES = new int[0];
+
+  // -- Fields --
+
+  private final int[] lengths;
+
+  private final int maxLength;
+
+  /** Transition table; the next state is at [state * 256 + byte]. */
+  private final int[] next;
+
+  /** Indices of the patterns that end at each state, in ascending order. */
+  private final int[][] matches;
+
+  // -- Constructor --
+
+  /**
+   * @param patterns the non-empty byte sequences to search for
+   */
+  BytePatternMatcher(byte[][] patterns) {
+    lengths = new int[patterns.length];
+    int states = 1, max = 0;
+    for (int i=0; i<patterns.length; i++) {
+      if (patterns[i].length == 0) {
+        throw new IllegalArgumentException("Empty pattern");
+      }
+      lengths[i] = patterns[i].length;
+      max = Math.max(max, lengths[i]);
+      states += lengths[i];
+    }
+    maxLength = max;
+
+    // build the trie, using -1 for missing transitions
+    int[] goTo = new int[states * 256];
+    Arrays.fill(goTo, -1);
+    int[][] out = new int[states][];
+    int count = 1;
+    for (int i=0; i<patterns.length; i++) {
+      int state = 0;
+      for (byte b : patterns[i]) {
+        int index = state * 256 + (b & 0xff);
+        if (goTo[index] < 0) goTo[index] = count++;
+        state = goTo[index];
+      }
+      out[state] = append(out[state], i);
+    }
+
+    // add failure transitions breadth-first, so that each state's fallback
+    // is complete before the state itself is processed
+    int[] fail = new int[count];
+    Queue<Integer> queue = new ArrayDeque<Integer>();
+    for (int b=0; b<256; b++) {
+      if (goTo[b] < 0) goTo[b] = 0;
+      else if (goTo[b] > 0) {
+        queue.add(goTo[b]);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      out[state] = merge(out[state], out[fail[state]]);
+      for (int b=0; b<256; b++) {
+        int index = state * 256 + b;
+        int target = goTo[index];
+        if (target < 0) {
+          goTo[index] = goTo[fail[state] * 256 + b];
+        }
+        else {
+          fail[target] = goTo[fail[state] * 256 + b];
+          queue.add(target);
+        }
+      }
+    }
+
+    next = Arrays.copyOf(goTo, count * 256);
+    matches = new int[count][];
+    for (int s=0; s<count; s++) {
+      matches[s] = out[s] == null ? NO_MATCHES : out[s];
+    }
+  }
+
+  // -- BytePatternMatcher API methods --
+
+  /** @return the length of the longest pattern */
+  int getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * @param pattern the index of a pattern
+   * @return the length of the pattern in bytes
+   */
+  int getLength(int pattern) {
+    return lengths[pattern];
+  }
+
+  /**
+   * @param state the current state; 0 before any input
+   * @param b the next input byte
+   * @return the state after consuming <code>b</code>
+   */
+  int next(int state, byte b) {
+    return next[(state << 8) | (b & 0xff)];
+  }
+
+  /**
+   * @param state a state returned by {@link #next(int, byte)}
+   * @return the indices of the patterns that end with the last byte
+   *         consumed, in ascending order; do not modify
+   */
+  int[] getMatches(int state) {
+    return matches[state];
+  }
+
+  // -- Helper methods --
+
+  private static int[] append(int[] a, int value) {
+    if (a == null) return new int[] {value};
+    int[] b = Arrays.copyOf(a, a.length + 1);
+    b[a.length] = value;
+    return b;
+  }
+
+  private static int[] merge(int[] a, int[] b) {
+    if (b == null) return a;
+    if (a == null) return b;
+    int[] c = new int[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    Arrays.sort(c);
+    return c;
+  }
+
+}
@@ -225,6 +225,23 @@ public class CBZip2InputStream extends InputStream {
    */
   private CBZip2InputStream.Data data;
 
+  /** Number of bytes read from the compressed stream. */
+  private long bytesRead;
+
+  /** Number of decompressed bytes returned so far. */
+  private long outputOffset;
+
+  /** True if decompression started at a block other than the first. */
+  private boolean resumed;
+
+  /** True if decompression stops at the end of the first block. */
+  private boolean singleBlock;
+
+  /** Number of bits read up to the end of the most recent block. */
+  private long blockEnd = -1;
+
+  private BlockListener listener;
+
   // -- Constructor --
 
   /**
@@ -245,12 +262,92 @@ public class CBZip2InputStream extends InputStream {
    *   if <tt>in == null</tt>
    */
   public CBZip2InputStream(final InputStream in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * Constructs a new CBZip2InputStream which decompresses bytes read from
+   * the specified stream, notifying the given listener at the start of
+   * each block.
+   *
+   * @param in stream from which to read BZip2 data; expected to be
+   *   set to the first byte past the 2 byte magic marker
+   * @param listener the listener to notify, or null
+   * @throws IOException
+   *   if the stream content is malformed or an I/O error occurs.
+   */
+  CBZip2InputStream(final InputStream in, final BlockListener listener)
+    throws IOException
+  {
     super();
 
     this.in = in;
+    this.listener = listener;
     init();
   }
 
+  /**
+   * Constructs a new CBZip2InputStream which resumes decompression at the
+   * start of a block.  As earlier blocks are not read, the combined CRC of
+   * the stream is not checked; each block's own CRC still is.
+   *
+   * @param in stream from which to read BZip2 data; expected to be set to
+   *   the byte containing the first bit of the block
+   * @param blockSize100k the block size from the stream header, 1 to 9
+   * @param bitOffset the number of bits of the first byte that precede the
+   *   block, 0 to 7
+   * @throws IOException
+   *   if the stream content is malformed or an I/O error occurs.
+   */
+  CBZip2InputStream(final InputStream in, final int blockSize100k,
+    final int bitOffset) throws IOException
+  {
+    this(in, blockSize100k, bitOffset, false);
+  }
+
+  /**
+   * Constructs a new CBZip2InputStream which resumes decompression at the
+   * start of a block, and optionally stops at the end of that block.  In
+   * single block mode a block CRC mismatch is reported by throwing an
+   * exception, rather than only being logged.
+   *
+   * @param in stream from which to read BZip2 data; expected to be set to
+   *   the byte containing the first bit of the block
+   * @param blockSize100k the block size from the stream header, 1 to 9
+   * @param bitOffset the number of bits of the first byte that precede the
+   *   block, 0 to 7
+   * @param singleBlock true if only one block should be decompressed
+   * @throws IOException
+   *   if the stream content is malformed or an I/O error occurs.
+   * @see #getBlockEnd()
+   */
+  CBZip2InputStream(final InputStream in, final int blockSize100k,
+    final int bitOffset, final boolean singleBlock) throws IOException
+  {
+    super();
+
+    this.in = in;
+    this.blockSize100k = blockSize100k;
+    this.resumed = true;
+    this.singleBlock = singleBlock;
+    bsR(bitOffset);
+    initBlock();
+    setupBlock();
+  }
+
+  // -- CBZip2InputStream API --
+
+  /**
+   * Returns the position just after the most recently decompressed block,
+   * which is also the position of the next block or end-of-stream marker,
+   * relative to the start of the stream passed to the constructor.
+   *
+   * @return the position in bits, or -1 if no block has been decompressed
+   */
+  long getBlockEnd() {
+    return blockEnd;
+  }
+
   // -- InputStream API --
 
   @Override
@@ -286,6 +383,7 @@ public class CBZip2InputStream extends InputStream {
 
   private int read0() throws IOException {
     final int retChar = this.currentChar;
+    if (this.currentState != EOF) this.outputOffset++;
 
     switch (this.currentState) {
       case EOF:
@@ -324,6 +422,7 @@ public class CBZip2InputStream extends InputStream {
   }
 
   private void init() throws IOException {
+    this.bytesRead += 2;
     int magic2 = this.in.read();
     if (magic2 != 'h') {
       throw new IOException("Stream is not BZip2 formatted: expected 'h'" +
@@ -343,6 +442,10 @@ public class CBZip2InputStream extends InputStream {
   }
 
   private void initBlock() throws IOException {
+    if (this.listener != null) {
+      this.listener.blockStart(
+        this.bytesRead * 8 - this.bsLive, this.outputOffset);
+    }
     char magic0 = bsGetUByte();
     char magic1 = bsGetUByte();
     char magic2 = bsGetUByte();
@@ -381,6 +484,7 @@ public class CBZip2InputStream extends InputStream {
 
       // currBlockNo++;
       getAndMoveToFrontDecode();
+      this.blockEnd = this.bytesRead * 8 - this.bsLive;
 
       this.crc.initialiseCRC();
       this.currentState = START_BLOCK_STATE;
@@ -406,12 +510,22 @@ public class CBZip2InputStream extends InputStream {
     this.computedCombinedCRC ^= this.computedBlockCRC;
   }
 
+  private void completeSingleBlock() throws IOException {
+    this.currentState = EOF;
+    this.data = null;
+    if (this.storedBlockCRC != this.crc.getFinalCRC()) {
+      throw new IOException("BZip2 CRC error");
+    }
+  }
+
   private void complete() throws IOException {
     this.storedCombinedCRC = bsGetInt();
     this.currentState = EOF;
     this.data = null;
 
-    if (this.storedCombinedCRC != this.computedCombinedCRC) {
+    if (!this.resumed &&
+      this.storedCombinedCRC != this.computedCombinedCRC)
+    {
       reportCRCError();
     }
   }
@@ -443,6 +557,7 @@ public class CBZip2InputStream extends InputStream {
 
         bsBuffShadow = (bsBuffShadow << 8) | thech;
         bsLiveShadow += 8;
+        this.bytesRead++;
       }
       while (bsLiveShadow < n);
 
@@ -667,6 +782,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -681,6 +797,7 @@ public class CBZip2InputStream extends InputStream {
               if (thech >= 0) {
                 bsBuffShadow = (bsBuffShadow << 8) | thech;
                 bsLiveShadow += 8;
+                this.bytesRead++;
                 continue;
               }
               throw new IOException("unexpected end of stream");
@@ -738,6 +855,7 @@ public class CBZip2InputStream extends InputStream {
           if (thech >= 0) {
             bsBuffShadow = (bsBuffShadow << 8) | thech;
             bsLiveShadow += 8;
+            this.bytesRead++;
             continue;
           }
           throw new IOException("unexpected end of stream");
@@ -752,6 +870,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -788,6 +907,7 @@ public class CBZip2InputStream extends InputStream {
         if (thech >= 0) {
           bsBuffShadow = (bsBuffShadow << 8) | thech;
           bsLiveShadow += 8;
+          this.bytesRead++;
           continue;
         }
         throw new IOException("unexpected end of stream");
@@ -853,6 +973,9 @@ public class CBZip2InputStream extends InputStream {
       this.currentState = RAND_PART_B_STATE;
       this.crc.updateCRC(suCh2Shadow);
     }
+    else if (this.singleBlock) {
+      completeSingleBlock();
+    }
     else {
       endBlock();
       initBlock();
@@ -871,6 +994,9 @@ public class CBZip2InputStream extends InputStream {
       this.currentState = NO_RAND_PART_B_STATE;
       this.crc.updateCRC(suCh2Shadow);
     }
+    else if (this.singleBlock) {
+      completeSingleBlock();
+    }
     else {
       this.currentState = NO_RAND_PART_A_STATE;
       endBlock();
@@ -949,6 +1075,17 @@ public class CBZip2InputStream extends InputStream {
     }
   }
 
+  /** Receives a notification at the start of each block. */
+  interface BlockListener {
+    /**
+     * @param bitOffset the offset in bits of the block magic, relative to
+     *   the start of the stream passed to the constructor
+     * @param outputOffset the number of decompressed bytes before the block
+     * @throws IOException if the listener fails
+     */
+    void blockStart(long bitOffset, long outputOffset) throws IOException;
+  }
+
   private static final class Data extends Object {
     // (with blockSize 900k)
     final boolean[] inUse  = new boolean[256];                  //     256 byte
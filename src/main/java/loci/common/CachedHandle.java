@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+
+/**
+ * A read-only IRandomAccess that caches the blocks read from another
+ * handle in a {@link TieredCache}.  This is intended for sources whose
+ * bytes are expensive to produce, such as {@link GZipHandle},
+ * {@link BZip2Handle} and {@link URLHandle}: once a block has been decoded
+ * or downloaded, it is served from the cache for as long as it stays
+ * there, including by handles that are opened after this one is closed.
+ *
+ * The underlying handle is only read when a block is not cached, and is
+ * closed along with this handle.
+ *
+ * @see TieredCache
+ */
+public class CachedHandle extends AbstractBlockHandle {
+
+  // -- Constants --
+
+  /** Number of decoded blocks kept on the heap by each handle. */
+  private static final int HEAP_BLOCKS = 2;
+
+  // -- Fields --
+
+  private final IRandomAccess source;
+
+  private final String key;
+
+  private final TieredCache cache;
+
+  private final long length;
+
+  // -- Constructor --
+
+  /**
+   * @param source the handle from which missing blocks are read
+   * @param key a key that identifies the current contents of the source,
+   *        e.g. one from {@link BlockCache#getFileKey(java.io.File)}
+   * @param cache the cache in which blocks are kept
+   * @throws IOException if the length of the source cannot be determined
+   */
+  public CachedHandle(IRandomAccess source, String key, TieredCache cache)
+    throws IOException
+  {
+    super(cache.getBlockSize(), HEAP_BLOCKS);
+    this.source = source;
+    this.key = key;
+    this.cache = cache;
+    this.length = source.length();
+  }
+
+  // -- CachedHandle API methods --
+
+  /**
+   * Wraps a handle in a CachedHandle that uses the shared cache, if one is
+   * configured.
+   *
+   * @param handle the handle to wrap
+   * @param key a key that identifies the current contents of the handle
+   * @return the wrapped handle, or <code>handle</code> if
+   *         {@link TieredCache#getShared()} is null
+   * @throws IOException if the length of the handle cannot be determined
+   */
+  public static IRandomAccess wrap(IRandomAccess handle, String key)
+    throws IOException
+  {
+    TieredCache cache = TieredCache.getShared();
+    return cache == null ? handle : new CachedHandle(handle, key, cache);
+  }
+
+  /** @return the handle from which missing blocks are read */
+  public IRandomAccess getSource() {
+    return source;
+  }
+
+  /** @return the cache in which blocks are kept */
+  public TieredCache getCache() {
+    return cache;
+  }
+
+  // -- AbstractBlockHandle API methods --
+
+  /* @see AbstractBlockHandle#load(long) */
+  @Override
+  protected byte[] load(long index) throws IOException {
+    byte[] block = cache.get(key, index);
+    if (block == null) {
+      block = super.load(index);
+      cache.put(key, index, block);
+    }
+    return block;
+  }
+
+  /* @see AbstractBlockHandle#fetch(long, byte[], int) */
+  @Override
+  protected void fetch(long offset, byte[] b, int len) throws IOException {
+    synchronized (source) {
+      source.seek(offset);
+      source.readFully(b, 0, len);
+    }
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    source.close();
+  }
+
+  /* @see IRandomAccess.length() */
+  @Override
+  public long length() {
+    return length;
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file or directory found by
+ * {@link Location#newDirectoryStream(String, boolean)}.
+ *
+ * The entry's attributes are read at most once, the first time one of them
+ * is requested, so iterating over names alone does not touch the files.
+ * Where the platform returns attributes with the directory listing, as on
+ * Windows, no further reads are needed at all.  Entries are not
+ * thread-safe.
+ */
+public class DirectoryEntry {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DirectoryEntry.class);
+
+  // -- Fields --
+
+  private final Path path;
+
+  private BasicFileAttributes attributes;
+
+  private boolean attributesRead;
+
+  // -- Constructor --
+
+  DirectoryEntry(Path path) {
+    this.path = path;
+  }
+
+  // -- DirectoryEntry API methods --
+
+  /** @return the name of the entry, relative to its directory */
+  public String getName() {
+    return path.getFileName().toString();
+  }
+
+  /** @return the path of the entry */
+  public Path getPath() {
+    return path;
+  }
+
+  /** @return the absolute path of the entry */
+  public String getAbsolutePath() {
+    return path.toAbsolutePath().toString();
+  }
+
+  /** @return a Location representing this entry */
+  public Location toLocation() {
+    return new Location(path.toFile().getAbsoluteFile());
+  }
+
+  /**
+   * @return the basic attributes of the entry
+   * @throws IOException if the attributes cannot be read, e.g. because the
+   *   entry was deleted after it was listed
+   */
+  public BasicFileAttributes getAttributes() throws IOException {
+    BasicFileAttributes attrs = readAttributes();
+    if (attrs == null) {
+      throw new IOException("Could not read attributes of " + path);
+    }
+    return attrs;
+  }
+
+  /**
+   * @return true if the entry is a directory
+   * @see Location#isDirectory()
+   */
+  public boolean isDirectory() {
+    BasicFileAttributes attrs = readAttributes();
+    return attrs != null && attrs.isDirectory();
+  }
+
+  /**
+   * @return true if the entry is a regular file
+   * @see Location#isFile()
+   */
+  public boolean isFile() {
+    BasicFileAttributes attrs = readAttributes();
+    return attrs != null && attrs.isRegularFile();
+  }
+
+  /**
+   * @return the length of the entry in bytes, or 0 if it cannot be read
+   * @see Location#length()
+   */
+  public long length() {
+    BasicFileAttributes attrs = readAttributes();
+    return attrs == null ? 0 : attrs.size();
+  }
+
+  /**
+   * @return the last modification time of the entry, in milliseconds since
+   *         the UNIX epoch, or 0 if it cannot be read
+   * @see Location#lastModified()
+   */
+  public long lastModified() {
+    BasicFileAttributes attrs = readAttributes();
+    return attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+  }
+
+  @Override
+  public String toString() {
+    return path.toString();
+  }
+
+  // -- Helper methods --
+
+  private BasicFileAttributes readAttributes() {
+    if (!attributesRead) {
+      attributesRead = true;
+      try {
+        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Location.putAttributes(getAbsolutePath(), attributes);
+      }
+      catch (IOException e) {
+        LOGGER.trace("Could not read attributes of {}", path, e);
+      }
+    }
+    return attributes;
+  }
+
+}
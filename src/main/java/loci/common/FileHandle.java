@@ -38,6 +38,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
  * A wrapper for RandomAccessFile that implements the IRandomAccess interface.
@@ -134,6 +141,66 @@ public class FileHandle implements IRandomAccess {
     return n;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b, off, len));
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    FileChannel channel = raf.getChannel();
+    if (pos >= channel.size()) {
+      return -1;
+    }
+    int total = 0;
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, pos + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /* @see IRandomAccess.readBatch(List) */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    ReadRequest.readAll(this, requests);
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
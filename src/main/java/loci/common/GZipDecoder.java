@@ -0,0 +1,685 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A pure Java gzip decompressor that, unlike {@link GZIPInputStream}, can
+ * report the position of each deflate block and can resume decompression
+ * from the start of any block, given the 32 KB of output that preceded it.
+ * This is what allows {@link GZipIndex} to seek within gzip files without
+ * decompressing from the beginning.
+ *
+ * Concatenated gzip members are decompressed as one stream, and trailing
+ * data after the last member is ignored, as with {@link GZIPInputStream}.
+ */
+class GZipDecoder extends InputStream {
+
+  // -- Constants --
+
+  /** Number of bytes of history needed to resume decompression. */
+  static final int WINDOW_SIZE = 32768;
+
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+  private static final int INPUT_BUFFER_SIZE = 65536;
+
+  private static final int FAST_BITS = 10;
+
+  private static final int MAX_BITS = 15;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+    67, 83, 99, 115, 131, 163, 195, 227, 258
+  };
+
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4,
+    5, 5, 5, 5, 0
+  };
+
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+    769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+  };
+
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10,
+    11, 11, 12, 12, 13, 13
+  };
+
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+
+  private static final Huffman FIXED_LITERALS;
+  private static final Huffman FIXED_DISTANCES;
+
+  static {
+    int[] lengths = new int[288];
+    for (int i=0; i<lengths.length; i++) {
+      lengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+    }
+    int[] distances = new int[30];
+    for (int i=0; i<distances.length; i++) {
+      distances[i] = 5;
+    }
+    try {
+      FIXED_LITERALS = new Huffman(lengths, lengths.length);
+      FIXED_DISTANCES = new Huffman(distances, distances.length);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // decoder states
+  private static final int MEMBER_HEADER = 0;
+  private static final int BLOCK_HEADER = 1;
+  private static final int STORED = 2;
+  private static final int CODES = 3;
+  private static final int MEMBER_TRAILER = 4;
+  private static final int DONE = 5;
+
+  // -- Fields --
+
+  private final InputStream in;
+  private final byte[] input = new byte[INPUT_BUFFER_SIZE];
+  private int inputPosition;
+  private int inputLength;
+
+  /** Offset in the compressed stream of the byte after the buffered input. */
+  private long inputOffset;
+
+  private long bitBuffer;
+  private int bitCount;
+
+  /** Number of zero bits appended to bitBuffer after the end of input. */
+  private int padBits;
+
+  private final byte[] window = new byte[WINDOW_SIZE];
+  private int windowPosition;
+
+  /** Number of valid bytes of history in the window, up to WINDOW_SIZE. */
+  private int history;
+
+  private long outputOffset;
+
+  private int state;
+  private boolean lastBlock;
+  private int storedRemaining;
+  private int copyLength;
+  private int copyDistance;
+  private Huffman literals;
+  private Huffman distances;
+
+  /** Checksum of the current member, or null if it was not read in full. */
+  private CRC32 crc;
+  private long memberLength;
+
+  private BlockListener listener;
+
+  private byte[] skipBuffer;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a decoder for the gzip stream that starts at the current
+   * position of <code>in</code>.
+   *
+   * @param in the compressed data
+   */
+  GZipDecoder(InputStream in) {
+    this.in = in;
+    state = MEMBER_HEADER;
+  }
+
+  /**
+   * Constructs a decoder that resumes decompression at the start of a
+   * deflate block.
+   *
+   * @param in the compressed data, positioned at byte
+   *        <code>bitOffset / 8</code> of the gzip stream
+   * @param bitOffset the offset in bits of the block within the gzip stream
+   * @param outputOffset the number of bytes of output preceding the block
+   * @param dictionary the output immediately preceding the block within the
+   *        same gzip member, of which at most the last
+   *        {@link #WINDOW_SIZE} bytes are used
+   * @throws IOException if the compressed data cannot be read
+   */
+  GZipDecoder(InputStream in, long bitOffset, long outputOffset,
+    byte[] dictionary) throws IOException
+  {
+    this.in = in;
+    this.inputOffset = bitOffset >>> 3;
+    this.outputOffset = outputOffset;
+    int n = Math.min(dictionary.length, WINDOW_SIZE);
+    System.arraycopy(dictionary, dictionary.length - n, window, 0, n);
+    windowPosition = n & WINDOW_MASK;
+    history = n;
+    dropBits((int) (bitOffset & 7));
+    state = BLOCK_HEADER;
+  }
+
+  // -- GZipDecoder methods --
+
+  /**
+   * Sets the listener notified at the start of each deflate block.
+   *
+   * @param listener the listener, or null
+   */
+  void setBlockListener(BlockListener listener) {
+    this.listener = listener;
+  }
+
+  /** @return the number of bytes decompressed so far */
+  long getOutputOffset() {
+    return outputOffset;
+  }
+
+  /** @return the offset in bits of the next unread compressed bit */
+  long getBitOffset() {
+    return (inputOffset - (inputLength - inputPosition)) * 8 -
+      (bitCount - padBits);
+  }
+
+  /**
+   * @return a copy of the decompressed data preceding the current position
+   *         within the current member, up to {@link #WINDOW_SIZE} bytes
+   */
+  byte[] getWindow() {
+    byte[] copy = new byte[history];
+    int start = (windowPosition - history) & WINDOW_MASK;
+    int first = Math.min(history, WINDOW_SIZE - start);
+    System.arraycopy(window, start, copy, 0, first);
+    System.arraycopy(window, 0, copy, first, history - first);
+    return copy;
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    int checked = off;
+    while (n < len) {
+      if (copyLength > 0) {
+        int count = Math.min(copyLength, len - n);
+        for (int i=0; i<count; i++) {
+          byte v = window[(windowPosition - copyDistance) & WINDOW_MASK];
+          window[windowPosition] = v;
+          windowPosition = (windowPosition + 1) & WINDOW_MASK;
+          b[off + n++] = v;
+        }
+        copyLength -= count;
+        advance(count);
+        continue;
+      }
+      switch (state) {
+        case CODES:
+          int symbol = decode(literals);
+          if (symbol < 256) {
+            window[windowPosition] = (byte) symbol;
+            windowPosition = (windowPosition + 1) & WINDOW_MASK;
+            b[off + n++] = (byte) symbol;
+            advance(1);
+          }
+          else if (symbol == 256) {
+            state = lastBlock ? MEMBER_TRAILER : BLOCK_HEADER;
+          }
+          else {
+            readCopy(symbol);
+          }
+          break;
+        case STORED:
+          int count =
+            readStored(b, off + n, Math.min(storedRemaining, len - n));
+          n += count;
+          storedRemaining -= count;
+          if (storedRemaining == 0) {
+            state = lastBlock ? MEMBER_TRAILER : BLOCK_HEADER;
+          }
+          break;
+        case BLOCK_HEADER:
+          if (listener != null) {
+            listener.blockStart(this);
+          }
+          readBlockHeader();
+          break;
+        case MEMBER_TRAILER:
+          if (crc != null) {
+            crc.update(b, checked, off + n - checked);
+          }
+          checked = off + n;
+          readTrailer();
+          break;
+        case MEMBER_HEADER:
+          if (!readHeader()) {
+            state = DONE;
+          }
+          break;
+        default:
+          if (crc != null) {
+            crc.update(b, checked, off + n - checked);
+          }
+          return n == 0 ? -1 : n;
+      }
+    }
+    if (crc != null) {
+      crc.update(b, checked, off + n - checked);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (skipBuffer == null) {
+      skipBuffer = new byte[WINDOW_SIZE];
+    }
+    long skipped = 0;
+    while (skipped < n) {
+      int r = read(skipBuffer, 0,
+        (int) Math.min(skipBuffer.length, n - skipped));
+      if (r < 0) {
+        break;
+      }
+      skipped += r;
+    }
+    return skipped;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  // -- Helper methods --
+
+  private void advance(int count) {
+    outputOffset += count;
+    memberLength += count;
+    history = Math.min(WINDOW_SIZE, history + count);
+  }
+
+  /** Reads the length and distance of a back-reference. */
+  private void readCopy(int symbol) throws IOException {
+    symbol -= 257;
+    if (symbol >= LENGTH_BASE.length) {
+      throw new ZipException("Invalid literal/length code");
+    }
+    int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+    symbol = decode(distances);
+    if (symbol >= DISTANCE_BASE.length) {
+      throw new ZipException("Invalid distance code");
+    }
+    int distance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+    if (distance > history) {
+      throw new ZipException("Invalid distance too far back");
+    }
+    copyLength = length;
+    copyDistance = distance;
+  }
+
+  /** Copies up to len bytes of a stored block. */
+  private int readStored(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len && bitCount - padBits >= 8) {
+      b[off + n++] = (byte) bits(8);
+    }
+    while (n < len) {
+      if (inputPosition == inputLength && !fill()) {
+        throw new EOFException("Unexpected end of gzip data");
+      }
+      int count = Math.min(len - n, inputLength - inputPosition);
+      System.arraycopy(input, inputPosition, b, off + n, count);
+      inputPosition += count;
+      n += count;
+    }
+    int start = off;
+    int remaining = n;
+    if (remaining > WINDOW_SIZE) {
+      start += remaining - WINDOW_SIZE;
+      remaining = WINDOW_SIZE;
+    }
+    while (remaining > 0) {
+      int count = Math.min(remaining, WINDOW_SIZE - windowPosition);
+      System.arraycopy(b, start, window, windowPosition, count);
+      windowPosition = (windowPosition + count) & WINDOW_MASK;
+      start += count;
+      remaining -= count;
+    }
+    advance(n);
+    return n;
+  }
+
+  private void readBlockHeader() throws IOException {
+    lastBlock = bits(1) == 1;
+    int type = bits(2);
+    switch (type) {
+      case 0:
+        dropBits(bitCount & 7);
+        int length = bits(16);
+        if ((length ^ 0xffff) != bits(16)) {
+          throw new ZipException("Invalid stored block length");
+        }
+        storedRemaining = length;
+        state = length == 0 ? (lastBlock ? MEMBER_TRAILER : BLOCK_HEADER) :
+          STORED;
+        break;
+      case 1:
+        literals = FIXED_LITERALS;
+        distances = FIXED_DISTANCES;
+        state = CODES;
+        break;
+      case 2:
+        readDynamicTables();
+        state = CODES;
+        break;
+      default:
+        throw new ZipException("Invalid block type");
+    }
+  }
+
+  private void readDynamicTables() throws IOException {
+    int literalCount = bits(5) + 257;
+    int distanceCount = bits(5) + 1;
+    int codeLengthCount = bits(4) + 4;
+    if (literalCount > 286 || distanceCount > 30) {
+      throw new ZipException("Too many length or distance symbols");
+    }
+    int[] lengths = new int[19];
+    for (int i=0; i<codeLengthCount; i++) {
+      lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+    }
+    Huffman codeLengths = new Huffman(lengths, 19);
+
+    lengths = new int[literalCount + distanceCount];
+    int index = 0;
+    while (index < lengths.length) {
+      int symbol = decode(codeLengths);
+      if (symbol < 16) {
+        lengths[index++] = symbol;
+        continue;
+      }
+      int value = 0;
+      int repeat;
+      if (symbol == 16) {
+        if (index == 0) {
+          throw new ZipException("Invalid bit length repeat");
+        }
+        value = lengths[index - 1];
+        repeat = 3 + bits(2);
+      }
+      else if (symbol == 17) {
+        repeat = 3 + bits(3);
+      }
+      else {
+        repeat = 11 + bits(7);
+      }
+      if (index + repeat > lengths.length) {
+        throw new ZipException("Invalid bit length repeat");
+      }
+      while (repeat-- > 0) {
+        lengths[index++] = value;
+      }
+    }
+    if (lengths[256] == 0) {
+      throw new ZipException("Missing end-of-block code");
+    }
+    int[] distanceLengths = new int[distanceCount];
+    System.arraycopy(lengths, literalCount, distanceLengths, 0, distanceCount);
+    literals = new Huffman(lengths, literalCount);
+    distances = new Huffman(distanceLengths, distanceCount);
+  }
+
+  /**
+   * Reads a member header.
+   *
+   * @return false if there are no more members
+   */
+  private boolean readHeader() throws IOException {
+    int magic = byteOrEOF();
+    if (magic < 0) {
+      return false;
+    }
+    magic |= byteOrEOF() << 8;
+    if (magic != GZIPInputStream.GZIP_MAGIC) {
+      // like GZIPInputStream, ignore trailing garbage after a member
+      if (outputOffset > 0) {
+        return false;
+      }
+      throw new ZipException("Not in GZIP format");
+    }
+    if (bits(8) != 8) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = bits(8);
+    bits(16);
+    bits(16);
+    bits(16);
+    if ((flags & 4) != 0) {
+      int extra = bits(16);
+      for (int i=0; i<extra; i++) {
+        bits(8);
+      }
+    }
+    if ((flags & 8) != 0) {
+      while (bits(8) != 0);
+    }
+    if ((flags & 16) != 0) {
+      while (bits(8) != 0);
+    }
+    if ((flags & 2) != 0) {
+      bits(16);
+    }
+    crc = new CRC32();
+    memberLength = 0;
+    history = 0;
+    state = BLOCK_HEADER;
+    return true;
+  }
+
+  private void readTrailer() throws IOException {
+    dropBits(bitCount & 7);
+    long expectedCrc = bits(16) | ((long) bits(16) << 16);
+    long expectedLength = bits(16) | ((long) bits(16) << 16);
+    if (crc != null && (expectedCrc != crc.getValue() ||
+      expectedLength != (memberLength & 0xffffffffL)))
+    {
+      throw new ZipException("Corrupt GZIP trailer");
+    }
+    crc = null;
+    state = MEMBER_HEADER;
+  }
+
+  /** @return the next byte-aligned byte, or -1 at the end of the input */
+  private int byteOrEOF() throws IOException {
+    dropBits(bitCount & 7);
+    if (bitCount - padBits < 8 && inputPosition == inputLength && !fill()) {
+      return -1;
+    }
+    return bits(8);
+  }
+
+  /** Decodes one symbol using the given code. */
+  private int decode(Huffman h) throws IOException {
+    if (bitCount < MAX_BITS) {
+      refill();
+    }
+    int entry = h.fast[(int) bitBuffer & ((1 << FAST_BITS) - 1)];
+    if (entry >= 0) {
+      dropBits(entry & 15);
+      return entry >>> 4;
+    }
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    for (int len=1; len<=MAX_BITS; len++) {
+      code |= (int) (bitBuffer >>> (len - 1)) & 1;
+      int count = h.count[len];
+      if (code - count < first) {
+        dropBits(len);
+        return h.symbol[index + code - first];
+      }
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw new ZipException("Invalid Huffman code");
+  }
+
+  /** Reads n bits, least significant first. */
+  private int bits(int n) throws IOException {
+    if (n == 0) {
+      return 0;
+    }
+    if (bitCount < n) {
+      refill();
+    }
+    int value = (int) (bitBuffer & ((1L << n) - 1));
+    dropBits(n);
+    return value;
+  }
+
+  private void dropBits(int n) throws IOException {
+    if (bitCount < n) {
+      refill();
+    }
+    bitBuffer >>>= n;
+    bitCount -= n;
+    if (bitCount < padBits) {
+      throw new EOFException("Unexpected end of gzip data");
+    }
+  }
+
+  /** Fills the bit buffer with at least 56 bits, padding with zeros. */
+  private void refill() throws IOException {
+    while (bitCount <= 56) {
+      if (inputPosition == inputLength && (padBits > 0 || !fill())) {
+        padBits += 8;
+      }
+      else {
+        bitBuffer |= (long) (input[inputPosition++] & 0xff) << bitCount;
+      }
+      bitCount += 8;
+    }
+  }
+
+  /** @return false if there is no more input */
+  private boolean fill() throws IOException {
+    int n = in.read(input, 0, input.length);
+    if (n <= 0) {
+      return false;
+    }
+    inputPosition = 0;
+    inputLength = n;
+    inputOffset += n;
+    return true;
+  }
+
+  // -- Helper classes --
+
+  /** Receives a notification at the start of each deflate block. */
+  interface BlockListener {
+    /**
+     * @param decoder the decoder, positioned at the start of the block
+     * @throws IOException if the listener fails
+     */
+    void blockStart(GZipDecoder decoder) throws IOException;
+  }
+
+  /** A canonical Huffman code, with a lookup table for short codes. */
+  private static final class Huffman {
+    final int[] count = new int[MAX_BITS + 1];
+    final int[] symbol;
+    final int[] fast = new int[1 << FAST_BITS];
+
+    Huffman(int[] lengths, int n) throws IOException {
+      symbol = new int[n];
+      for (int i=0; i<n; i++) {
+        count[lengths[i]]++;
+      }
+      count[0] = 0;
+      int left = 1;
+      for (int len=1; len<=MAX_BITS; len++) {
+        left <<= 1;
+        left -= count[len];
+        if (left < 0) {
+          throw new ZipException("Over-subscribed Huffman code");
+        }
+      }
+      int[] offsets = new int[MAX_BITS + 2];
+      for (int len=1; len<=MAX_BITS; len++) {
+        offsets[len + 1] = offsets[len] + count[len];
+      }
+      for (int i=0; i<n; i++) {
+        if (lengths[i] != 0) {
+          symbol[offsets[lengths[i]]++] = i;
+        }
+      }
+
+      Arrays.fill(fast, -1);
+      int code = 0;
+      int index = 0;
+      for (int len=1; len<=FAST_BITS; len++) {
+        for (int i=0; i<count[len]; i++) {
+          int reversed = Integer.reverse(code) >>> (32 - len);
+          int entry = (symbol[index++] << 4) | len;
+          for (int j=reversed; j<fast.length; j+=1 << len) {
+            fast[j] = entry;
+          }
+          code++;
+        }
+        code <<= 1;
+      }
+    }
+  }
+
+}
@@ -34,10 +34,17 @@ package loci.common;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.zip.GZIPInputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * StreamHandle implementation for reading from gzip-compressed files
  * or byte arrays.  Instances of GZipHandle are read-only.
@@ -48,6 +55,42 @@ import java.util.zip.GZIPInputStream;
  */
 public class GZipHandle extends StreamHandle {
 
+  // -- Constants --
+
+  /** Default number of decompressed bytes between index checkpoints. */
+  public static final long DEFAULT_INDEX_SPAN = 4L * 1024 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(GZipHandle.class);
+
+  // -- Static fields --
+
+  private static volatile long indexSpan = DEFAULT_INDEX_SPAN;
+
+  private static volatile boolean indexSidecar = false;
+
+  /** Indexes of recently opened files, keyed by absolute path. */
+  private static final Cache<String, GZipIndex> INDEXES =
+    CacheBuilder.newBuilder().maximumSize(64).softValues().build();
+
+  static {
+    String span = System.getProperty("gzipIndexSpan");
+    if (span != null) {
+      try {
+        indexSpan = Math.max(0, Long.parseLong(span));
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid gzip index span: {}", span);
+      }
+    }
+    indexSidecar = Boolean.parseBoolean(System.getProperty("gzipIndexSidecar"));
+  }
+
+  // -- Fields --
+
+  /** Random access index for the file, or null if indexing is disabled. */
+  private GZipIndex index;
+
   // -- Constructor --
 
   /**
@@ -57,12 +100,28 @@ public class GZipHandle extends StreamHandle {
    * @throws HandleException if the given file name is not a GZip file.
    */
   public GZipHandle(String file) throws IOException {
+    this(file, true);
+  }
+
+  /**
+   * Construct a new GZipHandle, optionally skipping the check of the file's
+   * name and magic bytes, e.g. because {@link HandleDetector} has already
+   * made it.
+   */
+  GZipHandle(String file, boolean check) throws IOException {
     super();
     this.file = file;
-    if (!isGZipFile(file)) {
+    if (check && !isGZipFile(file)) {
       throw new HandleException(file + " is not a gzip file.");
     }
 
+    if (indexSpan > 0) {
+      index = getIndex(new File(file));
+      length = index.getLength();
+      resetStream();
+      return;
+    }
+
     resetStream();
 
     length = 0;
@@ -92,6 +151,79 @@ public class GZipHandle extends StreamHandle {
     return DataTools.bytesToInt(b, true) == GZIPInputStream.GZIP_MAGIC;
   }
 
+  /**
+   * Sets the number of decompressed bytes between checkpoints in the index
+   * built when a gzip file is first opened.  Seeks backwards, or forwards
+   * past a checkpoint, resume decompression from the nearest checkpoint
+   * instead of from the start of the file.  The initial value is taken from
+   * the <code>gzipIndexSpan</code> system property, if set.
+   *
+   * @param span the index span in bytes; 0 disables indexing
+   */
+  public static void setIndexSpan(long span) {
+    if (span < 0) {
+      throw new IllegalArgumentException("Negative span: " + span);
+    }
+    indexSpan = span;
+  }
+
+  /**
+   * @return the number of decompressed bytes between index checkpoints,
+   *         or 0 if indexing is disabled
+   */
+  public static long getIndexSpan() {
+    return indexSpan;
+  }
+
+  /**
+   * Sets whether indexes are saved alongside each gzip file (with the
+   * suffix <code>.gzidx</code>) so that later processes need not decompress
+   * the whole file when opening it.  The initial value is taken from the
+   * <code>gzipIndexSidecar</code> system property.
+   *
+   * @param sidecar true if index files should be read and written
+   */
+  public static void setIndexSidecar(boolean sidecar) {
+    indexSidecar = sidecar;
+  }
+
+  /**
+   * @return true if indexes are saved alongside each gzip file
+   */
+  public static boolean isIndexSidecar() {
+    return indexSidecar;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /**
+   * If the file has been indexed and the nearest checkpoint before
+   * <code>pos</code> is beyond the current position, or <code>pos</code> is
+   * behind the current position, decompression resumes from that checkpoint.
+   *
+   * @see IRandomAccess#seek(long)
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (index != null) {
+      int checkpoint = index.find(pos);
+      long start =
+        checkpoint < 0 ? 0 : index.getOutputOffset(checkpoint);
+      if (pos < fp || start > fp) {
+        if (checkpoint < 0) {
+          resetStream();
+        }
+        else {
+          if (stream != null) stream.close();
+          stream =
+            new DataInputStream(index.open(new File(file), checkpoint));
+        }
+        fp = start;
+      }
+    }
+    super.seek(pos);
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
@@ -103,4 +235,44 @@ public class GZipHandle extends StreamHandle {
     stream = new DataInputStream(new GZIPInputStream(bis));
   }
 
+  // -- Helper methods --
+
+  /**
+   * Returns an index of the given file, from the cache or sidecar file if
+   * either is up to date, and otherwise by decompressing the whole file.
+   */
+  private static GZipIndex getIndex(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    long span = indexSpan;
+    GZipIndex index = INDEXES.getIfPresent(key);
+    if (index != null && index.matches(file) && index.getSpan() == span) {
+      return index;
+    }
+    File sidecar = new File(key + GZipIndex.SIDECAR_SUFFIX);
+    boolean useSidecar = indexSidecar;
+    if (useSidecar && sidecar.exists()) {
+      try {
+        index = GZipIndex.read(sidecar);
+        if (index.matches(file) && index.getSpan() == span) {
+          INDEXES.put(key, index);
+          return index;
+        }
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not read gzip index {}", sidecar, e);
+      }
+    }
+    index = GZipIndex.build(file, span);
+    INDEXES.put(key, index);
+    if (useSidecar) {
+      try {
+        index.write(sidecar);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not write gzip index {}", sidecar, e);
+      }
+    }
+    return index;
+  }
+
 }
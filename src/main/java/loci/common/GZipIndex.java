@@ -0,0 +1,332 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A random access index for a gzip file, in the style of zlib's
+ * <code>zran.c</code>.  The index records a checkpoint at the first deflate
+ * block boundary after every <code>span</code> bytes of decompressed data,
+ * together with the 32 KB of output preceding it, so that decompression
+ * can resume at the nearest checkpoint instead of at the start of the file.
+ * Saved windows are kept compressed to reduce memory use.
+ *
+ * @see GZipHandle
+ */
+class GZipIndex {
+
+  // -- Constants --
+
+  /** Suffix appended to the gzip file name to form the sidecar file name. */
+  static final String SIDECAR_SUFFIX = ".gzidx";
+
+  private static final int MAGIC = 0x475a4958;
+
+  private static final int VERSION = 1;
+
+  /** Length in bytes of the sidecar header, up to the checkpoint count. */
+  private static final int HEADER_LENGTH = 44;
+
+  /** Length in bytes of a saved checkpoint with an empty window. */
+  private static final int MIN_CHECKPOINT_LENGTH = 20;
+
+  // -- Fields --
+
+  private final long fileLength;
+  private final long lastModified;
+  private final long span;
+  private final long length;
+  private final long[] outputOffsets;
+  private final long[] bitOffsets;
+  private final byte[][] windows;
+
+  // -- Constructor --
+
+  private GZipIndex(long fileLength, long lastModified, long span,
+    long length, long[] outputOffsets, long[] bitOffsets, byte[][] windows)
+  {
+    this.fileLength = fileLength;
+    this.lastModified = lastModified;
+    this.span = span;
+    this.length = length;
+    this.outputOffsets = outputOffsets;
+    this.bitOffsets = bitOffsets;
+    this.windows = windows;
+  }
+
+  // -- GZipIndex API methods --
+
+  /**
+   * Decompresses the whole of the given file, recording a checkpoint about
+   * every <code>span</code> bytes of output.
+   *
+   * @param file the gzip file to index
+   * @param span the minimum number of decompressed bytes between checkpoints
+   * @return the index
+   * @throws IOException if the file cannot be read or is not valid gzip
+   */
+  static GZipIndex build(File file, final long span) throws IOException {
+    final long fileLength = file.length();
+    final long lastModified = file.lastModified();
+    final List<long[]> offsets = new ArrayList<long[]>();
+    final List<byte[]> windows = new ArrayList<byte[]>();
+    GZipDecoder decoder = new GZipDecoder(new FileInputStream(file));
+    try {
+      decoder.setBlockListener(new GZipDecoder.BlockListener() {
+        private long next = span;
+
+        @Override
+        public void blockStart(GZipDecoder d) {
+          long out = d.getOutputOffset();
+          if (out >= next) {
+            offsets.add(new long[] {out, d.getBitOffset()});
+            windows.add(compress(d.getWindow()));
+            next = out + span;
+          }
+        }
+      });
+      decoder.skip(Long.MAX_VALUE);
+    }
+    finally {
+      decoder.close();
+    }
+
+    long[] outputOffsets = new long[offsets.size()];
+    long[] bitOffsets = new long[offsets.size()];
+    for (int i=0; i<outputOffsets.length; i++) {
+      outputOffsets[i] = offsets.get(i)[0];
+      bitOffsets[i] = offsets.get(i)[1];
+    }
+    return new GZipIndex(fileLength, lastModified, span,
+      decoder.getOutputOffset(), outputOffsets, bitOffsets,
+      windows.toArray(new byte[windows.size()][]));
+  }
+
+  /**
+   * Reads an index previously saved with {@link #write(File)}.
+   *
+   * @param sidecar the file containing the index
+   * @return the index
+   * @throws IOException if the index cannot be read or is invalid
+   */
+  static GZipIndex read(File sidecar) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(sidecar)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a gzip index: " + sidecar);
+      }
+      long fileLength = in.readLong();
+      long lastModified = in.readLong();
+      long span = in.readLong();
+      long length = in.readLong();
+      int count = in.readInt();
+      if (count < 0 ||
+        count > (sidecar.length() - HEADER_LENGTH) / MIN_CHECKPOINT_LENGTH)
+      {
+        throw new IOException("Invalid gzip index: " + sidecar);
+      }
+      long[] outputOffsets = new long[count];
+      long[] bitOffsets = new long[count];
+      byte[][] windows = new byte[count][];
+      for (int i=0; i<count; i++) {
+        outputOffsets[i] = in.readLong();
+        bitOffsets[i] = in.readLong();
+        int windowLength = in.readInt();
+        if (windowLength < 0 || windowLength > GZipDecoder.WINDOW_SIZE) {
+          throw new IOException("Invalid gzip index: " + sidecar);
+        }
+        windows[i] = new byte[windowLength];
+        in.readFully(windows[i]);
+      }
+      return new GZipIndex(fileLength, lastModified, span, length,
+        outputOffsets, bitOffsets, windows);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Saves this index so that it can be reused by later processes.
+   *
+   * @param sidecar the file to which the index is written
+   * @throws IOException if the index cannot be written
+   */
+  void write(File sidecar) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(sidecar)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(fileLength);
+      out.writeLong(lastModified);
+      out.writeLong(span);
+      out.writeLong(length);
+      out.writeInt(outputOffsets.length);
+      for (int i=0; i<outputOffsets.length; i++) {
+        out.writeLong(outputOffsets[i]);
+        out.writeLong(bitOffsets[i]);
+        out.writeInt(windows[i].length);
+        out.write(windows[i]);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @param file the gzip file
+   * @return true if the file has not changed since this index was built
+   */
+  boolean matches(File file) {
+    return file.length() == fileLength && file.lastModified() == lastModified;
+  }
+
+  /** @return the minimum number of decompressed bytes between checkpoints */
+  long getSpan() {
+    return span;
+  }
+
+  /** @return the total decompressed length of the file */
+  long getLength() {
+    return length;
+  }
+
+  /** @return the number of checkpoints */
+  int getCheckpointCount() {
+    return outputOffsets.length;
+  }
+
+  /** @return the decompressed offset of the given checkpoint */
+  long getOutputOffset(int checkpoint) {
+    return outputOffsets[checkpoint];
+  }
+
+  /**
+   * @param pos an offset in the decompressed data
+   * @return the last checkpoint at or before <code>pos</code>, or -1 if
+   *         there is none
+   */
+  int find(long pos) {
+    int i = Arrays.binarySearch(outputOffsets, pos);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * Opens a stream that decompresses the given file from a checkpoint.
+   *
+   * @param file the gzip file
+   * @param checkpoint the checkpoint from which to start
+   * @return a stream positioned at {@link #getOutputOffset(int)}
+   * @throws IOException if the file cannot be read
+   */
+  InputStream open(File file, int checkpoint) throws IOException {
+    long bitOffset = bitOffsets[checkpoint];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(bitOffset >>> 3);
+      return new GZipDecoder(in, bitOffset, outputOffsets[checkpoint],
+        decompress(windows[checkpoint]));
+    }
+    catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  // -- Helper methods --
+
+  private static byte[] compress(byte[] window) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(window);
+      deflater.finish();
+      byte[] buf = new byte[window.length + 64];
+      int n = 0;
+      while (!deflater.finished()) {
+        if (n == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        n += deflater.deflate(buf, n, buf.length - n);
+      }
+      byte[] compressed = new byte[n + 4];
+      DataTools.unpackBytes(window.length, compressed, 0, 4, false);
+      System.arraycopy(buf, 0, compressed, 4, n);
+      return compressed;
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    byte[] window = new byte[DataTools.bytesToInt(compressed, 0, 4, false)];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed, 4, compressed.length - 4);
+      int n = 0;
+      while (n < window.length) {
+        int r = inflater.inflate(window, n, window.length - n);
+        if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Corrupt gzip index window");
+        }
+        n += r;
+      }
+      return window;
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupt gzip index window", e);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+}
@@ -0,0 +1,518 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides random access to HTTP URLs using range requests.  The resource
+ * is fetched in fixed-size blocks, on demand, with
+ * <code>Range: bytes=</code> headers; recently used blocks are cached, so
+ * random access costs a few small requests rather than a full download.
+ * Connections are reused by {@link HttpURLConnection}'s keep-alive cache,
+ * since each response is read completely before being closed.
+ * Instances of HTTPRangeHandle are read-only.
+ *
+ * Blocks can also be fetched concurrently in the background, either ahead
+ * of sequential reads (see {@link #setReadAhead(int)}) or when requested
+ * with {@link #prefetch(long, long)}.  Background requests from all
+ * handles share a pool of at most {@link #getMaxConnections()} threads,
+ * which bounds the number of concurrent connections.
+ *
+ * @see URLHandle
+ * @see AbstractBlockHandle
+ */
+public class HTTPRangeHandle extends AbstractBlockHandle {
+
+  // -- Constants --
+
+  /** Default maximum number of concurrent background requests. */
+  public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(HTTPRangeHandle.class);
+
+  // -- Static fields --
+
+  private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+    DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("HTTPRangeHandle-fetch-%d").build());
+
+  private static volatile int defaultReadAhead = 0;
+
+  static {
+    EXECUTOR.allowCoreThreadTimeOut(true);
+    String connections = System.getProperty("httpMaxConnections");
+    if (connections != null) {
+      try {
+        setMaxConnections(Integer.parseInt(connections));
+      }
+      catch (IllegalArgumentException e) {
+        LOGGER.warn("Invalid maximum HTTP connections: {}", connections);
+      }
+    }
+    String readAhead = System.getProperty("httpReadAhead");
+    if (readAhead != null) {
+      try {
+        setDefaultReadAhead(Integer.parseInt(readAhead));
+      }
+      catch (IllegalArgumentException e) {
+        LOGGER.warn("Invalid HTTP read-ahead: {}", readAhead);
+      }
+    }
+  }
+
+  // -- Fields --
+
+  /** URL of the resource. */
+  private final URL url;
+
+  /** Total length of the resource. */
+  private final long length;
+
+  /** Number of blocks to fetch ahead of sequential reads. */
+  private volatile int readAhead = defaultReadAhead;
+
+  /** Index of the most recently read block. */
+  private long lastBlock = -1;
+
+  /** Background requests that have not completed, keyed by block index. */
+  private final Map<Long, Future<byte[]>> pending =
+    new HashMap<Long, Future<byte[]>>();
+
+  /** Blocks fetched in the background that have not been read yet. */
+  private final Set<Long> unread = new HashSet<Long>();
+
+  private boolean closed;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong bytesFetched = new AtomicLong();
+  private long prefetchHits;
+  private long prefetchWasted;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a new HTTPRangeHandle using the given URL, with the default
+   * block and cache sizes.
+   *
+   * @param url the fully qualified URL path
+   * @throws HandleException if the server does not support range requests
+   * @throws IOException if the URL is invalid or unreadable
+   */
+  public HTTPRangeHandle(String url) throws IOException {
+    this(url, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_BLOCKS);
+  }
+
+  /**
+   * Constructs a new HTTPRangeHandle using the given URL.  The first block
+   * is fetched immediately, which also determines the length.
+   *
+   * @param url the fully qualified URL path
+   * @param blockSize the number of bytes to request at a time
+   * @param cacheBlocks the maximum number of blocks to cache
+   * @throws HandleException if the server does not support range requests
+   * @throws IOException if the URL is invalid or unreadable
+   */
+  public HTTPRangeHandle(String url, int blockSize, int cacheBlocks)
+    throws IOException
+  {
+    super(blockSize, cacheBlocks);
+    this.url = new URL(url);
+
+    HttpURLConnection conn = open(0, blockSize);
+    try {
+      int code = conn.getResponseCode();
+      if (code == 416) {
+        // requested range not satisfiable, i.e. the resource is empty
+        length = 0;
+        return;
+      }
+      if (code != HttpURLConnection.HTTP_PARTIAL) {
+        throw new HandleException(url + " does not support range requests" +
+          " (response " + code + ")");
+      }
+      length = parseLength(conn.getHeaderField("Content-Range"));
+      byte[] block = new byte[(int) Math.min(blockSize, length)];
+      readResponse(conn, block, block.length);
+      putBlock(0, block);
+    }
+    finally {
+      release(conn);
+    }
+  }
+
+  // -- HTTPRangeHandle API methods --
+
+  /**
+   * Sets the maximum number of background requests that may be in
+   * progress at once, across all handles.
+   *
+   * @param connections the maximum number of concurrent requests
+   */
+  public static void setMaxConnections(int connections) {
+    if (connections <= 0) {
+      throw new IllegalArgumentException(
+        "Invalid number of connections: " + connections);
+    }
+    synchronized (EXECUTOR) {
+      if (connections > EXECUTOR.getMaximumPoolSize()) {
+        EXECUTOR.setMaximumPoolSize(connections);
+        EXECUTOR.setCorePoolSize(connections);
+      }
+      else {
+        EXECUTOR.setCorePoolSize(connections);
+        EXECUTOR.setMaximumPoolSize(connections);
+      }
+    }
+  }
+
+  /** @return the maximum number of concurrent background requests */
+  public static int getMaxConnections() {
+    return EXECUTOR.getMaximumPoolSize();
+  }
+
+  /**
+   * Sets the number of blocks that new handles fetch ahead of sequential
+   * reads.  The default is 0, i.e. no read-ahead, and can also be set with
+   * the <code>httpReadAhead</code> system property.
+   *
+   * @param blocks the number of blocks to fetch ahead
+   */
+  public static void setDefaultReadAhead(int blocks) {
+    if (blocks < 0) {
+      throw new IllegalArgumentException("Negative read-ahead: " + blocks);
+    }
+    defaultReadAhead = blocks;
+  }
+
+  /** @return the number of blocks that new handles fetch ahead */
+  public static int getDefaultReadAhead() {
+    return defaultReadAhead;
+  }
+
+  /** @return the URL of the resource */
+  public String getURL() {
+    return url.toString();
+  }
+
+  /**
+   * Sets the number of blocks to fetch in the background when this handle
+   * is read sequentially.  The number is limited by the cache size.
+   *
+   * @param blocks the number of blocks to fetch ahead, or 0 to disable
+   */
+  public void setReadAhead(int blocks) {
+    if (blocks < 0) {
+      throw new IllegalArgumentException("Negative read-ahead: " + blocks);
+    }
+    readAhead = blocks;
+  }
+
+  /** @return the number of blocks fetched ahead of sequential reads */
+  public int getReadAhead() {
+    return readAhead;
+  }
+
+  /**
+   * Starts fetching the given range in the background, so that it can be
+   * read later without waiting.  Blocks that are already cached or being
+   * fetched are skipped, and at most as many blocks as fit in the cache
+   * are requested.
+   *
+   * @param offset the offset of the first byte that will be read
+   * @param len the number of bytes that will be read
+   */
+  public void prefetch(long offset, long len) {
+    if (len <= 0 || offset >= length) {
+      return;
+    }
+    long first = offset / getBlockSize();
+    long last = (Math.min(offset + len, length) - 1) / getBlockSize();
+    last = Math.min(last, first + getCacheSize() - 1);
+    for (long index=first; index<=last; index++) {
+      schedule(index);
+    }
+  }
+
+  /** @return the number of background requests that have not completed */
+  public synchronized int getPendingPrefetchCount() {
+    return pending.size();
+  }
+
+  /** @return the number of HTTP requests issued */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /** @return the number of bytes received in response bodies */
+  public long getBytesFetched() {
+    return bytesFetched.get();
+  }
+
+  /** @return the number of blocks fetched in the background and read */
+  public synchronized long getPrefetchHitCount() {
+    return prefetchHits;
+  }
+
+  /**
+   * @return the number of blocks fetched in the background that were
+   *         evicted, or discarded by {@link #close()}, without being read
+   */
+  public synchronized long getPrefetchWastedCount() {
+    return prefetchWasted;
+  }
+
+  // -- AbstractBlockHandle API methods --
+
+  /* @see AbstractBlockHandle#getBlock(long) */
+  @Override
+  protected byte[] getBlock(long index) throws IOException {
+    byte[] block = super.getBlock(index);
+    if (index != lastBlock) {
+      synchronized (this) {
+        if (unread.remove(index)) {
+          prefetchHits++;
+        }
+      }
+      int ahead = readAhead;
+      if (ahead > 0 && index == lastBlock + 1) {
+        long last = Math.min(index + Math.min(ahead, getCacheSize() - 1),
+          (length - 1) / getBlockSize());
+        for (long next=index + 1; next<=last; next++) {
+          schedule(next);
+        }
+      }
+      lastBlock = index;
+    }
+    return block;
+  }
+
+  /**
+   * Waits for the block if it is already being fetched in the background,
+   * and otherwise fetches it directly.
+   *
+   * @see AbstractBlockHandle#load(long)
+   */
+  @Override
+  protected byte[] load(long index) throws IOException {
+    Future<byte[]> future;
+    synchronized (this) {
+      future = pending.get(index);
+    }
+    if (future != null) {
+      try {
+        return future.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        LOGGER.debug("Background request for block {} of {} failed",
+          index, url, e.getCause());
+      }
+    }
+    return super.load(index);
+  }
+
+  /* @see AbstractBlockHandle#blockEvicted(long) */
+  @Override
+  protected void blockEvicted(long index) {
+    if (unread.remove(index)) {
+      prefetchWasted++;
+    }
+  }
+
+  /* @see AbstractBlockHandle#fetch(long, byte[], int) */
+  @Override
+  protected void fetch(long offset, byte[] b, int len) throws IOException {
+    HttpURLConnection conn = open(offset, len);
+    try {
+      int code = conn.getResponseCode();
+      if (code != HttpURLConnection.HTTP_PARTIAL) {
+        throw new IOException("Range request for " + url + " failed" +
+          " (response " + code + ")");
+      }
+      readResponse(conn, b, len);
+    }
+    finally {
+      release(conn);
+    }
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  @Override
+  public void close() throws IOException {
+    List<Future<byte[]>> futures;
+    synchronized (this) {
+      closed = true;
+      futures = new ArrayList<Future<byte[]>>(pending.values());
+      pending.clear();
+      prefetchWasted += unread.size();
+      unread.clear();
+    }
+    for (Future<byte[]> future : futures) {
+      future.cancel(false);
+    }
+    super.close();
+  }
+
+  /* @see IRandomAccess.length() */
+  @Override
+  public long length() {
+    return length;
+  }
+
+  // -- Helper methods --
+
+  /** Fetches the given block in the background, unless already present. */
+  private synchronized void schedule(final long index) {
+    if (closed || pending.containsKey(index) || isCached(index)) {
+      return;
+    }
+    pending.put(index, EXECUTOR.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        try {
+          byte[] block = HTTPRangeHandle.super.load(index);
+          synchronized (HTTPRangeHandle.this) {
+            if (!closed && !isCached(index)) {
+              unread.add(index);
+              putBlock(index, block);
+            }
+          }
+          return block;
+        }
+        finally {
+          synchronized (HTTPRangeHandle.this) {
+            pending.remove(index);
+          }
+        }
+      }
+    }));
+  }
+
+  /** Opens a connection requesting <code>len</code> bytes from offset. */
+  private HttpURLConnection open(long offset, long len) throws IOException {
+    requests.incrementAndGet();
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("Range",
+      "bytes=" + offset + "-" + (offset + len - 1));
+    LOGGER.trace("Requesting {} bytes={}-{}", url, offset, offset + len - 1);
+    return conn;
+  }
+
+  /** Reads exactly <code>len</code> bytes of the response body. */
+  private void readResponse(HttpURLConnection conn, byte[] b, int len)
+    throws IOException
+  {
+    InputStream in = conn.getInputStream();
+    int off = 0;
+    while (off < len) {
+      int n = in.read(b, off, len - off);
+      if (n < 0) {
+        throw new EOFException("Truncated response from " + conn.getURL());
+      }
+      off += n;
+    }
+    bytesFetched.addAndGet(len);
+  }
+
+  /**
+   * Drains and closes the response, so that the connection can be reused.
+   * A complete response to a request whose range was ignored is not
+   * drained, as that would download the whole resource.
+   */
+  private static void release(HttpURLConnection conn) {
+    try {
+      if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        conn.disconnect();
+        return;
+      }
+      InputStream in = conn.getResponseCode() >= 400 ?
+        conn.getErrorStream() : conn.getInputStream();
+      if (in != null) {
+        byte[] b = new byte[8192];
+        while (in.read(b) >= 0);
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not release connection to {}", conn.getURL(), e);
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Returns the total length from a Content-Range header, e.g.
+   * "bytes 0-1023/4096".
+   */
+  private long parseLength(String range) throws IOException {
+    int slash = range == null ? -1 : range.lastIndexOf('/');
+    if (slash < 0) {
+      throw new HandleException("Missing Content-Range from " + url);
+    }
+    try {
+      return Long.parseLong(range.substring(slash + 1).trim());
+    }
+    catch (NumberFormatException e) {
+      throw new HandleException("Unknown length of " + url + ": " + range);
+    }
+  }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Chooses the IRandomAccess implementation for a local file, such as a Zip,
+ * gzip or BZip2 file, from its name and the first few bytes of its
+ * contents.  The bytes needed by all candidate {@link Detector}s are read
+ * with a single open of the file, and files whose names no detector
+ * accepts are not opened at all.  Results are cached by path, and
+ * revalidated using the file's length and modification time.
+ *
+ * Additional detectors can be registered with
+ * {@link #addDetector(Detector)}.  Instances of HandleDetector are
+ * thread-safe.
+ *
+ * @see Location#getHandle(String, boolean, boolean, int)
+ */
+public class HandleDetector {
+
+  // -- Constants --
+
+  /** Maximum number of cached detection results. */
+  private static final int CACHE_SIZE = 4096;
+
+  /** Built-in detector for Zip files. */
+  public static final Detector ZIP = new MagicDetector(".zip", 'P', 'K') {
+    @Override
+    public IRandomAccess open(String id) throws IOException {
+      return new ZipHandle(id);
+    }
+  };
+
+  /** Built-in detector for gzip files. */
+  public static final Detector GZIP = new MagicDetector(".gz", 0x1f, 0x8b) {
+    @Override
+    public IRandomAccess open(String id) throws IOException {
+      return CachedHandle.wrap(new GZipHandle(id, false),
+        "gzip:" + BlockCache.getFileKey(new File(id)));
+    }
+  };
+
+  /** Built-in detector for BZip2 files. */
+  public static final Detector BZIP2 = new MagicDetector(".bz2", 'B', 'Z') {
+    @Override
+    public IRandomAccess open(String id) throws IOException {
+      return CachedHandle.wrap(new BZip2Handle(id, false),
+        "bzip2:" + BlockCache.getFileKey(new File(id)));
+    }
+  };
+
+  /** Cached result for files that no detector matched. */
+  private static final Detector NONE = new MagicDetector("") {
+    @Override
+    public IRandomAccess open(String id) {
+      return null;
+    }
+  };
+
+  // -- Static fields --
+
+  private static final HandleDetector INSTANCE = new HandleDetector();
+
+  // -- Fields --
+
+  private final List<Detector> detectors =
+    new CopyOnWriteArrayList<Detector>();
+
+  private final Cache<String, Result> results =
+    CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+  private final AtomicLong headerReads = new AtomicLong();
+
+  // -- Constructor --
+
+  /** Constructs a detector for the built-in Zip, gzip and BZip2 types. */
+  public HandleDetector() {
+    detectors.add(ZIP);
+    detectors.add(GZIP);
+    detectors.add(BZIP2);
+  }
+
+  // -- HandleDetector API methods --
+
+  /** @return the detector used by {@link Location#getHandle(String)} */
+  public static HandleDetector getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Adds a detector, which is tried before those already registered.
+   *
+   * @param detector the detector to add
+   */
+  public void addDetector(Detector detector) {
+    detectors.add(0, detector);
+    clearCache();
+  }
+
+  /**
+   * Removes a detector.
+   *
+   * @param detector the detector to remove
+   * @return true if the detector was registered
+   */
+  public boolean removeDetector(Detector detector) {
+    boolean removed = detectors.remove(detector);
+    clearCache();
+    return removed;
+  }
+
+  /** @return the registered detectors, in the order they are tried */
+  public List<Detector> getDetectors() {
+    return new ArrayList<Detector>(detectors);
+  }
+
+  /**
+   * Determines the type of a file.
+   *
+   * @param id the path to a file on disk
+   * @return the first detector that matches the file, or null if none does
+   *         or the file cannot be read
+   * @throws IOException if the file exists but its header cannot be read
+   */
+  public Detector detect(String id) throws IOException {
+    List<Detector> candidates = new ArrayList<Detector>();
+    int headerLength = 0;
+    for (Detector d : detectors) {
+      if (d.accepts(id)) {
+        candidates.add(d);
+        headerLength = Math.max(headerLength, d.getHeaderLength());
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+
+    File file = new File(id);
+    long length = file.length();
+    long lastModified = file.lastModified();
+    Result result = results.getIfPresent(id);
+    if (result != null && result.length == length &&
+      result.lastModified == lastModified)
+    {
+      return result.detector == NONE ? null : result.detector;
+    }
+    if (!file.isFile()) {
+      return null;
+    }
+
+    byte[] header = new byte[headerLength];
+    int n = readHeader(file, header);
+    Detector match = NONE;
+    for (Detector d : candidates) {
+      if (d.matches(header, n)) {
+        match = d;
+        break;
+      }
+    }
+    results.put(id, new Result(match, length, lastModified));
+    return match == NONE ? null : match;
+  }
+
+  /**
+   * Opens a file with the handle chosen by {@link #detect(String)}.
+   *
+   * @param id the path to a file on disk
+   * @return a new handle, or null if no detector matches the file
+   * @throws IOException if the file cannot be opened
+   */
+  public IRandomAccess open(String id) throws IOException {
+    Detector detector = detect(id);
+    return detector == null ? null : detector.open(id);
+  }
+
+  /** Discards all cached detection results. */
+  public void clearCache() {
+    results.invalidateAll();
+  }
+
+  /** @return the number of times a file has been opened to read a header */
+  public long getHeaderReadCount() {
+    return headerReads.get();
+  }
+
+  // -- Helper methods --
+
+  /** Reads as much of the header as the file contains. */
+  private int readHeader(File file, byte[] header) throws IOException {
+    headerReads.incrementAndGet();
+    InputStream in = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < header.length) {
+        int r = in.read(header, n, header.length - n);
+        if (r < 0) break;
+        n += r;
+      }
+      return n;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Detects one type of file, and opens files of that type. */
+  public interface Detector {
+
+    /**
+     * Checks whether a file could be of this type without reading it,
+     * e.g. by its extension.
+     *
+     * @param id the path to the file
+     * @return true if the file's header should be checked
+     */
+    boolean accepts(String id);
+
+    /** @return the number of header bytes needed by {@link #matches} */
+    int getHeaderLength();
+
+    /**
+     * @param header the first bytes of the file
+     * @param length the number of valid bytes in <code>header</code>, which
+     *        is less than {@link #getHeaderLength()} for short files
+     * @return true if the file is of this type
+     */
+    boolean matches(byte[] header, int length);
+
+    /**
+     * @param id the path to a file of this type
+     * @return a new handle for reading the file
+     * @throws IOException if the file cannot be opened
+     */
+    IRandomAccess open(String id) throws IOException;
+  }
+
+  /**
+   * A detector for files with a given (case-insensitive) extension that
+   * start with given magic bytes.
+   */
+  public abstract static class MagicDetector implements Detector {
+
+    private final String suffix;
+    private final byte[] magic;
+
+    /**
+     * @param suffix the file extension, including the leading '.'
+     * @param magic the values of the first bytes of the file
+     */
+    public MagicDetector(String suffix, int... magic) {
+      this.suffix = suffix.toLowerCase();
+      this.magic = new byte[magic.length];
+      for (int i=0; i<magic.length; i++) {
+        this.magic[i] = (byte) magic[i];
+      }
+    }
+
+    /* @see Detector#accepts(String) */
+    @Override
+    public boolean accepts(String id) {
+      return id.toLowerCase().endsWith(suffix);
+    }
+
+    /* @see Detector#getHeaderLength() */
+    @Override
+    public int getHeaderLength() {
+      return magic.length;
+    }
+
+    /* @see Detector#matches(byte[], int) */
+    @Override
+    public boolean matches(byte[] header, int length) {
+      if (length < magic.length) {
+        return false;
+      }
+      for (int i=0; i<magic.length; i++) {
+        if (header[i] != magic[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** A cached detection result. */
+  private static final class Result {
+    private final Detector detector;
+    private final long length;
+    private final long lastModified;
+
+    Result(Detector detector, long length, long lastModified) {
+      this.detector = detector;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of open read-only {@link NIOFileHandle}s, keyed by file
+ * name, so that files which are opened and closed repeatedly are only
+ * opened once.  This matters most on network file systems, where opening
+ * a file is much slower than reading from one that is already open.
+ *
+ * {@link #lease(String, int)} returns a lease: an IRandomAccess with its
+ * own file pointer and byte order, which reads from the shared handle
+ * using positional reads.  Any number of leases on the same file may be
+ * open at once, from any number of threads.  Closing a lease releases it;
+ * once a file has no leases it stays open until it is evicted, least
+ * recently used first, to keep the number of open files within the
+ * pool's budget.  If every pooled file is leased when another file is
+ * requested, that file is opened outside the pool and closed along with
+ * its lease.
+ *
+ * A pooled file is reopened if its length or modification time has
+ * changed since it was opened.  Instances of HandlePool are thread-safe.
+ *
+ * @see Location#getHandle(String, boolean, boolean, int)
+ */
+public class HandlePool {
+
+  // -- Constants --
+
+  /** Default maximum number of open files. */
+  public static final int DEFAULT_MAX_OPEN = 64;
+
+  /** Default size of the read buffer of each lease, in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(HandlePool.class);
+
+  // -- Static fields --
+
+  private static HandlePool shared;
+
+  private static boolean sharedInitialized;
+
+  // -- Fields --
+
+  private final int maxOpen;
+
+  /** Pooled files, keyed by name, in order of last lease. */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  // -- Constructor --
+
+  /**
+   * @param maxOpen the maximum number of files kept open by the pool
+   */
+  public HandlePool(int maxOpen) {
+    if (maxOpen <= 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + maxOpen);
+    }
+    this.maxOpen = maxOpen;
+  }
+
+  // -- HandlePool API methods --
+
+  /**
+   * Returns the pool used by {@link Location#getHandle(String)} for files
+   * that are opened read-only.  Unless set with
+   * {@link #setShared(HandlePool)}, it is created on first use if the
+   * <code>handlePoolSize</code> system property gives the maximum number of
+   * open files.
+   *
+   * @return the shared pool, or null if pooling is disabled
+   */
+  public static synchronized HandlePool getShared() {
+    if (!sharedInitialized) {
+      sharedInitialized = true;
+      String size = System.getProperty("handlePoolSize");
+      if (size != null) {
+        try {
+          shared = new HandlePool(Integer.parseInt(size));
+        }
+        catch (IllegalArgumentException e) {
+          LOGGER.warn("Invalid handle pool size: {}", size);
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Replaces the shared pool.  The previous pool is not cleared, as leases
+   * on it may still be open.
+   *
+   * @param pool the new shared pool, or null to disable pooling
+   */
+  public static synchronized void setShared(HandlePool pool) {
+    shared = pool;
+    sharedInitialized = true;
+  }
+
+  /**
+   * Leases a file, opening it only if it is not already in the pool.
+   *
+   * @param id the name of the file
+   * @param bufferSize the size of the lease's read buffer; the default is
+   *        used if non-positive
+   * @return a read-only handle that must be closed when no longer needed
+   * @throws IOException if the file cannot be opened
+   */
+  public Lease lease(String id, int bufferSize) throws IOException {
+    if (bufferSize <= 0) {
+      bufferSize = DEFAULT_BUFFER_SIZE;
+    }
+    File file = new File(id);
+    long length = file.length();
+    long lastModified = file.lastModified();
+    synchronized (this) {
+      Entry entry = entries.get(id);
+      if (entry != null) {
+        if (entry.length == length && entry.lastModified == lastModified) {
+          hits++;
+          entry.leases++;
+          return new Lease(this, entry, bufferSize);
+        }
+        entries.remove(id);
+        retire(entry);
+      }
+      misses++;
+    }
+
+    NIOFileHandle handle = new NIOFileHandle(file, "r", bufferSize);
+    Entry entry = new Entry(id, handle, length, lastModified);
+    entry.leases++;
+    synchronized (this) {
+      Entry existing = entries.get(id);
+      if (existing != null && !existing.retired &&
+        existing.length == length && existing.lastModified == lastModified)
+      {
+        // another thread opened the same file in the meantime
+        existing.leases++;
+        entry.retired = true;
+        close(entry);
+        return new Lease(this, existing, bufferSize);
+      }
+      if (makeRoom()) {
+        entries.put(id, entry);
+      }
+      else {
+        entry.retired = true;
+      }
+    }
+    return new Lease(this, entry, bufferSize);
+  }
+
+  /** Closes all files that are not leased, and empties the pool. */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      retire(entry);
+    }
+    entries.clear();
+  }
+
+  /** @return the maximum number of files kept open by the pool */
+  public int getMaxOpen() {
+    return maxOpen;
+  }
+
+  /** @return the number of files currently in the pool */
+  public synchronized int getOpenCount() {
+    return entries.size();
+  }
+
+  /** @return the number of open leases on files in the pool */
+  public synchronized int getLeaseCount() {
+    int count = 0;
+    for (Entry entry : entries.values()) {
+      count += entry.leases;
+    }
+    return count;
+  }
+
+  /** @return the number of leases on files that were already open */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** @return the number of leases that required a file to be opened */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** @return the number of idle files closed to stay within budget */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Closes idle files, least recently leased first, until another file can
+   * be added.
+   *
+   * @return false if every file in the pool is leased
+   */
+  private boolean makeRoom() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size() >= maxOpen && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.leases == 0) {
+        it.remove();
+        evictions++;
+        retire(entry);
+      }
+    }
+    return entries.size() < maxOpen;
+  }
+
+  /** Called when a lease is closed. */
+  private synchronized void release(Entry entry) {
+    entry.leases--;
+    if (entry.retired && entry.leases == 0) {
+      close(entry);
+    }
+  }
+
+  /** Marks an entry as no longer pooled, closing it if it is idle. */
+  private void retire(Entry entry) {
+    entry.retired = true;
+    if (entry.leases == 0) {
+      close(entry);
+    }
+  }
+
+  private void close(Entry entry) {
+    try {
+      entry.handle.close();
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not close {}", entry.id, e);
+    }
+  }
+
+  // -- Helper classes --
+
+  /** An open file and the number of leases on it. */
+  private static final class Entry {
+    private final String id;
+    private final NIOFileHandle handle;
+    private final long length;
+    private final long lastModified;
+    private int leases;
+    private boolean retired;
+
+    Entry(String id, NIOFileHandle handle, long length, long lastModified) {
+      this.id = id;
+      this.handle = handle;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * A read-only handle on a pooled file.  Each lease buffers its own reads
+   * and has its own file pointer; closing it returns the file to the pool.
+   */
+  public static final class Lease extends AbstractBlockHandle {
+
+    private final HandlePool pool;
+
+    private final Entry entry;
+
+    private final long length;
+
+    private boolean closed;
+
+    private Lease(HandlePool pool, Entry entry, int bufferSize) {
+      super(bufferSize, 1);
+      this.pool = pool;
+      this.entry = entry;
+      this.length = entry.length;
+    }
+
+    /** @return the name of the leased file */
+    public String getId() {
+      return entry.id;
+    }
+
+    /* @see AbstractBlockHandle#fetch(long, byte[], int) */
+    @Override
+    protected void fetch(long offset, byte[] b, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Lease on " + entry.id + " is closed");
+      }
+      int n = 0;
+      while (n < len) {
+        int r = entry.handle.read(offset + n, b, n, len - n);
+        if (r <= 0) {
+          throw new IOException(entry.id + " was truncated");
+        }
+        n += r;
+      }
+    }
+
+    /* @see IRandomAccess.close() */
+    @Override
+    public void close() throws IOException {
+      synchronized (this) {
+        super.close();
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      pool.release(entry);
+    }
+
+    /* @see IRandomAccess.length() */
+    @Override
+    public long length() {
+      return length;
+    }
+
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Opens IRandomAccess handles for ids with a given URI scheme, such as
+ * <code>http</code> or <code>mem</code>.  Providers are registered with
+ * {@link HandleProviders}, either explicitly or by listing the
+ * implementation class in
+ * <code>META-INF/services/loci.common.HandleProvider</code>, and are used
+ * by {@link Location#getHandle(String, boolean, boolean, int)}.
+ *
+ * Implementations must be thread-safe, and loaded implementations must
+ * have a public no-argument constructor.
+ *
+ * @see HandleProviders
+ */
+public interface HandleProvider {
+
+  /** @return the lower-case URI schemes handled, without the ':' */
+  Set<String> getSchemes();
+
+  /** @return the properties of the handles opened by this provider */
+  Set<HandleCapability> getCapabilities();
+
+  /**
+   * Opens a handle.
+   *
+   * @param id the id to open, including the scheme
+   * @param writable true if the handle should be writable
+   * @param bufferSize the preferred buffer size; ignored when non-positive
+   * @return a new handle; providers that do not support writing either
+   *         throw an exception or return a read-only handle when
+   *         <code>writable</code> is true
+   * @throws IOException if the id is invalid or the handle cannot be opened
+   */
+  IRandomAccess open(String id, boolean writable, int bufferSize)
+    throws IOException;
+
+}
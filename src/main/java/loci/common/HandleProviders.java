@@ -0,0 +1,515 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link HandleProvider}s, keyed by URI scheme.  The registry
+ * returned by {@link #getInstance()} contains the built-in providers for
+ * <code>file</code>, <code>http</code>/<code>https</code>,
+ * <code>mem</code>, <code>zip</code> and <code>obj</code> ids, followed by
+ * any providers listed in
+ * <code>META-INF/services/loci.common.HandleProvider</code> on the class
+ * path.  A provider registered later replaces earlier providers for the
+ * same scheme, so that loaded providers can override the built-in ones.
+ *
+ * Ids without a registered scheme are treated as local file paths by
+ * {@link Location#getHandle(String, boolean, boolean, int)}.
+ *
+ * @see HandleProvider
+ */
+public class HandleProviders {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(HandleProviders.class);
+
+  /** Capabilities of local files opened with {@link NIOFileHandle}. */
+  public static final Set<HandleCapability> FILE_CAPABILITIES =
+    Collections.unmodifiableSet(EnumSet.allOf(HandleCapability.class));
+
+  /**
+   * Capabilities of local files leased from {@link HandlePool#getShared()},
+   * which cannot be memory-mapped.
+   */
+  public static final Set<HandleCapability> POOLED_FILE_CAPABILITIES =
+    Collections.unmodifiableSet(EnumSet.of(HandleCapability.SEEKABLE,
+      HandleCapability.POSITIONAL_READ, HandleCapability.WRITABLE));
+
+  /**
+   * Capabilities of compressed local files, which are opened with stream
+   * handles such as {@link GZipHandle} by {@link HandleDetector}.
+   */
+  public static final Set<HandleCapability> ARCHIVE_CAPABILITIES =
+    Collections.unmodifiableSet(EnumSet.of(HandleCapability.SEEKABLE));
+
+  // -- Static fields --
+
+  private static HandleProviders instance;
+
+  // -- Fields --
+
+  private final Map<String, HandleProvider> providers =
+    new ConcurrentHashMap<String, HandleProvider>();
+
+  // -- HandleProviders API methods --
+
+  /**
+   * @return the registry used by {@link Location}, which is populated on
+   *         first use
+   */
+  public static synchronized HandleProviders getInstance() {
+    if (instance == null) {
+      HandleProviders registry = new HandleProviders();
+      registry.register(new FileProvider());
+      registry.register(new HTTPProvider());
+      registry.register(new MemoryProvider());
+      registry.register(new ZipProvider());
+      registry.register(new ObjectStoreProvider());
+      registry.loadServices();
+      instance = registry;
+    }
+    return instance;
+  }
+
+  /**
+   * Registers a provider for each of its schemes, replacing any provider
+   * previously registered for the same scheme.
+   *
+   * @param provider the provider to register
+   */
+  public void register(HandleProvider provider) {
+    for (String scheme : provider.getSchemes()) {
+      providers.put(scheme.toLowerCase(), provider);
+    }
+  }
+
+  /**
+   * Removes a provider from each of the schemes for which it is
+   * registered.
+   *
+   * @param provider the provider to remove
+   * @return true if the provider was registered for any scheme
+   */
+  public boolean unregister(HandleProvider provider) {
+    return providers.values().removeAll(Collections.singleton(provider));
+  }
+
+  /** @return the schemes for which a provider is registered */
+  public Set<String> getSchemes() {
+    return new TreeSet<String>(providers.keySet());
+  }
+
+  /**
+   * @param scheme a URI scheme, without the ':'
+   * @return the provider registered for the scheme, or null
+   */
+  public HandleProvider getProvider(String scheme) {
+    return scheme == null ? null : providers.get(scheme.toLowerCase());
+  }
+
+  /**
+   * @param id a URI or local path
+   * @return the provider registered for the scheme of <code>id</code>, or
+   *         null if it has no scheme or no provider is registered for it
+   */
+  public HandleProvider findProvider(String id) {
+    return getProvider(getScheme(id));
+  }
+
+  /**
+   * Returns the capabilities of the handle that
+   * {@link Location#getHandle(String)} opens for an id.  Local paths and
+   * <code>file:</code> URIs are checked with {@link HandleDetector}, which
+   * may read the first bytes of the file.
+   *
+   * @param id a URI or local path
+   * @return the capabilities of handles opened for <code>id</code>:
+   *         {@link #ARCHIVE_CAPABILITIES} for compressed local files,
+   *         {@link #POOLED_FILE_CAPABILITIES} for other local files if a
+   *         shared {@link HandlePool} is set, and otherwise
+   *         {@link #FILE_CAPABILITIES}
+   */
+  public Set<HandleCapability> getCapabilities(String id) {
+    HandleProvider provider = findProvider(id);
+    if (provider instanceof FileProvider) {
+      id = FileProvider.toPath(id);
+    }
+    else if (provider != null) {
+      return provider.getCapabilities();
+    }
+    try {
+      if (HandleDetector.getInstance().detect(id) != null) {
+        return ARCHIVE_CAPABILITIES;
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not detect the type of {}", id, e);
+    }
+    return HandlePool.getShared() != null ?
+      POOLED_FILE_CAPABILITIES : FILE_CAPABILITIES;
+  }
+
+  /**
+   * Returns the URI scheme of an id.  A single letter followed by ':' is
+   * taken to be a Windows drive letter rather than a scheme.
+   *
+   * @param id a URI or local path
+   * @return the lower-case scheme without the ':', or null if there is none
+   */
+  public static String getScheme(String id) {
+    int colon = id.indexOf(':');
+    if (colon < 2 || !Character.isLetter(id.charAt(0))) {
+      return null;
+    }
+    for (int i=1; i<colon; i++) {
+      char c = id.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') {
+        return null;
+      }
+    }
+    return id.substring(0, colon).toLowerCase();
+  }
+
+  // -- Helper methods --
+
+  /** Registers the providers found by {@link ServiceLoader}. */
+  private void loadServices() {
+    Iterator<HandleProvider> it =
+      ServiceLoader.load(HandleProvider.class).iterator();
+    while (true) {
+      try {
+        if (!it.hasNext()) break;
+        HandleProvider provider = it.next();
+        LOGGER.debug("Loaded handle provider {} for {}",
+          provider.getClass().getName(), provider.getSchemes());
+        register(provider);
+      }
+      catch (ServiceConfigurationError e) {
+        LOGGER.warn("Could not load handle provider", e);
+      }
+    }
+  }
+
+  private static Set<String> schemes(String... schemes) {
+    return Collections.unmodifiableSet(
+      new HashSet<String>(Arrays.asList(schemes)));
+  }
+
+  /** Returns the part of an id after the scheme and any leading "//". */
+  private static String getPath(String id) {
+    String path = id.substring(id.indexOf(':') + 1);
+    return path.startsWith("//") ? path.substring(2) : path;
+  }
+
+  // -- Built-in providers --
+
+  /**
+   * Opens <code>file:</code> URIs as local files, in the same way as a
+   * plain path, including the detection of compressed files.
+   * {@link Location#getHandle(String, boolean, boolean, int)} converts these
+   * URIs to paths itself, so that archive detection can be turned off.
+   */
+  public static class FileProvider implements HandleProvider {
+
+    /**
+     * @param id a <code>file:</code> URI
+     * @return the local path named by the URI
+     */
+    static String toPath(String id) {
+      try {
+        return new File(new URI(id)).getPath();
+      }
+      catch (URISyntaxException e) {
+        return id.substring("file:".length());
+      }
+      catch (IllegalArgumentException e) {
+        return id.substring("file:".length());
+      }
+    }
+
+    /* @see HandleProvider#getSchemes() */
+    @Override
+    public Set<String> getSchemes() {
+      return schemes("file");
+    }
+
+    /* @see HandleProvider#getCapabilities() */
+    @Override
+    public Set<HandleCapability> getCapabilities() {
+      return FILE_CAPABILITIES;
+    }
+
+    /* @see HandleProvider#open(String, boolean, int) */
+    @Override
+    public IRandomAccess open(String id, boolean writable, int bufferSize)
+      throws IOException
+    {
+      return Location.getHandle(toPath(id), writable, true, bufferSize);
+    }
+  }
+
+  /**
+   * Opens HTTP and HTTPS URLs with {@link HTTPRangeHandle} if the server
+   * supports range requests, and otherwise with {@link URLHandle}.  Handles
+   * are always read-only.  Positional reads are not advertised, as they
+   * are not safe for concurrent use on a URLHandle.
+   */
+  public static class HTTPProvider implements HandleProvider {
+
+    /* @see HandleProvider#getSchemes() */
+    @Override
+    public Set<String> getSchemes() {
+      return schemes("http", "https");
+    }
+
+    /* @see HandleProvider#getCapabilities() */
+    @Override
+    public Set<HandleCapability> getCapabilities() {
+      return EnumSet.of(HandleCapability.SEEKABLE);
+    }
+
+    /* @see HandleProvider#open(String, boolean, int) */
+    @Override
+    public IRandomAccess open(String id, boolean writable, int bufferSize)
+      throws IOException
+    {
+      try {
+        return new HTTPRangeHandle(id);
+      }
+      catch (HandleException e) {
+        LOGGER.debug("Range requests are not supported for {}", id, e);
+        return CachedHandle.wrap(new URLHandle(id), "url:" + id);
+      }
+    }
+  }
+
+  /**
+   * Opens <code>mem:name</code> ids as byte arrays held in memory.
+   * Read-only handles share the stored array; writable handles work on a
+   * copy, which replaces the stored array when the handle is closed.
+   */
+  public static class MemoryProvider implements HandleProvider {
+
+    private static final Map<String, byte[]> FILES =
+      new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Stores an in-memory file.
+     *
+     * @param name the name of the file, without the <code>mem:</code> prefix
+     * @param bytes the contents of the file, which are not copied
+     */
+    public static void put(String name, byte[] bytes) {
+      FILES.put(name, bytes);
+    }
+
+    /**
+     * @param name the name of the file, without the <code>mem:</code> prefix
+     * @return the contents of the file, or null if it does not exist
+     */
+    public static byte[] get(String name) {
+      return FILES.get(name);
+    }
+
+    /**
+     * Removes an in-memory file.
+     *
+     * @param name the name of the file, without the <code>mem:</code> prefix
+     * @return true if the file existed
+     */
+    public static boolean remove(String name) {
+      return FILES.remove(name) != null;
+    }
+
+    /* @see HandleProvider#getSchemes() */
+    @Override
+    public Set<String> getSchemes() {
+      return schemes("mem");
+    }
+
+    /* @see HandleProvider#getCapabilities() */
+    @Override
+    public Set<HandleCapability> getCapabilities() {
+      return EnumSet.of(HandleCapability.SEEKABLE,
+        HandleCapability.POSITIONAL_READ, HandleCapability.WRITABLE);
+    }
+
+    /* @see HandleProvider#open(String, boolean, int) */
+    @Override
+    public IRandomAccess open(String id, boolean writable, int bufferSize)
+      throws IOException
+    {
+      final String name = getPath(id);
+      byte[] bytes = FILES.get(name);
+      if (!writable) {
+        if (bytes == null) {
+          throw new FileNotFoundException(id);
+        }
+        return new ByteArrayHandle(bytes);
+      }
+      ByteArrayHandle handle = new ByteArrayHandle() {
+        @Override
+        public void close() {
+          FILES.put(name, Arrays.copyOf(getBytes(), buffer.limit()));
+        }
+      };
+      if (bytes != null) {
+        handle.write(bytes);
+        handle.seek(0);
+      }
+      return handle;
+    }
+  }
+
+  /**
+   * Opens entries of Zip files, given as
+   * <code>zip:archive.zip!/entry/name</code>.  Without an entry name, the
+   * archive is opened as by {@link ZipHandle#ZipHandle(String)}.  Handles
+   * are always read-only.
+   */
+  public static class ZipProvider implements HandleProvider {
+
+    /* @see HandleProvider#getSchemes() */
+    @Override
+    public Set<String> getSchemes() {
+      return schemes("zip");
+    }
+
+    /* @see HandleProvider#getCapabilities() */
+    @Override
+    public Set<HandleCapability> getCapabilities() {
+      return EnumSet.noneOf(HandleCapability.class);
+    }
+
+    /* @see HandleProvider#open(String, boolean, int) */
+    @Override
+    public IRandomAccess open(String id, boolean writable, int bufferSize)
+      throws IOException
+    {
+      String path = id.substring("zip:".length());
+      int separator = path.indexOf("!/");
+      if (separator < 0) {
+        return new ZipHandle(path);
+      }
+      return new ZipHandle(path.substring(0, separator),
+        new ZipEntry(path.substring(separator + 2)));
+    }
+  }
+
+  /**
+   * A local stand-in for an object store, which opens
+   * <code>obj://bucket/key</code> ids as the file <code>bucket/key</code>
+   * under a root directory.  The root is taken from the
+   * <code>objectStoreRoot</code> system property, or else is the default
+   * temporary directory.  As in a real object store, objects are
+   * read-only and cannot be memory-mapped.
+   */
+  public static class ObjectStoreProvider implements HandleProvider {
+
+    private static volatile File root;
+
+    /**
+     * Sets the directory that contains the buckets.
+     *
+     * @param dir the root directory, or null for the default
+     */
+    public static void setRoot(File dir) {
+      root = dir;
+    }
+
+    /** @return the directory that contains the buckets */
+    public static File getRoot() {
+      File dir = root;
+      if (dir == null) {
+        dir = new File(System.getProperty("objectStoreRoot",
+          System.getProperty("java.io.tmpdir")));
+      }
+      return dir;
+    }
+
+    /* @see HandleProvider#getSchemes() */
+    @Override
+    public Set<String> getSchemes() {
+      return schemes("obj");
+    }
+
+    /* @see HandleProvider#getCapabilities() */
+    @Override
+    public Set<HandleCapability> getCapabilities() {
+      return EnumSet.of(HandleCapability.SEEKABLE,
+        HandleCapability.POSITIONAL_READ);
+    }
+
+    /* @see HandleProvider#open(String, boolean, int) */
+    @Override
+    public IRandomAccess open(String id, boolean writable, int bufferSize)
+      throws IOException
+    {
+      if (writable) {
+        throw new HandleException("Objects are read-only: " + id);
+      }
+      String path = getPath(id);
+      if (path.isEmpty() || path.contains("..")) {
+        throw new IOException("Invalid object id: " + id);
+      }
+      File file = new File(getRoot(), path);
+      if (bufferSize > 0) {
+        return new NIOFileHandle(file, "r", bufferSize);
+      }
+      return new NIOFileHandle(file, "r");
+    }
+  }
+
+}
@@ -37,6 +37,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 
 /**
  * Interface for random access into structures (e.g., files or arrays).
@@ -129,6 +130,128 @@ public interface IRandomAccess extends DataInput, DataOutput {
    */
   int read(ByteBuffer buffer, int offset, int len) throws IOException;
 
+  /**
+   * Reads up to len bytes of data, starting at the given offset within this
+   * stream, into an array of bytes.  The current file pointer is neither
+   * used nor changed, so implementations without shared mutable state
+   * (e.g. {@link NIOFileHandle} and {@link ByteArrayHandle}) allow
+   * concurrent positional reads from multiple threads.
+   *
+   * @param pos the offset within this stream from which to start reading;
+   *        expected to be non-negative
+   * @param b the array to fill from this stream
+   * @param off the offset in <code>b</code> from which to start filling
+   * @param len the maximum number of bytes to read
+   * @return the total number of bytes read into the array, which may be
+   *         less than <code>len</code> if the end of the stream is reached,
+   *         or -1 if <code>pos</code> is at or beyond the end of the stream
+   * @throws IOException if reading is not possible
+   */
+  int read(long pos, byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Reads a sequence of bytes, starting at the given offset within this
+   * stream, into the remaining space of the given ByteBuffer.  The buffer's
+   * position is advanced by the number of bytes read.  The current file
+   * pointer is neither used nor changed.
+   *
+   * @param pos the offset within this stream from which to start reading;
+   *        expected to be non-negative
+   * @param dst the ByteBuffer to fill from this stream
+   * @return the total number of bytes read into the buffer, or -1 if
+   *         <code>pos</code> is at or beyond the end of the stream
+   * @throws IOException if reading is not possible
+   * @see #read(long, byte[], int, int)
+   */
+  int read(long pos, ByteBuffer dst) throws IOException;
+
+  /**
+   * Reads a batch of byte ranges, each into its own destination array.
+   * Requests may be given in any order; implementations sort them and
+   * coalesce nearby ranges so that as few underlying reads as possible are
+   * issued.  The current file pointer is not changed.
+   *
+   * @param requests the ranges to read
+   * @throws java.io.EOFException if any range extends beyond the end of
+   *         the stream
+   * @throws IOException if reading is not possible
+   * @see ReadRequest#coalesce(List, int, int)
+   */
+  void readBatch(List<ReadRequest> requests) throws IOException;
+
+  /**
+   * Reads {@link #getOrder() byte-ordered} 16-bit values from the current
+   * position into an array, and advances the file pointer past them.
+   * This is equivalent to, but much faster than, calling
+   * {@link #readShort()} for each value.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws java.io.EOFException if fewer than <code>len</code> values
+   *         remain in the stream
+   * @throws IOException if reading is not possible
+   */
+  void readShorts(short[] dst, int off, int len) throws IOException;
+
+  /**
+   * Reads {@link #getOrder() byte-ordered} 32-bit values from the current
+   * position into an array, and advances the file pointer past them.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws java.io.EOFException if fewer than <code>len</code> values
+   *         remain in the stream
+   * @throws IOException if reading is not possible
+   * @see #readShorts(short[], int, int)
+   */
+  void readInts(int[] dst, int off, int len) throws IOException;
+
+  /**
+   * Reads {@link #getOrder() byte-ordered} 64-bit values from the current
+   * position into an array, and advances the file pointer past them.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws java.io.EOFException if fewer than <code>len</code> values
+   *         remain in the stream
+   * @throws IOException if reading is not possible
+   * @see #readShorts(short[], int, int)
+   */
+  void readLongs(long[] dst, int off, int len) throws IOException;
+
+  /**
+   * Reads {@link #getOrder() byte-ordered} 32-bit floating point values
+   * from the current position into an array, and advances the file
+   * pointer past them.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws java.io.EOFException if fewer than <code>len</code> values
+   *         remain in the stream
+   * @throws IOException if reading is not possible
+   * @see #readShorts(short[], int, int)
+   */
+  void readFloats(float[] dst, int off, int len) throws IOException;
+
+  /**
+   * Reads {@link #getOrder() byte-ordered} 64-bit floating point values
+   * from the current position into an array, and advances the file
+   * pointer past them.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws java.io.EOFException if fewer than <code>len</code> values
+   *         remain in the stream
+   * @throws IOException if reading is not possible
+   * @see #readShorts(short[], int, int)
+   */
+  void readDoubles(double[] dst, int off, int len) throws IOException;
+
   /**
    * Sets the stream pointer offset, measured from the beginning
    * of this stream, at which the next read or write occurs.
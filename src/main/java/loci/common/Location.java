@@ -40,16 +40,31 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Pseudo-extension of java.io.File that supports reading over HTTP (among
@@ -61,6 +76,10 @@ public class Location {
   // -- Constants --
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Location.class);
+
+  /** Default maximum number of cached directory listings. */
+  public static final int DEFAULT_MAX_CACHED_LISTINGS = 100000;
+
   private static final boolean IS_WINDOWS =
     System.getProperty("os.name").startsWith("Windows");
 
@@ -88,8 +107,53 @@ public class Location {
       this.time = time;
     }
   }
-  private static final Map<String, ListingsResult> fileListings =
-    new MapMaker().makeMap();  // like Java's ConcurrentHashMap
+
+  /** The attributes of a file, as of a given time. */
+  private static final class FileAttributes {
+    private final boolean exists;
+    private final boolean directory;
+    private final boolean file;
+    private final long length;
+    private final long lastModified;
+    private final long time = System.nanoTime();
+
+    FileAttributes(boolean exists, boolean directory, boolean file,
+      long length, long lastModified)
+    {
+      this.exists = exists;
+      this.directory = directory;
+      this.file = file;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private static volatile Cache<String, ListingsResult> fileListings =
+    newListingsCache(DEFAULT_MAX_CACHED_LISTINGS);
+
+  private static volatile int maxCachedListings = DEFAULT_MAX_CACHED_LISTINGS;
+
+  private static volatile boolean refreshListings = false;
+
+  /** Age at which listings are refreshed, or -1 for half the timeout. */
+  private static volatile long refreshNanos = -1;
+
+  private static final AtomicLong listingHits = new AtomicLong();
+
+  private static final AtomicLong listingMisses = new AtomicLong();
+
+  /** Keys of the listings that are being refreshed in the background. */
+  private static final Set<String> refreshing =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private static final ExecutorService REFRESHER =
+    Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+      .setNameFormat("Location-refresh-%d").setDaemon(true).build());
+
+  private static volatile boolean cacheAttributes = false;
+
+  private static volatile Cache<String, FileAttributes> fileAttributes =
+    newAttributesCache(DEFAULT_MAX_CACHED_LISTINGS);
 
   // -- Fields --
 
@@ -167,8 +231,13 @@ public class Location {
    */
   public static void reset() {
     cacheListings = false;
+    cacheAttributes = false;
     cacheNanos = 60L * 60L * 1000L * 1000L * 1000L;
-    fileListings.clear();
+    refreshListings = false;
+    refreshNanos = -1;
+    setCacheDirectoryMaxSize(DEFAULT_MAX_CACHED_LISTINGS);
+    listingHits.set(0);
+    listingMisses.set(0);
     getIdMap().clear();
   }
 
@@ -193,7 +262,28 @@ public class Location {
   }
 
   /**
-   * Cache directory listings for this many seconds before relisting.
+   * Turn cacheing of file attributes on or off.
+   * Cacheing is turned off by default.
+   *
+   * When on, {@link #exists()}, {@link #isDirectory()}, {@link #isFile()},
+   * {@link #length()} and {@link #lastModified()} are answered from a single
+   * read of the file's attributes, which is kept for the same time as
+   * directory listings and is discarded by
+   * {@link #clearDirectoryListingsCache()}.  This avoids repeated
+   * round trips when the same files are checked many times on a network
+   * share.  Attributes of a file are discarded when it is created or
+   * deleted through this class, but not when it is changed by other means.
+   *
+   * @param cache - true to turn cacheing on, false to leave it off.
+   * @see #setCacheDirectoryTimeout(double)
+   */
+  public static void cacheFileAttributes(boolean cache) {
+    cacheAttributes = cache;
+  }
+
+  /**
+   * Cache directory listings and file attributes for this many seconds
+   * before relisting.
    *
    * @param sec - use the cache if a directory list was done within this many
    * seconds.
@@ -203,26 +293,103 @@ public class Location {
   }
 
   /**
-   * Clear the directory listings cache.
+   * Limit the number of cached directory listings, and of cached file
+   * attributes.  When the limit is reached, the least recently used entries
+   * are discarded.  Changing the limit clears the caches.
+   *
+   * @param size - the maximum number of listings to cache.
+   */
+  public static void setCacheDirectoryMaxSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Negative cache size: " + size);
+    }
+    maxCachedListings = size;
+    fileListings = newListingsCache(size);
+    fileAttributes = newAttributesCache(size);
+  }
+
+  /**
+   * @return the maximum number of cached directory listings, or file
+   * attributes.
+   */
+  public static int getCacheDirectoryMaxSize() {
+    return maxCachedListings;
+  }
+
+  /**
+   * Turn background refreshing of cached directory listings on or off.
+   * When on, a listing that is used after more than half of the timeout
+   * (or the age set with {@link #setCacheDirectoryRefreshAge(double)}) has
+   * passed is listed again in the background, so that directories which are
+   * listed often do not expire and have to be listed by the caller.
+   * Refreshing is turned off by default.
+   *
+   * @param refresh - true to refresh listings in the background.
+   * @see #setCacheDirectoryRefreshAge(double)
+   */
+  public static void refreshDirectoryListings(boolean refresh) {
+    refreshListings = refresh;
+  }
+
+  /**
+   * Set the age after which a cached directory listing is refreshed in the
+   * background, if refreshing is on.  By default, this is half of the
+   * timeout.
+   *
+   * @param sec - refresh listings that are older than this many seconds,
+   * or a negative number for half of the timeout.
+   * @see #refreshDirectoryListings(boolean)
+   */
+  public static void setCacheDirectoryRefreshAge(double sec) {
+    refreshNanos = sec < 0 ? -1 : (long) (sec * 1000. * 1000. * 1000.);
+  }
+
+  /**
+   * @return the number of directory listings that were found in the cache.
+   */
+  public static long getDirectoryListingsHitCount() {
+    return listingHits.get();
+  }
+
+  /**
+   * @return the number of directory listings that were not found in the
+   * cache, or had expired, while cacheing was on.
+   */
+  public static long getDirectoryListingsMissCount() {
+    return listingMisses.get();
+  }
+
+  /**
+   * Clear the directory listings cache, and the file attributes cache.
    *
    * Do this if directory contents might have changed in a significant way.
    */
   public static void clearDirectoryListingsCache() {
-    fileListings.clear();
+    fileListings.invalidateAll();
+    fileAttributes.invalidateAll();
   }
 
   /**
-   * Remove any cached directory listings that have expired.
+   * Remove any cached directory listings and file attributes that have
+   * expired.  Expired entries are also replaced as they are used, so calling
+   * this is only needed to release memory sooner.
    */
   public static void cleanStaleCacheEntries() {
     long t = System.nanoTime() - cacheNanos;
     final Iterator<ListingsResult> cacheValues =
-      fileListings.values().iterator();
+      fileListings.asMap().values().iterator();
     while (cacheValues.hasNext()) {
       if (cacheValues.next().time < t) {
         cacheValues.remove();
       }
     }
+    final Iterator<FileAttributes> attributes =
+      fileAttributes.asMap().values().iterator();
+    while (attributes.hasNext()) {
+      if (attributes.next().time < t) {
+        attributes.remove();
+      }
+    }
   }
 
   /**
@@ -360,6 +527,7 @@ public class Location {
    * @param writable true if the returned IRandomAccess should have write permission
    * @param allowArchiveHandles true if checks for compressed/archive file types
    *        (e.g. Zip, GZip, BZip2) should be enabled
+   *        (see {@link HandleDetector})
    * @return a previously mapped IRandomAccess, or a new IRandomAccess
    *         according to the name's type (URL, filesystem path, etc.)
    * @throws IOException if a valid IRandomAccess cannot be created
@@ -379,10 +547,17 @@ public class Location {
    * @param writable true if the returned IRandomAccess should have write permission
    * @param allowArchiveHandles true if checks for compressed/archive file types
    *        (e.g. Zip, GZip, BZip2) should be enabled
+   *        (see {@link HandleDetector})
    * @param bufferSize the buffer size to use when constructing a NIOFileHandle.
    *        Ignored when non-positive.
    * @return a previously mapped IRandomAccess, or a new IRandomAccess
-   *         according to the name's type (URL, filesystem path, etc.)
+   *         according to the name's type (URL, filesystem path, etc.).
+   *         Ids with a URI scheme that is registered with
+   *         {@link HandleProviders} are opened by that provider.
+   *         Compressed files and URLs without range support are wrapped in
+   *         a {@link CachedHandle} if {@link TieredCache#getShared()} is
+   *         not null.  Files opened read-only are leased from
+   *         {@link HandlePool#getShared()}, if it is not null.
    * @throws IOException if a valid IRandomAccess cannot be created
    * @see IRandomAccess
    */
@@ -395,25 +570,35 @@ public class Location {
       LOGGER.trace("no handle was mapped for this ID");
       String mapId = getMappedId(id);
 
-      if (id.startsWith("http://") || id.startsWith("https://")) {
-        handle = new URLHandle(mapId);
+      HandleProvider provider =
+        HandleProviders.getInstance().findProvider(mapId);
+      if (provider instanceof HandleProviders.FileProvider) {
+        // open the local path here, so that allowArchiveHandles is honoured
+        return getHandle(HandleProviders.FileProvider.toPath(mapId),
+          writable, allowArchiveHandles, bufferSize);
       }
-      else if (allowArchiveHandles && ZipHandle.isZipFile(mapId)) {
-        handle = new ZipHandle(mapId);
-      }
-      else if (allowArchiveHandles && GZipHandle.isGZipFile(mapId)) {
-        handle = new GZipHandle(mapId);
-      }
-      else if (allowArchiveHandles && BZip2Handle.isBZip2File(mapId)) {
-        handle = new BZip2Handle(mapId);
+      if (provider != null) {
+        handle = provider.open(mapId, writable, bufferSize);
       }
       else {
-        if (bufferSize > 0) {
-          handle = new NIOFileHandle(
-            new File(mapId), writable ? "rw" : "r", bufferSize);
+        if (allowArchiveHandles) {
+          handle = HandleDetector.getInstance().open(mapId);
         }
-        else {
-          handle = new NIOFileHandle(mapId, writable ? "rw" : "r");
+        if (handle == null) {
+          if (!writable && HandlePool.getShared() != null) {
+            handle = HandlePool.getShared().lease(mapId, bufferSize);
+          }
+          else if (bufferSize > 0) {
+            handle = new NIOFileHandle(
+              new File(mapId), writable ? "rw" : "r", bufferSize);
+          }
+          else {
+            handle = new NIOFileHandle(mapId, writable ? "rw" : "r");
+          }
+          if (writable) {
+            // opening the file may have created it
+            forgetAttributes(new File(mapId).getAbsolutePath());
+          }
         }
       }
     }
@@ -452,15 +637,38 @@ public class Location {
    */
   public String[] list(boolean noHiddenFiles) {
     LOGGER.trace("list({})", noHiddenFiles);
+    if (!cacheListings) {
+      return listUncached(noHiddenFiles);
+    }
     String key = getAbsolutePath() + Boolean.toString(noHiddenFiles);
-    String [] result = null;
-    if (cacheListings) {
-      cleanStaleCacheEntries();
-      ListingsResult listingsResult = fileListings.get(key);
-      if (listingsResult != null) {
+    Cache<String, ListingsResult> cache = fileListings;
+    ListingsResult listingsResult = cache.getIfPresent(key);
+    if (listingsResult != null) {
+      long age = System.nanoTime() - listingsResult.time;
+      if (age < cacheNanos) {
+        listingHits.incrementAndGet();
+        long refreshAge = refreshNanos < 0 ? cacheNanos / 2 : refreshNanos;
+        if (refreshListings && age > refreshAge) {
+          refresh(cache, key, noHiddenFiles);
+        }
         return listingsResult.listing;
       }
+      cache.asMap().remove(key, listingsResult);
+    }
+    listingMisses.incrementAndGet();
+    String[] result = listUncached(noHiddenFiles);
+    if (result != null) {
+      cache.put(key, new ListingsResult(result, System.nanoTime()));
     }
+    return result;
+  }
+
+  /**
+   * Lists the files in this directory without using the cache.
+   *
+   * @see #list(boolean)
+   */
+  private String[] listUncached(boolean noHiddenFiles) {
     final List<String> files = new ArrayList<String>();
     if (isURL) {
       try {
@@ -506,27 +714,212 @@ public class Location {
       }
     }
     else {
-      if (file == null) return null;
-      String[] f = file.list();
-      if (f == null) return null;
-      String path = file.getAbsolutePath();
-      for (String name : f) {
-        if (!noHiddenFiles || !(name.startsWith(".") ||
-          new Location(path, name).isHidden()))
-        {
-          files.add(name);
+      if (file == null || file.getPath().isEmpty()) return null;
+      try {
+        DirectoryStream<DirectoryEntry> entries =
+          newDirectoryStream(null, noHiddenFiles);
+        try {
+          for (DirectoryEntry entry : entries) {
+            files.add(entry.getName());
+          }
+        }
+        finally {
+          entries.close();
         }
       }
+      catch (IOException e) {
+        LOGGER.trace("Could not retrieve directory listing", e);
+        return null;
+      }
+      catch (DirectoryIteratorException e) {
+        LOGGER.trace("Could not retrieve directory listing", e);
+        return null;
+      }
     }
 
-    result = files.toArray(new String[files.size()]);
-    if (cacheListings) {
-      fileListings.put(key, new ListingsResult(result, System.nanoTime()));
-    }
     LOGGER.trace("  returning {} files", files.size());
-    return result;
+    return files.toArray(new String[files.size()]);
   }
 
+  /**
+   * Opens a stream over the entries of this directory.  Unlike
+   * {@link #list(boolean)}, the entries are read lazily as the stream is
+   * iterated, and each entry gives access to its attributes without
+   * creating another Location.  The stream is not cached, and must be
+   * closed after use.
+   *
+   * @param glob a pattern that entry names must match, such as
+   *        <code>"*.{tif,tiff}"</code>, or null to include all entries
+   * @param noHiddenFiles true if hidden files should be omitted
+   * @return a stream over the matching entries, in no particular order
+   * @throws IOException if this is not a directory on disk, or it cannot be
+   *   read
+   * @see java.nio.file.FileSystem#getPathMatcher(String)
+   * @see java.nio.file.Files#newDirectoryStream(Path)
+   */
+  public DirectoryStream<DirectoryEntry> newDirectoryStream(String glob,
+    final boolean noHiddenFiles) throws IOException
+  {
+    if (isURL) throw new IOException("Unimplemented");
+    final Path dir;
+    try {
+      dir = file.toPath();
+    }
+    catch (InvalidPathException e) {
+      throw new IOException(e);
+    }
+    final PathMatcher matcher = glob == null ? null :
+      dir.getFileSystem().getPathMatcher("glob:" + glob);
+    DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
+      @Override
+      public boolean accept(Path entry) {
+        Path name = entry.getFileName();
+        if (matcher != null && !matcher.matches(name)) return false;
+        return !noHiddenFiles || !isHidden(entry);
+      }
+    };
+    return new EntryStream(Files.newDirectoryStream(dir, filter));
+  }
+
+  /**
+   * Lists this directory again in the background, and replaces the cached
+   * listing.  Nothing is done if a refresh of the same listing is pending.
+   */
+  private void refresh(final Cache<String, ListingsResult> cache,
+    final String key, final boolean noHiddenFiles)
+  {
+    if (!refreshing.add(key)) {
+      return;
+    }
+    REFRESHER.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          String[] result = listUncached(noHiddenFiles);
+          if (result != null) {
+            cache.put(key, new ListingsResult(result, System.nanoTime()));
+          }
+        }
+        finally {
+          refreshing.remove(key);
+        }
+      }
+    });
+  }
+
+  private static Cache<String, ListingsResult> newListingsCache(int size) {
+    return CacheBuilder.newBuilder().maximumSize(size).build();
+  }
+
+  private static Cache<String, FileAttributes> newAttributesCache(int size) {
+    return CacheBuilder.newBuilder().maximumSize(size).build();
+  }
+
+  /**
+   * Returns the cached attributes of this file, reading them if they are
+   * missing or have expired.
+   *
+   * @return the attributes, or null if attribute cacheing is off
+   */
+  private FileAttributes getAttributes() {
+    if (!cacheAttributes) {
+      return null;
+    }
+    String key = getAbsolutePath();
+    Cache<String, FileAttributes> cache = fileAttributes;
+    FileAttributes attributes = cache.getIfPresent(key);
+    if (attributes == null ||
+      System.nanoTime() - attributes.time >= cacheNanos)
+    {
+      attributes = isURL ? readURLAttributes() : readFileAttributes();
+      cache.put(key, attributes);
+    }
+    return attributes;
+  }
+
+  /**
+   * Caches attributes that were read by a {@link DirectoryEntry}, if
+   * attribute cacheing is on.
+   */
+  static void putAttributes(String path, BasicFileAttributes attrs) {
+    if (cacheAttributes) {
+      fileAttributes.put(path, new FileAttributes(true, attrs.isDirectory(),
+        attrs.isRegularFile(), attrs.size(),
+        attrs.lastModifiedTime().toMillis()));
+    }
+  }
+
+  /** Checks whether a directory entry is hidden, as in {@link #isHidden()}. */
+  private static boolean isHidden(Path entry) {
+    if (entry.getFileName().toString().startsWith(".")) {
+      return true;
+    }
+    if (IS_WINDOWS) {
+      try {
+        return Files.isHidden(entry);
+      }
+      catch (IOException e) {
+        LOGGER.trace("Could not check whether {} is hidden", entry, e);
+      }
+    }
+    return false;
+  }
+
+  /** Discards the cached attributes of this file. */
+  private void forgetAttributes() {
+    forgetAttributes(getAbsolutePath());
+  }
+
+  /**
+   * Discards the cached attributes of a file that has been changed, e.g.
+   * by writing to it through a handle.
+   *
+   * @param path the absolute path of the file
+   */
+  static void forgetAttributes(String path) {
+    if (cacheAttributes) {
+      fileAttributes.invalidate(path);
+    }
+  }
+
+  /** Reads all attributes of a file on disk with a single call. */
+  private FileAttributes readFileAttributes() {
+    try {
+      BasicFileAttributes attrs =
+        Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return new FileAttributes(true, attrs.isDirectory(),
+        attrs.isRegularFile(), attrs.size(),
+        attrs.lastModifiedTime().toMillis());
+    }
+    catch (InvalidPathException e) {
+      LOGGER.trace("Could not convert to a path", e);
+      return new FileAttributes(file.exists(), file.isDirectory(),
+        file.isFile(), file.length(), file.lastModified());
+    }
+    catch (IOException e) {
+      LOGGER.trace("Could not read file attributes", e);
+      return new FileAttributes(false, false, false, 0, 0);
+    }
+  }
+
+  /** Reads the existence, length and modification time of a URL. */
+  private FileAttributes readURLAttributes() {
+    long length = 0, lastModified = 0;
+    boolean exists = false;
+    try {
+      URLConnection conn = url.openConnection();
+      length = conn.getContentLength();
+      lastModified = conn.getLastModified();
+      conn.getInputStream().close();
+      exists = true;
+    }
+    catch (IOException e) {
+      LOGGER.trace("Failed to retrieve content from URL", e);
+    }
+    return new FileAttributes(exists, false, exists, length, lastModified);
+  }
+
+
   // -- File API methods --
 
   /**
@@ -567,7 +960,12 @@ public class Location {
    */
   public boolean createNewFile() throws IOException {
     if (isURL) throw new IOException("Unimplemented");
-    return file.createNewFile();
+    try {
+      return file.createNewFile();
+    }
+    finally {
+      forgetAttributes();
+    }
   }
 
   /**
@@ -582,7 +980,14 @@ public class Location {
     if (file == null) {
       return false;
     }
-    return file.mkdirs();
+    boolean created = file.mkdirs();
+    // parent directories may have been created as well
+    File parent = file.getAbsoluteFile();
+    while (parent != null) {
+      forgetAttributes(parent.getPath());
+      parent = parent.getParentFile();
+    }
+    return created;
   }
 
   /**
@@ -593,7 +998,10 @@ public class Location {
    * @see java.io.File#delete()
    */
   public boolean delete() {
-    return isURL ? false : file.delete();
+    if (isURL) return false;
+    boolean deleted = file.delete();
+    forgetAttributes();
+    return deleted;
   }
 
   /**
@@ -640,7 +1048,9 @@ public class Location {
    */
   public boolean exists() {
     LOGGER.trace("exists()");
+    FileAttributes attributes = getAttributes();
     if (isURL) {
+      if (attributes != null) return attributes.exists;
       try {
         url.getContent();
         return true;
@@ -650,7 +1060,7 @@ public class Location {
         return false;
       }
     }
-    if (file.exists()) return true;
+    if (attributes != null ? attributes.exists : file.exists()) return true;
     if (getMappedFile(file.getPath()) != null) return true;
 
     String mappedId = getMappedId(file.getPath());
@@ -784,7 +1194,8 @@ public class Location {
       String[] list = list();
       return list != null;
     }
-    return file.isDirectory();
+    FileAttributes attributes = getAttributes();
+    return attributes != null ? attributes.directory : file.isDirectory();
   }
 
   /**
@@ -795,7 +1206,11 @@ public class Location {
    */
   public boolean isFile() {
     LOGGER.trace("isFile()");
-    return isURL ? (!isDirectory() && exists()) : file.isFile();
+    if (isURL) {
+      return !isDirectory() && exists();
+    }
+    FileAttributes attributes = getAttributes();
+    return attributes != null ? attributes.file : file.isFile();
   }
 
   /**
@@ -827,6 +1242,10 @@ public class Location {
    */
   public long lastModified() {
     LOGGER.trace("lastModified()");
+    FileAttributes attributes = getAttributes();
+    if (attributes != null) {
+      return attributes.lastModified;
+    }
     if (isURL) {
       try {
         return url.openConnection().getLastModified();
@@ -848,6 +1267,10 @@ public class Location {
    */
   public long length() {
     LOGGER.trace("length()");
+    FileAttributes attributes = getAttributes();
+    if (attributes != null) {
+      return attributes.length;
+    }
     if (isURL) {
       try {
         return url.openConnection().getContentLength();
@@ -911,4 +1334,45 @@ public class Location {
     return isURL ? url.toString() : file.toString();
   }
 
+  // -- Helper classes --
+
+  /** Wraps a stream of paths as a stream of {@link DirectoryEntry}s. */
+  private static final class EntryStream
+    implements DirectoryStream<DirectoryEntry>
+  {
+    private final DirectoryStream<Path> paths;
+
+    EntryStream(DirectoryStream<Path> paths) {
+      this.paths = paths;
+    }
+
+    /* @see DirectoryStream#iterator() */
+    @Override
+    public Iterator<DirectoryEntry> iterator() {
+      final Iterator<Path> it = paths.iterator();
+      return new Iterator<DirectoryEntry>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public DirectoryEntry next() {
+          return new DirectoryEntry(it.next());
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    /* @see java.io.Closeable#close() */
+    @Override
+    public void close() throws IOException {
+      paths.close();
+    }
+  }
+
 }
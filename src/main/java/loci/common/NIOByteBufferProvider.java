@@ -33,9 +33,15 @@
 package loci.common;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
@@ -59,6 +65,15 @@ public class NIOByteBufferProvider {
   /** The minimum Java version we know is safe for memory mapped I/O. */
   public static final int MINIMUM_JAVA_VERSION = 6;
 
+  /** Default size of each segment when mapping whole files (1 GB). */
+  public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+  /**
+   * Maximum number of bytes by which consecutive segments overlap (16 MB).
+   * Any buffer no larger than this can be served from a single segment.
+   */
+  public static final int MAX_SEGMENT_OVERLAP = 1 << 24;
+
   /** Logger for this class. */
   private static final Logger LOGGER =
     LoggerFactory.getLogger(NIOByteBufferProvider.class);
@@ -68,16 +83,73 @@ public class NIOByteBufferProvider {
   /** Whether or not we are to use memory mapped I/O. */
   private static boolean useMappedByteBuffer = false;
 
+  /** Pool from which read-only buffers are borrowed, if any. */
+  private static volatile ByteBufferPool bufferPool;
+
+  /** Whether or not read-only files are mapped once, in large segments. */
+  private static volatile boolean mapWholeFile = false;
+
+  /** Size of each segment when mapping whole files. */
+  private static volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+  /** Whether or not mapped segments are explicitly unmapped on close. */
+  private static volatile boolean unmapOnClose = false;
+
   /** File channel to allocate or map data from. */
   private FileChannel channel;
 
   /** If we are to use memory mapped I/O, the map mode. */
   private MapMode mapMode;
 
+  /** Buffers borrowed from the pool that have not yet been released. */
+  private final Set<ByteBuffer> borrowed = Collections.synchronizedSet(
+    Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+  /** Whether or not this provider maps the whole file in segments. */
+  private final boolean mapSegments;
+
+  /** Size of each mapped segment, excluding the overlap. */
+  private final long mappedSegmentSize;
+
+  /** Whether or not this provider unmaps its segments when closed. */
+  private final boolean unmapSegments;
+
+  /** Segments mapped so far; null until the first segment is mapped. */
+  private MappedByteBuffer[] segments;
+
+  /** Shared cache through which buffers are filled, if any. */
+  private volatile BlockCache blockCache;
+
+  /** Key of the file in {@link #blockCache}. */
+  private volatile String blockCacheKey;
+
+  /** Length of the file at the time the first segment was mapped. */
+  private long mappedLength;
+
   static {
     String mapping = System.getProperty("mappedBuffers");
     useMappedByteBuffer = Boolean.parseBoolean(mapping);
     LOGGER.debug("Using mapped byte buffer? {}", useMappedByteBuffer);
+
+    String poolSize = System.getProperty("bufferPoolSize");
+    if (poolSize != null) {
+      try {
+        long size = Long.parseLong(poolSize);
+        if (size > 0) {
+          boolean direct =
+            Boolean.parseBoolean(System.getProperty("directBufferPool"));
+          bufferPool = new ByteBufferPool(size, direct);
+        }
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid buffer pool size: {}", poolSize);
+      }
+    }
+    LOGGER.debug("Using buffer pool: {}", bufferPool);
+
+    mapWholeFile = Boolean.parseBoolean(System.getProperty("mapWholeFile"));
+    unmapOnClose = Boolean.parseBoolean(System.getProperty("unmapOnClose"));
+    LOGGER.debug("Mapping whole files? {}", mapWholeFile);
   }
 
   // -- Constructors --
@@ -91,10 +163,158 @@ public class NIOByteBufferProvider {
   public NIOByteBufferProvider(FileChannel channel, MapMode mapMode) {
     this.channel = channel;
     this.mapMode = mapMode;
+    mapSegments = mapWholeFile && mapMode == MapMode.READ_ONLY;
+    mappedSegmentSize = segmentSize;
+    unmapSegments = unmapOnClose;
   }
 
   // -- NIOByteBufferProvider API Methods --
 
+  /**
+   * Sets the pool from which buffers for read-only files are borrowed.
+   * Buffers are only pooled when memory mapped I/O is not in use.
+   * The initial pool is configured by the <code>bufferPoolSize</code>
+   * (maximum pooled bytes) and <code>directBufferPool</code> system
+   * properties.
+   *
+   * @param pool the pool to use, or null to disable pooling
+   */
+  public static void setBufferPool(ByteBufferPool pool) {
+    bufferPool = pool;
+  }
+
+  /**
+   * @return the pool from which buffers for read-only files are borrowed,
+   *         or null if pooling is disabled.
+   */
+  public static ByteBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets whether or not subsequently created providers for read-only files
+   * map the whole file once, in segments of {@link #getMappedSegmentSize()}
+   * bytes, and serve every buffer as a view of those segments instead of
+   * reading or mapping each buffer separately.
+   * The initial value is taken from the <code>mapWholeFile</code> system
+   * property.
+   *
+   * @param map true to map whole files
+   */
+  public static void setMapWholeFile(boolean map) {
+    mapWholeFile = map;
+  }
+
+  /**
+   * @return true if subsequently created providers for read-only files map
+   *         the whole file in segments.
+   */
+  public static boolean isMapWholeFile() {
+    return mapWholeFile;
+  }
+
+  /**
+   * Sets the size of each segment used by subsequently created providers
+   * when mapping whole files.  Individual <code>MappedByteBuffer</code>s are
+   * limited to 2 GB, so larger files are mapped as several segments.
+   *
+   * @param size the segment size in bytes; must be positive and no greater
+   *        than <code>Integer.MAX_VALUE - MAX_SEGMENT_OVERLAP</code>
+   */
+  public static void setMappedSegmentSize(long size) {
+    if (size <= 0 || size > Integer.MAX_VALUE - MAX_SEGMENT_OVERLAP) {
+      throw new IllegalArgumentException("Invalid segment size: " + size);
+    }
+    segmentSize = size;
+  }
+
+  /**
+   * @return the size of each segment used when mapping whole files.
+   */
+  public static long getMappedSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Sets whether or not subsequently created providers explicitly unmap
+   * their segments in {@link #close()}, rather than waiting for the garbage
+   * collector to do so.  Any buffer obtained from a provider must not be
+   * used after the provider has been closed when this is enabled.
+   * The initial value is taken from the <code>unmapOnClose</code> system
+   * property.
+   *
+   * @param unmap true to unmap segments on close
+   */
+  public static void setUnmapOnClose(boolean unmap) {
+    unmapOnClose = unmap;
+  }
+
+  /**
+   * @return true if this provider maps whole files in segments.
+   */
+  public boolean isMappingWholeFile() {
+    return mapSegments;
+  }
+
+  /**
+   * @return true if buffers from this provider are views of mapped file
+   * data rather than copies of it.
+   */
+  public boolean isMapping() {
+    return mapSegments || useMappedByteBuffer;
+  }
+
+  /**
+   * Sets the cache through which buffers for a read-only file are filled,
+   * instead of reading the file directly.  The cache is not used by
+   * providers that map the file.
+   *
+   * @param cache the cache to use, or null to read the file directly
+   * @param fileKey the key of the file in the cache
+   * @see BlockCache#getFileKey(java.io.File)
+   */
+  public void setBlockCache(BlockCache cache, String fileKey) {
+    blockCacheKey = fileKey;
+    blockCache = cache;
+  }
+
+  /** @return the cache through which buffers are filled, or null */
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  /**
+   * Releases any segments mapped by this provider.  Buffers borrowed from
+   * the buffer pool must be released separately.
+   */
+  public synchronized void close() {
+    if (segments != null && unmapSegments) {
+      for (MappedByteBuffer segment : segments) {
+        if (segment != null) {
+          unmap(segment);
+        }
+      }
+    }
+    segments = null;
+  }
+
+  /**
+   * Releases a buffer previously returned by
+   * {@link #allocate(long, int)}. If the buffer was borrowed from the
+   * buffer pool, it is returned to the pool and must not be used again;
+   * otherwise this method does nothing.
+   * @param buffer The buffer to release. May be null.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || !borrowed.remove(buffer)) {
+      return;
+    }
+    ByteBufferPool pool = bufferPool;
+    if (pool != null) {
+      pool.release(buffer);
+    }
+  }
+
   /**
    * Allocates or maps the desired file data into memory.
    * @param bufferStartPosition The absolute position of the start of the
@@ -106,6 +326,13 @@ public class NIOByteBufferProvider {
    */
   public ByteBuffer allocate(long bufferStartPosition, int newSize)
     throws IOException {
+    if (mapSegments) {
+      ByteBuffer buffer = allocateFromSegment(bufferStartPosition, newSize);
+      if (buffer != null) {
+        return buffer;
+      }
+      return allocateMappedByteBuffer(bufferStartPosition, newSize);
+    }
     if (useMappedByteBuffer) {
       return allocateMappedByteBuffer(bufferStartPosition, newSize);
     }
@@ -123,11 +350,38 @@ public class NIOByteBufferProvider {
    */
   protected ByteBuffer allocateDirect(long bufferStartPosition, int newSize)
     throws IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(newSize);
-    channel.read(buffer, bufferStartPosition);
+    ByteBufferPool pool = bufferPool;
+    if (pool == null || mapMode != MapMode.READ_ONLY) {
+      ByteBuffer buffer = ByteBuffer.allocate(newSize);
+      fill(buffer, bufferStartPosition);
+      return buffer;
+    }
+    ByteBuffer buffer = pool.acquire(newSize);
+    try {
+      fill(buffer, bufferStartPosition);
+    }
+    catch (IOException e) {
+      pool.release(buffer);
+      throw e;
+    }
+    borrowed.add(buffer);
     return buffer;
   }
 
+  /**
+   * Reads into a newly allocated buffer, through the block cache if one is
+   * set for this read-only file.
+   */
+  private void fill(ByteBuffer buffer, long position) throws IOException {
+    BlockCache cache = blockCache;
+    if (cache != null && mapMode == MapMode.READ_ONLY) {
+      cache.read(blockCacheKey, channel, position, buffer);
+    }
+    else {
+      channel.read(buffer, position);
+    }
+  }
+
   /**
    * Memory maps the desired file data into memory.
    * @param bufferStartPosition The absolute position of the start of the
@@ -142,4 +396,82 @@ public class NIOByteBufferProvider {
   {
     return channel.map(mapMode, bufferStartPosition, newSize);
   }
+
+  /**
+   * Returns a view of the mapped segment that contains the desired file data,
+   * mapping the segment if it has not been mapped yet.
+   * @param bufferStartPosition The absolute position of the start of the
+   * buffer.
+   * @param newSize The buffer size.
+   * @return A view of a mapped segment, or null if the requested data does
+   * not fit within a single segment.
+   * @throws IOException If there is an issue mapping the segment.
+   */
+  protected synchronized ByteBuffer allocateFromSegment(
+    long bufferStartPosition, int newSize) throws IOException
+  {
+    if (segments == null) {
+      mappedLength = channel.size();
+      long count = (mappedLength + mappedSegmentSize - 1) / mappedSegmentSize;
+      segments = new MappedByteBuffer[(int) count];
+    }
+    int index = (int) (bufferStartPosition / mappedSegmentSize);
+    if (bufferStartPosition < 0 || index >= segments.length) {
+      return null;
+    }
+    long segmentStart = index * mappedSegmentSize;
+    if (segments[index] == null) {
+      long overlap = Math.min(mappedSegmentSize, MAX_SEGMENT_OVERLAP);
+      long size =
+        Math.min(mappedLength - segmentStart, mappedSegmentSize + overlap);
+      LOGGER.debug("Mapping segment {} ({} bytes)", index, size);
+      segments[index] = channel.map(mapMode, segmentStart, size);
+    }
+    int offset = (int) (bufferStartPosition - segmentStart);
+    MappedByteBuffer segment = segments[index];
+    if (offset + newSize > segment.capacity()) {
+      return null;
+    }
+    ByteBuffer view = segment.duplicate();
+    view.limit(offset + newSize);
+    view.position(offset);
+    return view.slice();
+  }
+
+  /**
+   * Unmaps the given buffer immediately, if the JVM allows it.
+   * @param buffer The buffer to unmap.  It must not be used afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner =
+          unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      }
+      catch (NoSuchMethodException e) {
+        invokeCleaner = null;
+      }
+      if (invokeCleaner != null) {
+        // Java 9 and later
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      }
+      else {
+        // Java 8 and earlier
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      LOGGER.debug("Could not unmap buffer", e);
+    }
+  }
+
 }
@@ -36,10 +36,18 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -70,6 +78,26 @@ public class NIOFileHandle extends AbstractNIOHandle {
    */
   protected static int defaultRWBufferSize = 8192;
 
+  /** Default number of buffer windows to read ahead; 0 disables read-ahead. */
+  protected static int defaultReadAheadDepth = 0;
+
+  /** Whether or not read-only handles use the shared block cache. */
+  protected static boolean defaultUseBlockCache = false;
+
+  static {
+    defaultUseBlockCache =
+      Boolean.parseBoolean(System.getProperty("sharedBlockCache"));
+    String depth = System.getProperty("readAheadDepth");
+    if (depth != null) {
+      try {
+        defaultReadAheadDepth = Math.max(0, Integer.parseInt(depth));
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid read-ahead depth: {}", depth);
+      }
+    }
+  }
+
   // -- Fields --
 
   /** The random access file object backing this FileHandle. */
@@ -105,6 +133,15 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /** The original length of the file. */
   private Long defaultLength;
 
+  /** Background reader of the following buffer windows, if enabled. */
+  private ReadAhead readAhead;
+
+  /** The file backing this handle. */
+  private final File file;
+
+  /** Key of the file in the shared block cache, if it is used. */
+  private String blockCacheKey;
+
   // -- Constructors --
 
   /**
@@ -122,6 +159,7 @@ public class NIOFileHandle extends AbstractNIOHandle {
     throws IOException
   {
     this.bufferSize = bufferSize;
+    this.file = file;
     validateMode(mode);
     if (mode.equals("rw")) {
       isReadWrite = true;
@@ -135,6 +173,8 @@ public class NIOFileHandle extends AbstractNIOHandle {
     // if we know the length won't change, cache the original length
     if (mode.equals("r")) {
       defaultLength = raf.length();
+      setReadAheadDepth(defaultReadAheadDepth);
+      setBlockCacheEnabled(defaultUseBlockCache);
     }
   }
 
@@ -191,6 +231,138 @@ public class NIOFileHandle extends AbstractNIOHandle {
     defaultRWBufferSize = size;
   }
 
+  /**
+   * Set the default number of buffer windows to read ahead for read-only
+   * files.  The initial value is taken from the <code>readAheadDepth</code>
+   * system property, and is 0 (no read-ahead) if the property is not set.
+   *
+   * Subsequently constructed handles will use this depth.
+   *
+   * @param depth the new default read-ahead depth
+   * @see #setReadAheadDepth(int)
+   */
+  public static void setDefaultReadAheadDepth(int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Negative depth: " + depth);
+    }
+    defaultReadAheadDepth = depth;
+  }
+
+  /**
+   * @return the default number of buffer windows to read ahead.
+   */
+  public static int getDefaultReadAheadDepth() {
+    return defaultReadAheadDepth;
+  }
+
+  /**
+   * Set the number of buffer windows to read ahead of the current one.
+   *
+   * When the buffer is refilled from the position at which the previous
+   * buffer ended, the following windows are read in the background so
+   * that I/O overlaps with processing of the current window.  Read-ahead
+   * only applies to read-only files that are not memory mapped; for other
+   * files this method has no effect.
+   *
+   * @param depth the number of windows to read ahead; 0 disables read-ahead
+   */
+  public void setReadAheadDepth(int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Negative depth: " + depth);
+    }
+    if (isReadWrite || byteBufferProvider.isMapping()) {
+      return;
+    }
+    if (readAhead == null && depth > 0) {
+      readAhead = new ReadAhead(byteBufferProvider, bufferSize, depth);
+    }
+    else if (readAhead != null) {
+      readAhead.setDepth(depth);
+    }
+  }
+
+  /**
+   * Set whether or not subsequently opened read-only handles read through
+   * the shared {@link BlockCache}.  The initial value is taken from the
+   * <code>sharedBlockCache</code> system property.
+   *
+   * @param useCache true to use the shared block cache by default
+   */
+  public static void setDefaultUseBlockCache(boolean useCache) {
+    defaultUseBlockCache = useCache;
+  }
+
+  /**
+   * @return true if read-only handles use the shared block cache by default
+   */
+  public static boolean isDefaultUseBlockCache() {
+    return defaultUseBlockCache;
+  }
+
+  /**
+   * Set whether or not this handle reads through the shared
+   * {@link BlockCache}, so that blocks read by any handle for the same file
+   * are not read from disk again.  The cache only applies to read-only
+   * files that are not memory mapped; for other files this method has no
+   * effect.
+   *
+   * @param useCache true to read through the shared block cache
+   * @throws IOException if the file's canonical path cannot be determined
+   * @see BlockCache#getShared()
+   */
+  public void setBlockCacheEnabled(boolean useCache) throws IOException {
+    if (isReadWrite || byteBufferProvider.isMapping()) {
+      return;
+    }
+    blockCacheKey = useCache ? BlockCache.getFileKey(file) : null;
+    byteBufferProvider.setBlockCache(
+      useCache ? BlockCache.getShared() : null, blockCacheKey);
+  }
+
+  /**
+   * @return true if this handle reads through the shared block cache.
+   */
+  public boolean isBlockCacheEnabled() {
+    return byteBufferProvider.getBlockCache() != null;
+  }
+
+  /**
+   * @return the number of buffer windows read ahead of the current one.
+   */
+  public int getReadAheadDepth() {
+    return readAhead == null ? 0 : readAhead.getDepth();
+  }
+
+  /**
+   * @return the number of windows currently being read ahead, or waiting
+   * to be used.
+   */
+  public int getPendingReadAheadCount() {
+    return readAhead == null ? 0 : readAhead.getPendingCount();
+  }
+
+  /**
+   * @return the number of windows submitted for reading ahead.
+   */
+  public long getReadAheadIssuedCount() {
+    return readAhead == null ? 0 : readAhead.getIssuedCount();
+  }
+
+  /**
+   * @return the number of windows read ahead that were then used.
+   */
+  public long getReadAheadHitCount() {
+    return readAhead == null ? 0 : readAhead.getHitCount();
+  }
+
+  /**
+   * @return the number of windows read ahead that were discarded unused,
+   * e.g. after a seek.
+   */
+  public long getReadAheadWastedCount() {
+    return readAhead == null ? 0 : readAhead.getWastedCount();
+  }
+
   // -- FileHandle and Channel API methods --
 
   /**
@@ -237,7 +409,20 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see IRandomAccess.close() */
   @Override
   public void close() throws IOException {
+    if (readAhead != null) {
+      readAhead.cancel();
+    }
+    if (buffer != null) {
+      order = buffer.order();
+      byteBufferProvider.release(buffer);
+      buffer = null;
+    }
+    byteBufferProvider.close();
     raf.close();
+    if (isReadWrite) {
+      // the file's cached length and modification time may now be stale
+      Location.forgetAttributes(file.getAbsolutePath());
+    }
   }
 
   /* @see IRandomAccess.getFilePointer() */
@@ -311,6 +496,101 @@ public class NIOFileHandle extends AbstractNIOHandle {
     return realLength;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b, off, len));
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    if (pos >= length()) {
+      return -1;
+    }
+    BlockCache cache = byteBufferProvider.getBlockCache();
+    if (cache != null) {
+      return cache.read(blockCacheKey, channel, pos, dst);
+    }
+    int total = 0;
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, pos + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Runs of adjacent or nearby requests are read with a single scatter
+   * read, so bytes go straight into the destination arrays; the bytes in
+   * any gaps are read into a discarded scratch buffer.  Runs with
+   * overlapping requests are read into a temporary array and copied out.
+   *
+   * @see IRandomAccess#readBatch(List)
+   */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    int maxGap = ReadRequest.getMaxGap();
+    List<ReadRequest.Run> runs = ReadRequest.coalesce(requests, maxGap,
+      ReadRequest.getMaxRunLength());
+    long length = length();
+    ByteBuffer gap = null;
+    for (ReadRequest.Run run : runs) {
+      if (run.getEnd() > length) {
+        throw new EOFException(EOF_ERROR_MSG);
+      }
+      if (run.size() == 1) {
+        ReadRequest r = run.get(0);
+        ReadRequest.readFully(this, r.getOffset(),
+          ByteBuffer.wrap(r.getBuffer(), r.getBufferOffset(), r.getLength()));
+      }
+      else if (run.isOverlapping()) {
+        byte[] b = new byte[run.getLength()];
+        ReadRequest.readFully(this, run.getStart(), ByteBuffer.wrap(b));
+        run.copyFrom(b, 0);
+      }
+      else {
+        if (gap == null) {
+          gap = ByteBuffer.allocate(maxGap);
+        }
+        scatter(run, gap);
+      }
+    }
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    readTyped(ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    readTyped(IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    readTyped(LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    readTyped(FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    readTyped(DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
@@ -603,6 +883,26 @@ public class NIOFileHandle extends AbstractNIOHandle {
     buffer = null;
   }
 
+  /**
+   * Fills the remaining space of a typed buffer from the current position,
+   * copying from one buffer window at a time.
+   *
+   * @param dst the typed buffer to fill
+   * @param size the number of bytes in each value
+   */
+  private void readTyped(Buffer dst, int size) throws IOException {
+    TypedReads.checkLength(this, dst, size);
+    int perWindow = Math.max(bufferSize / size, 1);
+    while (dst.hasRemaining()) {
+      int n = Math.min(dst.remaining(), perWindow) * size;
+      buffer(position, n);
+      ByteBuffer src = buffer.duplicate().order(buffer.order());
+      src.limit(src.position() + n);
+      TypedReads.put(src, dst);
+      position += n;
+    }
+  }
+
   /**
    * Aligns the NIO buffer, maps it if it is not currently and sets all
    * relevant positions and offsets.
@@ -617,19 +917,36 @@ public class NIOFileHandle extends AbstractNIOHandle {
     if (newPosition < bufferStartPosition ||
       newPosition > bufferStartPosition + bufferSize || buffer == null)
     {
-      bufferStartPosition = offset;
-      if (length() > 0 && length() - 1 < bufferStartPosition) {
-        bufferStartPosition = length() - 1;
+      ByteOrder byteOrder = buffer == null ? order : getOrder();
+      ByteBuffer oldBuffer = buffer;
+      boolean sequential = oldBuffer != null && offset > bufferStartPosition &&
+        offset <= bufferStartPosition + oldBuffer.limit();
+      ReadAhead.Window window =
+        readAhead == null ? null : readAhead.take(offset, size);
+      if (window != null) {
+        bufferStartPosition = window.start;
+        buffer = window.buffer;
       }
-      long newSize = Math.min(length() - bufferStartPosition, bufferSize);
-      if (newSize < size && newSize == bufferSize) newSize = size;
-      if (newSize + bufferStartPosition > length()) {
-        newSize = length() - bufferStartPosition;
+      else {
+        bufferStartPosition = offset;
+        if (length() > 0 && length() - 1 < bufferStartPosition) {
+          bufferStartPosition = length() - 1;
+        }
+        long newSize = Math.min(length() - bufferStartPosition, bufferSize);
+        if (newSize < size && newSize == bufferSize) newSize = size;
+        if (newSize + bufferStartPosition > length()) {
+          newSize = length() - bufferStartPosition;
+        }
+        offset = bufferStartPosition;
+        buffer =
+          byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
       }
-      offset = bufferStartPosition;
-      ByteOrder byteOrder = buffer == null ? order : getOrder();
-      buffer = byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
+      byteBufferProvider.release(oldBuffer);
       if (byteOrder != null) setOrder(byteOrder);
+      if (readAhead != null && sequential) {
+        readAhead.advance(bufferStartPosition,
+          bufferStartPosition + buffer.limit(), length());
+      }
     }
     buffer.position((int) (offset - bufferStartPosition));
     if (buffer.position() + size > buffer.limit() &&
@@ -639,6 +956,48 @@ public class NIOFileHandle extends AbstractNIOHandle {
     }
   }
 
+  /**
+   * Reads a run of non-overlapping requests with one scatter read, using
+   * slices of <code>gap</code> to absorb the bytes between requests.
+   */
+  private void scatter(ReadRequest.Run run, ByteBuffer gap)
+    throws IOException
+  {
+    List<ByteBuffer> targets = new ArrayList<ByteBuffer>();
+    long next = run.getStart();
+    for (int i=0; i<run.size(); i++) {
+      ReadRequest r = run.get(i);
+      if (r.getOffset() > next) {
+        ByteBuffer skip = gap.duplicate();
+        skip.clear();
+        skip.limit((int) (r.getOffset() - next));
+        targets.add(skip);
+      }
+      targets.add(
+        ByteBuffer.wrap(r.getBuffer(), r.getBufferOffset(), r.getLength()));
+      next = r.getEnd();
+    }
+    ByteBuffer[] dsts = targets.toArray(new ByteBuffer[targets.size()]);
+
+    // scatter reads use the channel's own position, which is otherwise
+    // only set by getFileChannel()
+    synchronized (channel) {
+      channel.position(run.getStart());
+      long remaining = run.getLength();
+      int first = 0;
+      while (remaining > 0) {
+        while (!dsts[first].hasRemaining()) {
+          first++;
+        }
+        long n = channel.read(dsts, first, dsts.length - first);
+        if (n < 0) {
+          throw new EOFException(EOF_ERROR_MSG);
+        }
+        remaining -= n;
+      }
+    }
+  }
+
   private void writeSetup(int length) throws IOException {
     validateLength(length);
     buffer(position, length);
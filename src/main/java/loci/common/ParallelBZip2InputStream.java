@@ -0,0 +1,427 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An input stream that decompresses a BZip2 file using several threads.
+ *
+ * The compressed data is scanned for the 48-bit magic number that begins
+ * each block, and the candidate blocks are decompressed concurrently on a
+ * shared {@link ForkJoinPool}.  Because the magic number may also occur by
+ * chance within compressed data, blocks are only accepted in a chain: the
+ * next block must start exactly where the previous one ended.  If no valid
+ * candidate starts there, that block is decompressed on the calling thread
+ * instead.  Blocks are returned in order, so the output is identical to
+ * that of {@link CBZip2InputStream}.
+ *
+ * Instances of this class are not thread-safe.
+ */
+class ParallelBZip2InputStream extends InputStream {
+
+  // -- Constants --
+
+  /** Offset in bits of the first block in a BZip2 file ("BZh" + size). */
+  static final long FIRST_BLOCK = 32;
+
+  private static final long BLOCK_MAGIC = 0x314159265359L;
+  private static final long END_MAGIC = 0x177245385090L;
+  private static final long MAGIC_MASK = (1L << 48) - 1;
+  private static final int BUFFER_SIZE = 65536;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ParallelBZip2InputStream.class);
+
+  // -- Static fields --
+
+  private static ForkJoinPool pool;
+
+  // -- Fields --
+
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final int blockSize100k;
+  private final int maxPending;
+  private final CBZip2InputStream.BlockListener listener;
+
+  /** Candidate blocks, in increasing order of bit offset. */
+  private final Deque<Candidate> pending = new ArrayDeque<Candidate>();
+
+  // scanner state
+  private final InputStream scanIn;
+  private final byte[] scanBuffer = new byte[BUFFER_SIZE];
+  private int scanPosition;
+  private int scanLength;
+  private long scanOffset;
+  private long scanRegister;
+  private int scanShift = -1;
+  private final long scanStart;
+  private boolean scanDone;
+
+  /** Offset in bits of the next block to be returned. */
+  private long expected;
+  private long outputOffset;
+  private byte[] current = new byte[0];
+  private int currentPosition;
+  private int currentLength;
+  private boolean done;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a stream that decompresses the given file, starting at the
+   * block at the given bit offset.
+   *
+   * @param file the BZip2 file
+   * @param bitOffset the offset in bits of the first block to decompress,
+   *        e.g. {@link #FIRST_BLOCK}
+   * @param outputOffset the number of decompressed bytes before that block,
+   *        as reported to the listener
+   * @param blockSize100k the block size from the stream header, 1 to 9
+   * @param parallelism the maximum number of blocks to decompress ahead
+   * @param listener the listener to notify at the start of each block,
+   *        with offsets in bits from the start of the file; may be null
+   * @throws IOException if the file cannot be opened
+   */
+  ParallelBZip2InputStream(File file, long bitOffset, long outputOffset,
+    int blockSize100k, int parallelism,
+    CBZip2InputStream.BlockListener listener) throws IOException
+  {
+    this.raf = new RandomAccessFile(file, "r");
+    this.channel = raf.getChannel();
+    this.blockSize100k = blockSize100k;
+    this.maxPending = Math.max(1, parallelism);
+    this.listener = listener;
+    this.expected = bitOffset;
+    this.outputOffset = outputOffset;
+    this.scanStart = bitOffset;
+
+    FileInputStream in = new FileInputStream(file);
+    this.scanIn = in;
+    scanOffset = bitOffset >>> 3;
+    in.getChannel().position(scanOffset);
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    if (currentPosition == currentLength && !nextBlock()) {
+      return -1;
+    }
+    return current[currentPosition++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (currentPosition == currentLength && !nextBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, currentLength - currentPosition);
+    System.arraycopy(current, currentPosition, b, off, n);
+    currentPosition += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      if (currentPosition == currentLength && !nextBlock()) {
+        break;
+      }
+      int count = (int) Math.min(n - skipped, currentLength - currentPosition);
+      currentPosition += count;
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return currentLength - currentPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Candidate c : pending) {
+      c.cancel();
+    }
+    pending.clear();
+    done = true;
+    try {
+      scanIn.close();
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return pool;
+  }
+
+  /**
+   * Makes the next block current.
+   *
+   * @return false if the end of the stream has been reached
+   */
+  private boolean nextBlock() throws IOException {
+    while (!done) {
+      fillPending();
+      while (!pending.isEmpty() && pending.peekFirst().bitOffset < expected) {
+        pending.removeFirst().cancel();
+      }
+
+      Block block = null;
+      Candidate c = pending.peekFirst();
+      if (c != null && c.bitOffset == expected) {
+        pending.removeFirst();
+        if (c.end) {
+          done = true;
+          break;
+        }
+        block = c.get();
+      }
+      if (block == null) {
+        // no usable candidate, so decompress this block here
+        block = decode(expected);
+        if (block == null) {
+          done = true;
+          break;
+        }
+      }
+
+      if (listener != null) {
+        listener.blockStart(expected, outputOffset);
+      }
+      current = block.data;
+      currentPosition = 0;
+      currentLength = block.length;
+      outputOffset += block.length;
+      expected = block.end;
+      if (currentLength > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Scans ahead until enough candidate blocks are being decompressed. */
+  private void fillPending() throws IOException {
+    int blocks = 0;
+    for (Candidate c : pending) {
+      if (!c.end) blocks++;
+    }
+    while (blocks < maxPending && !scanDone) {
+      Candidate c = scan();
+      if (c == null) {
+        break;
+      }
+      pending.addLast(c);
+      if (c.end) {
+        // nothing after an end-of-stream marker is decompressed
+        scanDone = true;
+      }
+      else {
+        final long offset = c.bitOffset;
+        c.future = getPool().submit(new Callable<Block>() {
+          @Override
+          public Block call() throws IOException {
+            return decode(offset);
+          }
+        });
+        blocks++;
+      }
+    }
+  }
+
+  /** @return the next candidate block or end-of-stream marker, or null */
+  private Candidate scan() throws IOException {
+    while (true) {
+      if (scanShift < 0) {
+        if (scanPosition == scanLength) {
+          scanLength = scanIn.read(scanBuffer, 0, scanBuffer.length);
+          scanPosition = 0;
+          if (scanLength <= 0) {
+            scanLength = 0;
+            scanDone = true;
+            return null;
+          }
+        }
+        scanRegister =
+          (scanRegister << 8) | (scanBuffer[scanPosition++] & 0xff);
+        scanOffset++;
+        scanShift = 7;
+      }
+      while (scanShift >= 0) {
+        int shift = scanShift--;
+        long start = scanOffset * 8 - shift - 48;
+        if (start < scanStart) {
+          continue;
+        }
+        long bits = (scanRegister >>> shift) & MAGIC_MASK;
+        if (bits == BLOCK_MAGIC || bits == END_MAGIC) {
+          return new Candidate(start, bits == END_MAGIC);
+        }
+      }
+    }
+  }
+
+  /**
+   * Decompresses the block at the given bit offset.
+   *
+   * @return the block, or null if the offset is an end-of-stream marker
+   */
+  private Block decode(long bitOffset) throws IOException {
+    InputStream in = new ChannelInputStream(channel, bitOffset >>> 3);
+    CBZip2InputStream bz = new CBZip2InputStream(in, blockSize100k,
+      (int) (bitOffset & 7), true);
+    if (bz.getBlockEnd() < 0) {
+      return null;
+    }
+    byte[] data = new byte[blockSize100k * 100000];
+    int length = 0;
+    while (true) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      int n = bz.read(data, length, data.length - length);
+      if (n < 0) break;
+      length += n;
+    }
+    return new Block(data, length, (bitOffset & ~7L) + bz.getBlockEnd());
+  }
+
+  // -- Helper classes --
+
+  /** A decompressed block. */
+  private static final class Block {
+    final byte[] data;
+    final int length;
+    /** Offset in bits of the end of the block. */
+    final long end;
+
+    Block(byte[] data, int length, long end) {
+      this.data = data;
+      this.length = length;
+      this.end = end;
+    }
+  }
+
+  /** A position at which the block or end-of-stream magic was found. */
+  private static final class Candidate {
+    final long bitOffset;
+    final boolean end;
+    Future<Block> future;
+
+    Candidate(long bitOffset, boolean end) {
+      this.bitOffset = bitOffset;
+      this.end = end;
+    }
+
+    /** @return the decompressed block, or null if decompression failed */
+    Block get() {
+      try {
+        return future.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        LOGGER.debug("Could not decompress block at bit {}", bitOffset,
+          e.getCause());
+      }
+      return null;
+    }
+
+    void cancel() {
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /** Reads from a file channel using positional reads. */
+  private static final class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long position;
+
+    ChannelInputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+      buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!buffer.hasRemaining()) {
+        buffer.clear();
+        int n = channel.read(buffer, position);
+        buffer.flip();
+        if (n <= 0) {
+          return -1;
+        }
+        position += n;
+      }
+      return buffer.get() & 0xff;
+    }
+  }
+
+}
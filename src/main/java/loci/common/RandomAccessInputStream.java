@@ -34,11 +34,21 @@ package loci.common;
 
 import java.io.Closeable;
 import java.io.DataInput;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +83,14 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
   /** Maximum number of bytes to search when searching through the stream. */
   protected static final int MAX_SEARCH_SIZE = 512 * 1024 * 1024; // 512 MB
 
+  /** Number of bytes read by the first read of a search. */
+  private static final int MIN_SEARCH_BLOCK = 1024;
+
+  /** Largest string whose bytes are read into a reused array. */
+  private static final int MAX_STRING_BUFFER = 64 * 1024;
+
+  private static final String[] C_STRING_TERMINATOR = {"\0"};
+
   /** Various bitmasks for the 0000xxxx side of a byte. */
   private static final int[] BACK_MASK = {
     0x00, // 00000000
@@ -112,6 +130,36 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
 
   private int currentBit;
 
+  /** Matcher for the terminators of the last byte-level search. */
+  private BytePatternMatcher matcher;
+
+  private String[] matcherTerminators;
+
+  private String matcherEncoding;
+
+  private byte[] searchBlock;
+
+  private byte[] stringBytes;
+
+  /** The encoding that the fields below describe. */
+  private String checkedEncoding;
+
+  /** The charset of the encoding, or null if it is not supported. */
+  private Charset charset;
+
+  /** True if bytes up to 0x7f are always decoded as the same chars. */
+  private boolean asciiCompatible;
+
+  /** True if each byte is decoded as the char with the same value. */
+  private boolean latin1;
+
+  /** True if the encoding can represent all chars up to 0xff. */
+  private boolean latin1Encodable;
+
+  private CharsetDecoder decoder;
+
+  private CharBuffer decodedChars;
+
   // -- Constructors --
 
   /**
@@ -358,6 +406,111 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
    */
   public String findString(boolean saveString, int blockSize,
     String... terminators) throws IOException
+  {
+    long startPos = getFilePointer();
+    long end = findTerminator(saveString, blockSize, terminators);
+    if (end < 0) {
+      return findDecodedString(saveString, blockSize, terminators);
+    }
+
+    // decode only the bytes up to the end of the match
+    if (!saveString) {
+      seek(startPos + end);
+      return null;
+    }
+    seek(startPos);
+    byte[] bytes = new byte[(int) end];
+    readFully(bytes);
+    return new String(bytes, encoding);
+  }
+
+  /**
+   * Scans the bytes of the stream for the first of the given terminators.
+   * The file pointer is left in an undefined position.
+   *
+   * @return the number of bytes from the initial position through the end
+   *   of the terminator, or through the end of the stream if no terminator
+   *   is found; or -1, without reading anything, if the terminators must be
+   *   matched as characters
+   * @throws IOException If saveString flag is set
+   *   and the maximum search length (512 MB) is exceeded.
+   */
+  private long findTerminator(boolean saveString, int blockSize,
+    String[] terminators) throws IOException
+  {
+    for (String term : terminators) {
+      // an empty terminator matches immediately
+      if (term.isEmpty()) return 0;
+    }
+    int single = getSingleByte(terminators);
+    BytePatternMatcher m = single < 0 ? getMatcher(terminators) : null;
+    if (single < 0 && m == null) {
+      return -1;
+    }
+
+    long maxLen = length() - getFilePointer();
+    boolean tooLong = saveString && maxLen > MAX_SEARCH_SIZE;
+    if (tooLong) maxLen = MAX_SEARCH_SIZE;
+
+    // scan forward until a match is found; with several terminators, a
+    // match that ends later may still start earlier, so keep going until
+    // that is no longer possible
+    int state = 0;
+    long bestStart = Long.MAX_VALUE, bestEnd = -1;
+    int bestTerm = -1;
+    long loc = 0;
+    int blockLen = Math.min(MIN_SEARCH_BLOCK, blockSize);
+    scan:
+    while (loc < maxLen) {
+      int n = (int) Math.min(blockLen, maxLen - loc);
+      if (searchBlock == null || searchBlock.length < n) {
+        searchBlock = new byte[n];
+      }
+      int r = read(searchBlock, 0, n);
+      if (r <= 0) throw new IOException("Cannot read from stream: " + r);
+      if (single >= 0) {
+        for (int i=0; i<r; i++) {
+          if (searchBlock[i] == single) {
+            bestEnd = loc + i + 1;
+            break scan;
+          }
+        }
+      }
+      else {
+        for (int i=0; i<r; i++) {
+          long end = loc + i + 1;
+          if (end - m.getMaxLength() > bestStart) {
+            break scan;
+          }
+          state = m.next(state, searchBlock[i]);
+          for (int t : m.getMatches(state)) {
+            long start = end - m.getLength(t);
+            if (start < bestStart || (start == bestStart && t < bestTerm)) {
+              bestStart = start;
+              bestEnd = end;
+              bestTerm = t;
+            }
+          }
+        }
+      }
+      loc += r;
+      blockLen = blockLen < blockSize / 2 ? blockLen * 2 : blockSize;
+    }
+
+    if (bestEnd < 0) {
+      if (tooLong) throw new IOException("Maximum search length reached.");
+      bestEnd = loc;
+    }
+    return bestEnd;
+  }
+
+  /**
+   * Searches for terminators in the decoded characters of the stream.
+   * This is used for encodings in which a match of the encoded bytes
+   * might not be a match of the characters, such as UTF-16.
+   */
+  private String findDecodedString(boolean saveString, int blockSize,
+    String... terminators) throws IOException
   {
     StringBuilder out = new StringBuilder();
     long startPos = getFilePointer();
@@ -429,6 +582,151 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return saveString ? out.toString() : null;
   }
 
+  /**
+   * Returns a matcher for the encoded terminators, reusing the one from the
+   * previous search if the terminators and encoding are the same.
+   *
+   * @return the matcher, or null if the terminators must be matched as
+   *         characters instead of bytes
+   */
+  private BytePatternMatcher getMatcher(String[] terminators) {
+    if (matcher != null && encoding.equals(matcherEncoding) &&
+      Arrays.equals(terminators, matcherTerminators))
+    {
+      return matcher;
+    }
+    checkEncoding();
+    if (charset == null) {
+      return null;
+    }
+
+    // a byte match is a character match only if characters cannot start
+    // in the middle of another character's bytes
+    CharsetEncoder encoder = charset.newEncoder();
+    if (!charset.name().equals("UTF-8") && encoder.maxBytesPerChar() != 1) {
+      return null;
+    }
+    byte[][] patterns = new byte[terminators.length][];
+    for (int i=0; i<terminators.length; i++) {
+      if (!encoder.canEncode(terminators[i])) return null;
+      patterns[i] = terminators[i].getBytes(charset);
+    }
+    matcher = new BytePatternMatcher(patterns);
+    matcherTerminators = terminators.clone();
+    matcherEncoding = encoding;
+    return matcher;
+  }
+
+  /**
+   * Returns the byte value of a terminator that is a single ASCII char,
+   * which can be found without a {@link BytePatternMatcher}.
+   *
+   * @return the byte value, or -1 if there are other terminators or the
+   *         terminator is not a single byte in the current encoding
+   */
+  private int getSingleByte(String[] terminators) {
+    if (terminators.length != 1 || terminators[0].length() != 1) {
+      return -1;
+    }
+    char c = terminators[0].charAt(0);
+    if (c > 0x7f) {
+      return -1;
+    }
+    checkEncoding();
+    return asciiCompatible ? c : -1;
+  }
+
+  /** Updates the fields that describe the current encoding, if needed. */
+  private void checkEncoding() {
+    if (encoding.equals(checkedEncoding)) {
+      return;
+    }
+    try {
+      charset = Charset.forName(encoding);
+    }
+    catch (IllegalCharsetNameException e) {
+      charset = null;
+    }
+    catch (UnsupportedCharsetException e) {
+      charset = null;
+    }
+    String name = charset == null ? "" : charset.name();
+    latin1 = name.equals("ISO-8859-1");
+    asciiCompatible =
+      latin1 || name.equals("UTF-8") || name.equals("US-ASCII");
+    latin1Encodable = latin1 || name.startsWith("UTF-");
+    decoder = charset == null ? null : charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    checkedEncoding = encoding;
+  }
+
+  /**
+   * Decodes bytes using the current encoding, and appends them to the given
+   * builder.  ASCII and ISO-8859-1 bytes are appended directly.
+   */
+  private void decode(byte[] b, int n, StringBuilder out)
+    throws IOException
+  {
+    checkEncoding();
+    if (latin1) {
+      appendLatin1(b, 0, n, out);
+      return;
+    }
+    int i = 0;
+    if (asciiCompatible) {
+      out.ensureCapacity(out.length() + n);
+      while (i < n && b[i] >= 0) {
+        out.append((char) b[i++]);
+      }
+      if (i == n) {
+        return;
+      }
+    }
+    if (decoder == null) {
+      out.append(new String(b, i, n - i, encoding));
+      return;
+    }
+    int maxChars = (int) Math.ceil((n - i) * decoder.maxCharsPerByte());
+    if (decodedChars == null || decodedChars.capacity() < maxChars) {
+      decodedChars = CharBuffer.allocate(maxChars);
+    }
+    decodedChars.clear();
+    decoder.reset();
+    ByteBuffer bytes = ByteBuffer.wrap(b, i, n - i);
+    if (decoder.decode(bytes, decodedChars, true).isOverflow() ||
+      decoder.flush(decodedChars).isOverflow())
+    {
+      out.append(new String(b, i, n - i, encoding));
+      return;
+    }
+    decodedChars.flip();
+    out.append(decodedChars);
+  }
+
+  /** Appends each byte as the char with the same unsigned value. */
+  private static void appendLatin1(byte[] b, int off, int n,
+    StringBuilder out)
+  {
+    out.ensureCapacity(out.length() + n);
+    for (int i=off; i<off+n; i++) {
+      out.append((char) (b[i] & 0xff));
+    }
+  }
+
+  /**
+   * @return an array of at least n bytes, which is reused for short strings
+   */
+  private byte[] getStringBytes(int n) {
+    if (n > MAX_STRING_BUFFER) {
+      return new byte[n];
+    }
+    if (stringBytes == null || stringBytes.length < n) {
+      stringBytes = new byte[Math.max(n, 256)];
+    }
+    return stringBytes;
+  }
+
   /**
    * Skips a number of bits in the BitBuffer.
    *
@@ -526,6 +824,22 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return currentBit % 8 == 0;
   }
 
+  /**
+   * @return the offset of the next bit to be read by
+   *         {@link #readBits(int)} within the byte at the file pointer
+   */
+  int getCurrentBit() {
+    return currentBit;
+  }
+
+  /**
+   * @param bit the offset of the next bit to be read by
+   *        {@link #readBits(int)} within the byte at the file pointer
+   */
+  void setCurrentBit(int bit) {
+    currentBit = bit;
+  }
+
   // -- DataInput API methods --
 
   /** Read an input byte and return true if the byte is nonzero. */
@@ -592,6 +906,30 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return line.length() == 0 ? null : line;
   }
 
+  /**
+   * Reads a string of arbitrary length, terminated by a null char, and
+   * appends it to the given builder.  Unlike {@link #readCString()}, this
+   * does not create any intermediate objects when the encoding is UTF-8,
+   * US-ASCII or ISO-8859-1, so the same builder can be reused for many
+   * strings.
+   *
+   * @param out the builder to which the string, including the terminating
+   *   null char if one was found, is appended
+   * @return the number of bytes read; 0 at the end of the stream
+   * @throws IOException if there is an error during reading
+   */
+  public int readCString(StringBuilder out) throws IOException {
+    long startPos = getFilePointer();
+    long end = findTerminator(true, DEFAULT_BLOCK_SIZE, C_STRING_TERMINATOR);
+    if (end < 0) {
+      out.append(findDecodedString(true, DEFAULT_BLOCK_SIZE,
+        C_STRING_TERMINATOR));
+      return (int) (getFilePointer() - startPos);
+    }
+    seek(startPos);
+    return readString((int) end, out);
+  }
+
   /**
    * Reads a byte array of the given length byte by byte. Returns a string
    * using the set encoding.
@@ -602,20 +940,37 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
    * @see #setEncoding(String)
    */
   public String readByteToString(int n) throws IOException {
+    StringBuilder out = new StringBuilder();
+    readByteToString(n, out);
+    return out.toString();
+  }
+
+  /**
+   * Reads a byte array of the given length byte by byte, and appends the
+   * result of {@link #readByteToString(int)} to the given builder.
+   *
+   * @param n The length of the array.
+   * @param out the builder to which the string is appended
+   * @return the number of bytes read
+   * @throws IOException Thrown if an error occurred while reading the data.
+   * @see #setEncoding(String)
+   */
+  public int readByteToString(int n, StringBuilder out) throws IOException {
     n = (int) Math.min(available(), n);
-    byte[] bytes = new byte[n];
-    readFully(bytes);
-    StringBuffer newString = new StringBuffer();
-    for (byte b : bytes) {
-      int v = b & 0xff;
-      if (v > 0x7f) {
-          newString.append(Character.toChars(v));
-      } else {
-          newString.append((char) b);
-      }
+    byte[] bytes = getStringBytes(n);
+    readFully(bytes, 0, n);
+    checkEncoding();
+    if (latin1Encodable) {
+      // each byte is a char that the encoding can represent, so encoding
+      // and decoding it again would not change it
+      appendLatin1(bytes, 0, n, out);
+      return n;
     }
+    StringBuilder newString = new StringBuilder(n);
+    appendLatin1(bytes, 0, n, newString);
     String s = newString.toString();
-    return new String(s.getBytes(encoding), encoding);
+    out.append(new String(s.getBytes(encoding), encoding));
+    return n;
   }
 
   /**
@@ -629,9 +984,30 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
   public String readString(int n) throws IOException {
     int avail = available();
     if (n > avail) n = avail;
-    byte[] b = new byte[n];
-    readFully(b);
-    return new String(b, encoding);
+    byte[] b = getStringBytes(n);
+    readFully(b, 0, n);
+    return new String(b, 0, n, encoding);
+  }
+
+  /**
+   * Reads a string of up to length n, and appends it to the given builder.
+   * Unlike {@link #readString(int)}, this does not create any intermediate
+   * objects when the encoding is UTF-8, US-ASCII or ISO-8859-1, so the same
+   * builder can be reused for many strings.
+   *
+   * @param n the number of bytes to read
+   * @param out the builder to which the decoded string is appended
+   * @return the number of bytes read
+   * @throws IOException if an error occurred during reading
+   * @see #setEncoding(String)
+   */
+  public int readString(int n, StringBuilder out) throws IOException {
+    int avail = available();
+    if (n > avail) n = avail;
+    byte[] b = getStringBytes(n);
+    readFully(b, 0, n);
+    decode(b, n, out);
+    return n;
   }
 
   /** Read eight input bytes and return a long value. */
@@ -670,6 +1046,101 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return raf.skipBytes(n);
   }
 
+  /**
+   * Read a batch of byte ranges, each into its own array.  Nearby ranges
+   * are coalesced so that fewer underlying reads are issued than with a
+   * separate seek and {@link #readFully(byte[], int, int)} per range.
+   * The current file pointer is not changed.
+   *
+   * @param requests the ranges to read, in any order
+   * @throws EOFException if any range extends beyond the end of the stream
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readBatch(List)
+   */
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    long length = length();
+    for (ReadRequest r : requests) {
+      if (r.getEnd() > length) {
+        throw new EOFException();
+      }
+    }
+    raf.readBatch(requests);
+  }
+
+  /**
+   * Reads 16-bit values, in the stream's byte order, into an array.
+   * This is much faster than calling {@link #readShort()} for each value,
+   * e.g. when reading a strip of 16-bit pixels.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws EOFException if fewer than <code>len</code> values remain
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readShorts(short[], int, int)
+   */
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    raf.readShorts(dst, off, len);
+  }
+
+  /**
+   * Reads 32-bit values, in the stream's byte order, into an array.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws EOFException if fewer than <code>len</code> values remain
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readInts(int[], int, int)
+   */
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    raf.readInts(dst, off, len);
+  }
+
+  /**
+   * Reads 64-bit values, in the stream's byte order, into an array.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws EOFException if fewer than <code>len</code> values remain
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readLongs(long[], int, int)
+   */
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    raf.readLongs(dst, off, len);
+  }
+
+  /**
+   * Reads 32-bit floating point values, in the stream's byte order, into
+   * an array.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws EOFException if fewer than <code>len</code> values remain
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readFloats(float[], int, int)
+   */
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    raf.readFloats(dst, off, len);
+  }
+
+  /**
+   * Reads 64-bit floating point values, in the stream's byte order, into
+   * an array.
+   *
+   * @param dst the array to fill
+   * @param off the index in <code>dst</code> of the first value
+   * @param len the number of values to read
+   * @throws EOFException if fewer than <code>len</code> values remain
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#readDoubles(double[], int, int)
+   */
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    raf.readDoubles(dst, off, len);
+  }
+
   /** Read bytes from the stream into the given array. */
   @Override
   public int read(byte[] array) throws IOException {
@@ -713,6 +1184,53 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return raf.read(buf, offset, n);
   }
 
+  /**
+   * Read up to n bytes, starting at the given offset in the stream, into
+   * the given array.  The current file pointer is not changed.
+   *
+   * @param pos the offset in the stream from which to start reading
+   * @param array the array to fill
+   * @param offset the offset to the first byte in the array
+   * @param n the maximum number of bytes to read
+   * @return the number of bytes actually read, or -1 if <code>pos</code>
+   *         is at or beyond the end of the stream
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  public int read(long pos, byte[] array, int offset, int n)
+    throws IOException
+  {
+    long remain = length() - pos;
+    if (remain <= 0) return -1;
+    if (n > remain) n = (int) remain;
+    return raf.read(pos, array, offset, n);
+  }
+
+  /**
+   * Read bytes, starting at the given offset in the stream, into the
+   * remaining space of the given buffer.  The current file pointer is not
+   * changed.
+   *
+   * @param pos the offset in the stream from which to start reading
+   * @param buf the {@link ByteBuffer} to fill
+   * @return the number of bytes actually read, or -1 if <code>pos</code>
+   *         is at or beyond the end of the stream
+   * @throws IOException if an error occurred during reading
+   * @see IRandomAccess#read(long, ByteBuffer)
+   */
+  public int read(long pos, ByteBuffer buf) throws IOException {
+    long remain = length() - pos;
+    if (remain <= 0) return -1;
+    if (buf.remaining() > remain) {
+      ByteBuffer slice = buf.duplicate();
+      slice.limit(slice.position() + (int) remain);
+      int n = raf.read(pos, slice);
+      if (n > 0) buf.position(buf.position() + n);
+      return n;
+    }
+    return raf.read(pos, buf);
+  }
+
   /** Read bytes from the stream into the given array. */
   @Override
   public void readFully(byte[] array) throws IOException {
@@ -208,6 +208,21 @@ public class RandomAccessOutputStream extends OutputStream implements DataOutput
     }
   }
 
+  /**
+   * Removes the bits written by {@link #writeBits(int, int)} that do not
+   * yet fill a byte, so that a {@link BitWriter} can write them instead.
+   *
+   * @return the pending bits in the low byte, aligned with its most
+   *         significant bit, and their number in the next byte up
+   */
+  int takePartialByte() {
+    int partial = (currentBit << 8) | currentByte;
+    currentBit = 0;
+    currentByte = 0;
+    dirtyByte = false;
+    return partial;
+  }
+
   // -- DataOutput API methods --
 
   /* @see java.io.DataOutput#write(byte[]) */
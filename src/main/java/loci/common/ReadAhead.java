@@ -0,0 +1,309 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Background prefetching of buffer windows for {@link NIOFileHandle}.
+ *
+ * Once the handle refills its buffer from the position at which the
+ * previous window ended, up to <code>depth</code> following windows are
+ * read on a shared pool of daemon threads.  Consecutive windows overlap
+ * slightly, so that small reads straddling a window boundary can still be
+ * served from a prefetched window.  Any seek outside the prefetched range
+ * abandons the outstanding windows.
+ *
+ * The pool has one thread per processor and a bounded queue, shared by all
+ * handles.  When the queue is full, no further windows are scheduled until
+ * the handle next advances, and those windows are read synchronously
+ * instead.
+ *
+ * Instances are not thread-safe; they are only used by the thread that
+ * owns the handle.
+ */
+class ReadAhead {
+
+  // -- Constants --
+
+  /** Largest number of bytes shared by two consecutive windows. */
+  static final int MAX_WINDOW_OVERLAP = 64 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReadAhead.class);
+
+  /** Number of threads that read windows in the background. */
+  private static final int THREADS =
+    Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /** Maximum number of windows waiting for a thread. */
+  private static final int QUEUE_SIZE = 16 * THREADS;
+
+  private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+    THREADS, THREADS, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("NIOFileHandle-read-ahead-%d").build());
+
+  static {
+    EXECUTOR.allowCoreThreadTimeOut(true);
+  }
+
+  // -- Fields --
+
+  private final NIOByteBufferProvider provider;
+  private final int windowSize;
+  private final int overlap;
+  private int depth;
+
+  /** Outstanding windows, in increasing order of offset. */
+  private final Deque<Prefetch> pending = new ArrayDeque<Prefetch>();
+
+  private long issued;
+  private long hits;
+  private long wasted;
+
+  // -- Constructor --
+
+  /**
+   * @param provider the provider used to read each window
+   * @param windowSize the size in bytes of each prefetched window
+   * @param depth the maximum number of windows to read ahead
+   */
+  ReadAhead(NIOByteBufferProvider provider, int windowSize, int depth) {
+    this.provider = provider;
+    this.windowSize = windowSize;
+    this.overlap = Math.min(windowSize / 4, MAX_WINDOW_OVERLAP);
+    this.depth = depth;
+  }
+
+  // -- ReadAhead methods --
+
+  int getDepth() {
+    return depth;
+  }
+
+  void setDepth(int depth) {
+    this.depth = depth;
+    while (pending.size() > depth) {
+      abandon(pending.removeLast());
+    }
+  }
+
+  /** @return the number of windows that are being, or have been, read */
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  /** @return the number of windows submitted for reading */
+  long getIssuedCount() {
+    return issued;
+  }
+
+  /** @return the number of prefetched windows that were used */
+  long getHitCount() {
+    return hits;
+  }
+
+  /** @return the number of prefetched windows that were abandoned */
+  long getWastedCount() {
+    return wasted;
+  }
+
+  /**
+   * Removes and returns the prefetched window that contains the given
+   * range, abandoning any windows before it.  If no outstanding window
+   * contains the range, all windows are abandoned.
+   *
+   * @return the window containing <code>[offset, offset + size)</code>,
+   *         or null if it must be read synchronously
+   */
+  Window take(long offset, int size) {
+    while (!pending.isEmpty()) {
+      Prefetch p = pending.peekFirst();
+      if (offset < p.start || offset >= p.start + windowSize) {
+        if (offset > p.start) {
+          // a later window may contain the range
+          abandon(pending.removeFirst());
+          continue;
+        }
+        cancel();
+        return null;
+      }
+      pending.removeFirst();
+      if (offset + size > p.start + windowSize) {
+        abandon(p);
+        cancel();
+        return null;
+      }
+      ByteBuffer buffer = p.get();
+      if (buffer == null || offset + size > p.start + buffer.limit()) {
+        provider.release(buffer);
+        cancel();
+        return null;
+      }
+      hits++;
+      return new Window(p.start, buffer);
+    }
+    return null;
+  }
+
+  /**
+   * Schedules reads of the windows following the given window, up to the
+   * configured depth.
+   *
+   * @param windowStart the offset of the window now held by the handle
+   * @param windowEnd the offset just past the end of that window
+   * @param length the length of the file
+   */
+  void advance(long windowStart, long windowEnd, long length) {
+    long end = windowEnd;
+    if (!pending.isEmpty()) {
+      Prefetch last = pending.peekLast();
+      end = last.start + windowSize;
+    }
+    while (pending.size() < depth && end < length) {
+      long start = Math.max(end - overlap, windowStart + 1);
+      int size = (int) Math.min(windowSize, length - start);
+      Prefetch p = new Prefetch(start, size);
+      try {
+        p.future = EXECUTOR.submit(p);
+      }
+      catch (RejectedExecutionException e) {
+        // the pool is saturated; read the remaining windows synchronously
+        LOGGER.trace("Read-ahead queue is full", e);
+        break;
+      }
+      pending.addLast(p);
+      issued++;
+      end = start + size;
+    }
+  }
+
+  /** Abandons all outstanding windows. */
+  void cancel() {
+    while (!pending.isEmpty()) {
+      abandon(pending.removeFirst());
+    }
+  }
+
+  // -- Helper methods --
+
+  private void abandon(Prefetch p) {
+    wasted++;
+    p.abandon();
+  }
+
+  // -- Helper classes --
+
+  /** A prefetched buffer and the file offset of its first byte. */
+  static final class Window {
+    final long start;
+    final ByteBuffer buffer;
+
+    Window(long start, ByteBuffer buffer) {
+      this.start = start;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * A single background read.  A window abandoned while its read is in
+   * progress releases its buffer as soon as the read completes.
+   */
+  private final class Prefetch implements Callable<ByteBuffer> {
+    final long start;
+    final int size;
+    Future<ByteBuffer> future;
+    private boolean abandoned;
+    private ByteBuffer result;
+
+    Prefetch(long start, int size) {
+      this.start = start;
+      this.size = size;
+    }
+
+    @Override
+    public ByteBuffer call() throws IOException {
+      ByteBuffer buffer = provider.allocate(start, size);
+      synchronized (this) {
+        if (abandoned) {
+          provider.release(buffer);
+          return null;
+        }
+        result = buffer;
+      }
+      return buffer;
+    }
+
+    /** @return the window's buffer, or null if it could not be read */
+    ByteBuffer get() {
+      try {
+        return future.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abandon();
+      }
+      catch (ExecutionException e) {
+        LOGGER.debug("Read-ahead of {} bytes at {} failed", size, start,
+          e.getCause());
+      }
+      return null;
+    }
+
+    synchronized void abandon() {
+      abandoned = true;
+      future.cancel(false);
+      if (result != null) {
+        provider.release(result);
+        result = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single range of bytes to be read as part of a batch read, together
+ * with the array into which the bytes should be placed.
+ *
+ * Batches of requests are sorted and coalesced so that requests which are
+ * adjacent or separated by no more than {@link #getMaxGap()} bytes are
+ * satisfied by one underlying read.
+ *
+ * @see IRandomAccess#readBatch(List)
+ */
+public class ReadRequest {
+
+  // -- Constants --
+
+  /** Default maximum number of bytes between two coalesced requests. */
+  public static final int DEFAULT_MAX_GAP = 64 * 1024;
+
+  /** Default maximum number of bytes covered by one coalesced read. */
+  public static final int DEFAULT_MAX_RUN_LENGTH = 16 * 1024 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ReadRequest.class);
+
+  private static final Comparator<ReadRequest> BY_OFFSET =
+    new Comparator<ReadRequest>() {
+      @Override
+      public int compare(ReadRequest a, ReadRequest b) {
+        return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+      }
+    };
+
+  // -- Static fields --
+
+  private static volatile int maxGap = DEFAULT_MAX_GAP;
+
+  private static volatile int maxRunLength = DEFAULT_MAX_RUN_LENGTH;
+
+  static {
+    String gap = System.getProperty("readRequestMaxGap");
+    if (gap != null) {
+      try {
+        setMaxGap(Integer.parseInt(gap));
+      }
+      catch (IllegalArgumentException e) {
+        LOGGER.warn("Invalid read request gap: {}", gap);
+      }
+    }
+  }
+
+  // -- Fields --
+
+  private final long offset;
+  private final byte[] buffer;
+  private final int bufferOffset;
+  private final int length;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a request for <code>length</code> bytes starting at
+   * <code>offset</code>, to be stored in <code>buffer</code> starting at
+   * <code>bufferOffset</code>.
+   *
+   * @param offset the offset within the stream of the first byte to read
+   * @param buffer the array to fill
+   * @param bufferOffset the offset in <code>buffer</code> from which to
+   *        start filling
+   * @param length the number of bytes to read
+   */
+  public ReadRequest(long offset, byte[] buffer, int bufferOffset,
+    int length)
+  {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Negative offset: " + offset);
+    }
+    if (bufferOffset < 0 || length < 0 ||
+      bufferOffset > buffer.length - length)
+    {
+      throw new IndexOutOfBoundsException("Invalid buffer range: offset=" +
+        bufferOffset + ", length=" + length);
+    }
+    this.offset = offset;
+    this.buffer = buffer;
+    this.bufferOffset = bufferOffset;
+    this.length = length;
+  }
+
+  /**
+   * Constructs a request that fills the whole of <code>buffer</code> with
+   * bytes starting at <code>offset</code>.
+   *
+   * @param offset the offset within the stream of the first byte to read
+   * @param buffer the array to fill
+   */
+  public ReadRequest(long offset, byte[] buffer) {
+    this(offset, buffer, 0, buffer.length);
+  }
+
+  // -- ReadRequest API methods --
+
+  /** @return the offset within the stream of the first byte to read */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** @return the array into which bytes are read */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /** @return the offset in the array of the first byte to fill */
+  public int getBufferOffset() {
+    return bufferOffset;
+  }
+
+  /** @return the number of bytes to read */
+  public int getLength() {
+    return length;
+  }
+
+  /** @return the offset within the stream just past the last byte to read */
+  public long getEnd() {
+    return offset + length;
+  }
+
+  @Override
+  public String toString() {
+    return "offset=" + offset + ", length=" + length;
+  }
+
+  // -- Static ReadRequest API methods --
+
+  /**
+   * Sets the largest number of unrequested bytes that may be read in order
+   * to merge two requests into one underlying read.
+   *
+   * @param gap the maximum gap in bytes; 0 merges only adjacent or
+   *        overlapping requests
+   */
+  public static void setMaxGap(int gap) {
+    if (gap < 0) {
+      throw new IllegalArgumentException("Negative gap: " + gap);
+    }
+    maxGap = gap;
+  }
+
+  /** @return the maximum gap in bytes between coalesced requests */
+  public static int getMaxGap() {
+    return maxGap;
+  }
+
+  /**
+   * Sets the largest number of bytes that a single coalesced read may
+   * cover.  Requests longer than this are still read in one piece.
+   *
+   * @param length the maximum run length in bytes
+   */
+  public static void setMaxRunLength(int length) {
+    if (length <= 0) {
+      throw new IllegalArgumentException("Invalid run length: " + length);
+    }
+    maxRunLength = length;
+  }
+
+  /** @return the maximum number of bytes covered by one coalesced read */
+  public static int getMaxRunLength() {
+    return maxRunLength;
+  }
+
+  /**
+   * Sorts the given requests by offset and groups them into runs that can
+   * each be satisfied by one contiguous read.
+   *
+   * @param requests the requests to group; the list itself is not modified
+   * @param gap the maximum gap in bytes between requests in the same run
+   * @param runLength the maximum number of bytes covered by one run
+   * @return the runs, in increasing order of offset
+   */
+  public static List<Run> coalesce(List<ReadRequest> requests, int gap,
+    int runLength)
+  {
+    List<ReadRequest> sorted = new ArrayList<ReadRequest>(requests);
+    Collections.sort(sorted, BY_OFFSET);
+
+    List<Run> runs = new ArrayList<Run>();
+    Run run = null;
+    for (ReadRequest request : sorted) {
+      if (request.length == 0) {
+        continue;
+      }
+      if (run != null && request.offset <= run.end + gap &&
+        Math.max(run.end, request.getEnd()) - run.start <= runLength)
+      {
+        run.add(request);
+      }
+      else {
+        run = new Run(request);
+        runs.add(run);
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * Satisfies every request using positional reads on the given handle,
+   * issuing one read per coalesced run.
+   *
+   * @param handle the handle from which to read
+   * @param requests the requests to satisfy
+   * @throws EOFException if any request extends beyond the end of the handle
+   * @throws IOException if reading is not possible
+   * @see IRandomAccess#read(long, ByteBuffer)
+   */
+  public static void readAll(IRandomAccess handle, List<ReadRequest> requests)
+    throws IOException
+  {
+    byte[] scratch = null;
+    for (Run run : coalesce(requests, maxGap, maxRunLength)) {
+      if (run.size() == 1) {
+        ReadRequest r = run.get(0);
+        readFully(handle, r.offset,
+          ByteBuffer.wrap(r.buffer, r.bufferOffset, r.length));
+        continue;
+      }
+      int runLength = run.getLength();
+      if (scratch == null || scratch.length < runLength) {
+        scratch = new byte[runLength];
+      }
+      readFully(handle, run.start, ByteBuffer.wrap(scratch, 0, runLength));
+      run.copyFrom(scratch, 0);
+    }
+  }
+
+  /**
+   * Fills the remaining space of <code>dst</code> using positional reads.
+   *
+   * @throws EOFException if the end of the handle is reached first
+   */
+  static void readFully(IRandomAccess handle, long pos, ByteBuffer dst)
+    throws IOException
+  {
+    while (dst.hasRemaining()) {
+      int n = handle.read(pos, dst);
+      if (n <= 0) {
+        throw new EOFException(AbstractNIOHandle.EOF_ERROR_MSG);
+      }
+      pos += n;
+    }
+  }
+
+  // -- Helper classes --
+
+  /** A group of requests that can be satisfied by one contiguous read. */
+  public static final class Run {
+
+    private final List<ReadRequest> requests = new ArrayList<ReadRequest>();
+    private final long start;
+    private long end;
+    private boolean overlapping;
+
+    private Run(ReadRequest first) {
+      requests.add(first);
+      start = first.offset;
+      end = first.getEnd();
+    }
+
+    private void add(ReadRequest request) {
+      if (request.offset < end) {
+        overlapping = true;
+      }
+      requests.add(request);
+      end = Math.max(end, request.getEnd());
+    }
+
+    /** @return the offset of the first byte in this run */
+    public long getStart() {
+      return start;
+    }
+
+    /** @return the offset just past the last byte in this run */
+    public long getEnd() {
+      return end;
+    }
+
+    /** @return the number of bytes covered by this run, including gaps */
+    public int getLength() {
+      return (int) (end - start);
+    }
+
+    /** @return the number of requests in this run */
+    public int size() {
+      return requests.size();
+    }
+
+    /** @return the request at the given index, in order of offset */
+    public ReadRequest get(int index) {
+      return requests.get(index);
+    }
+
+    /** @return true if any two requests in this run share bytes */
+    public boolean isOverlapping() {
+      return overlapping;
+    }
+
+    /**
+     * Copies the bytes for each request out of an array holding the whole
+     * run.
+     *
+     * @param src an array holding the bytes of this run
+     * @param srcOffset the offset in <code>src</code> of the run's first byte
+     */
+    public void copyFrom(byte[] src, int srcOffset) {
+      for (ReadRequest r : requests) {
+        System.arraycopy(src, srcOffset + (int) (r.offset - start),
+          r.buffer, r.bufferOffset, r.length);
+      }
+    }
+
+  }
+
+}
@@ -38,6 +38,12 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
 
 /**
  * Abstract IRandomAccess implementation for reading from InputStreams and
@@ -149,6 +155,111 @@ public abstract class StreamHandle implements IRandomAccess {
     return n;
   }
 
+  /**
+   * Streams have no positional access, so this seeks to <code>pos</code>,
+   * reads, and then seeks back to the original file pointer.  Unlike
+   * {@link NIOFileHandle}, this is not safe for concurrent use.
+   *
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    if (pos >= length()) {
+      return -1;
+    }
+    len = (int) Math.min(len, length() - pos);
+    long current = fp;
+    seek(pos);
+    try {
+      return read(b, off, len);
+    }
+    finally {
+      seek(current);
+    }
+  }
+
+  /* @see IRandomAccess#read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    int n;
+    if (dst.hasArray()) {
+      n = read(pos, dst.array(), dst.arrayOffset() + dst.position(),
+        dst.remaining());
+      if (n > 0) dst.position(dst.position() + n);
+    }
+    else {
+      byte[] b = new byte[dst.remaining()];
+      n = read(pos, b, 0, b.length);
+      if (n > 0) dst.put(b, 0, n);
+    }
+    return n;
+  }
+
+  /**
+   * Requests are read in order of increasing offset, so that a compressed
+   * stream only has to be decoded once, and the file pointer is restored
+   * afterwards.  Unlike {@link NIOFileHandle}, this is not safe for
+   * concurrent use.
+   *
+   * @see IRandomAccess#readBatch(List)
+   */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    List<ReadRequest.Run> runs = ReadRequest.coalesce(requests, 0,
+      Integer.MAX_VALUE);
+    if (runs.size() > 0 && runs.get(runs.size() - 1).getEnd() > length()) {
+      throw new EOFException();
+    }
+    long current = fp;
+    try {
+      for (ReadRequest.Run run : runs) {
+        seek(run.getStart());
+        if (run.size() == 1) {
+          ReadRequest r = run.get(0);
+          readFully(r.getBuffer(), r.getBufferOffset(), r.getLength());
+        }
+        else {
+          byte[] b = new byte[run.getLength()];
+          readFully(b);
+          run.copyFrom(b, 0);
+        }
+      }
+    }
+    finally {
+      seek(current);
+    }
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
   /* @see IRandomAccess#seek(long) */
   @Override
   public void seek(long pos) throws IOException {
@@ -0,0 +1,596 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process-wide cache of decoded blocks for sources that are expensive to
+ * re-read, such as compressed files and remote URLs.  Blocks are held in
+ * two tiers, each with its own byte budget: direct buffers outside the Java
+ * heap, and behind them memory-mapped files in a spill directory.  Blocks
+ * evicted from the first tier are moved to the second, and moved back when
+ * they are read again; blocks evicted from the second tier are discarded.
+ * Within each tier, the least recently used block is evicted first.
+ *
+ * Blocks are keyed by a source key and block index, so cached data
+ * survives the handle that read it and is reused when the same source is
+ * opened again.
+ *
+ * Large caches are divided into independently locked segments, each with
+ * its share of both tiers, so that blocks can be copied in and out of
+ * different segments concurrently.  Small caches use fewer segments, so
+ * that each segment still holds a useful number of blocks.  Instances of
+ * TieredCache are thread-safe.
+ *
+ * @see CachedHandle
+ */
+public class TieredCache {
+
+  // -- Constants --
+
+  /** Default size of each block, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  /** Maximum size of each direct buffer or spill file, in bytes. */
+  private static final long SLAB_SIZE = 64L * 1024 * 1024;
+
+  /** Maximum number of segments; a power of two. */
+  private static final int MAX_SEGMENTS = 16;
+
+  /** Minimum number of blocks in each tier of a segment. */
+  private static final int MIN_SEGMENT_SLOTS = 16;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TieredCache.class);
+
+  // -- Static fields --
+
+  private static TieredCache shared;
+
+  private static boolean sharedInitialized;
+
+  // -- Fields --
+
+  private final int blockSize;
+
+  private final Segment[] segments;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+
+  private final AtomicLong spillHits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong spills = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  // -- Constructors --
+
+  /**
+   * Constructs a cache without a spill directory.
+   *
+   * @param memoryCapacity the maximum number of bytes held off-heap
+   * @param blockSize the size of each block, in bytes
+   */
+  public TieredCache(long memoryCapacity, int blockSize) {
+    this(memoryCapacity, 0, null, blockSize);
+  }
+
+  /**
+   * @param memoryCapacity the maximum number of bytes held off-heap
+   * @param spillCapacity the maximum number of bytes held in spill files;
+   *        0 disables spilling
+   * @param spillDirectory the directory in which spill files are created,
+   *        or null for the default temporary directory
+   * @param blockSize the size of each block, in bytes
+   */
+  public TieredCache(long memoryCapacity, long spillCapacity,
+    File spillDirectory, int blockSize)
+  {
+    if (memoryCapacity < 0 || spillCapacity < 0 || blockSize <= 0 ||
+      memoryCapacity / blockSize + spillCapacity / blockSize == 0)
+    {
+      throw new IllegalArgumentException("Invalid capacity " +
+        memoryCapacity + "/" + spillCapacity + " or block size " + blockSize);
+    }
+    if (spillDirectory == null) {
+      spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    }
+    this.blockSize = blockSize;
+    long memorySlots = memoryCapacity / blockSize;
+    long spillSlots = spillCapacity / blockSize;
+    long minSlots = memorySlots == 0 ? spillSlots :
+      spillSlots == 0 ? memorySlots : Math.min(memorySlots, spillSlots);
+    int count = MAX_SEGMENTS;
+    while (count > 1 && minSlots / count < MIN_SEGMENT_SLOTS) {
+      count /= 2;
+    }
+    segments = new Segment[count];
+    for (int i=0; i<count; i++) {
+      segments[i] = new Segment(
+        share(memorySlots, i, count) * blockSize,
+        share(spillSlots, i, count) * blockSize, spillDirectory);
+    }
+  }
+
+  // -- TieredCache API methods --
+
+  /**
+   * Returns the cache shared by handles opened through
+   * {@link Location#getHandle(String)}.  Unless set with
+   * {@link #setShared(TieredCache)}, it is created on first use from the
+   * <code>tieredCacheSize</code> (off-heap bytes),
+   * <code>tieredCacheSpillSize</code> (spill bytes) and
+   * <code>tieredCacheSpillDir</code> system properties.
+   *
+   * @return the shared cache, or null if neither size is set
+   */
+  public static synchronized TieredCache getShared() {
+    if (!sharedInitialized) {
+      sharedInitialized = true;
+      long memoryCapacity = getSize("tieredCacheSize");
+      long spillCapacity = getSize("tieredCacheSpillSize");
+      String dir = System.getProperty("tieredCacheSpillDir");
+      if (memoryCapacity > 0 || spillCapacity > 0) {
+        try {
+          shared = new TieredCache(memoryCapacity, spillCapacity,
+            dir == null ? null : new File(dir), DEFAULT_BLOCK_SIZE);
+        }
+        catch (IllegalArgumentException e) {
+          LOGGER.warn("Invalid tiered cache configuration", e);
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Replaces the shared cache.  The previous cache is not closed, as
+   * handles that are still open may be using it.
+   *
+   * @param cache the new shared cache, or null to disable sharing
+   */
+  public static synchronized void setShared(TieredCache cache) {
+    shared = cache;
+    sharedInitialized = true;
+  }
+
+  /**
+   * Returns a copy of a cached block.
+   *
+   * @param source the key of the source
+   * @param index the index of the block
+   * @return the contents of the block, or null if it is not cached
+   * @throws IOException if a spill file cannot be created
+   */
+  public byte[] get(String source, long index) throws IOException {
+    Key key = new Key(source, index);
+    return getSegment(key).get(key);
+  }
+
+  /**
+   * Adds a block to the cache, evicting or spilling other blocks as needed.
+   *
+   * @param source the key of the source
+   * @param index the index of the block
+   * @param block the contents of the block, which must not be longer than
+   *        the block size
+   * @throws IOException if a spill file cannot be created
+   */
+  public void put(String source, long index, byte[] block)
+    throws IOException
+  {
+    if (block.length > blockSize) {
+      throw new IllegalArgumentException("Block length " + block.length +
+        " exceeds block size " + blockSize);
+    }
+    Key key = new Key(source, index);
+    getSegment(key).put(key, block);
+  }
+
+  /** Discards all cached blocks, and deletes any spill files. */
+  public void clear() {
+    for (Segment s : segments) {
+      s.clear();
+    }
+  }
+
+  /** @return the size of each block, in bytes */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** @return the maximum number of bytes held off-heap */
+  public long getMemoryCapacity() {
+    long capacity = 0;
+    for (Segment s : segments) {
+      capacity += s.memory.getCapacity();
+    }
+    return capacity;
+  }
+
+  /** @return the maximum number of bytes held in spill files */
+  public long getSpillCapacity() {
+    long capacity = 0;
+    for (Segment s : segments) {
+      capacity += s.spill.getCapacity();
+    }
+    return capacity;
+  }
+
+  /** @return the number of bytes in blocks that are held off-heap */
+  public long getMemoryBytes() {
+    long bytes = 0;
+    for (Segment s : segments) {
+      bytes += s.getMemoryBytes();
+    }
+    return bytes;
+  }
+
+  /** @return the number of bytes in blocks that are held in spill files */
+  public long getSpillBytes() {
+    long bytes = 0;
+    for (Segment s : segments) {
+      bytes += s.getSpillBytes();
+    }
+    return bytes;
+  }
+
+  /** @return the number of lookups satisfied by the off-heap tier */
+  public long getMemoryHitCount() {
+    return memoryHits.get();
+  }
+
+  /** @return the number of lookups satisfied by the spill tier */
+  public long getSpillHitCount() {
+    return spillHits.get();
+  }
+
+  /** @return the number of lookups for blocks that were not cached */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** @return the number of blocks moved from the off-heap tier to disk */
+  public long getSpillCount() {
+    return spills.get();
+  }
+
+  /** @return the number of blocks discarded to make room for others */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /* @see Object#toString() */
+  @Override
+  public String toString() {
+    return "TieredCache[memory=" + getMemoryBytes() + "/" +
+      getMemoryCapacity() + ", spill=" + getSpillBytes() + "/" +
+      getSpillCapacity() + ", hits=" + memoryHits + "+" + spillHits +
+      ", misses=" + misses + "]";
+  }
+
+  // -- Helper methods --
+
+  private Segment getSegment(Key key) {
+    int hash = key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+  }
+
+  /** @return segment <code>i</code>'s share of <code>slots</code> */
+  private static long share(long slots, int i, int count) {
+    return slots / count + (i < slots % count ? 1 : 0);
+  }
+
+  private static long getSize(String property) {
+    String value = System.getProperty(property);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid {}: {}", property, value);
+      }
+    }
+    return 0;
+  }
+
+  // -- Helper classes --
+
+  /** A part of the cache with its own lock and share of each tier. */
+  private final class Segment {
+    private final Tier memory;
+    private final Tier spill;
+
+    Segment(long memoryCapacity, long spillCapacity, File spillDirectory) {
+      memory = new Tier(memoryCapacity, blockSize, null);
+      spill = new Tier(spillCapacity, blockSize, spillDirectory);
+    }
+
+    synchronized byte[] get(Key key) throws IOException {
+      Slot slot = memory.get(key);
+      if (slot != null) {
+        memoryHits.incrementAndGet();
+        return memory.read(slot);
+      }
+      slot = spill.get(key);
+      if (slot != null) {
+        spillHits.incrementAndGet();
+        byte[] block = spill.read(slot);
+        spill.remove(key);
+        store(key, block);
+        return block;
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+
+    synchronized void put(Key key, byte[] block) throws IOException {
+      if (memory.get(key) != null) {
+        return;
+      }
+      spill.remove(key);
+      store(key, block);
+    }
+
+    synchronized void clear() {
+      memory.clear();
+      spill.clear();
+    }
+
+    synchronized long getMemoryBytes() {
+      return memory.getBytes();
+    }
+
+    synchronized long getSpillBytes() {
+      return spill.getBytes();
+    }
+
+    /** Stores a block in the first tier that can hold it. */
+    private void store(Key key, byte[] block) throws IOException {
+      if (memory.getSlotCount() > 0) {
+        if (memory.isFull()) {
+          Map.Entry<Key, Slot> eldest = memory.eldest();
+          if (spill.getSlotCount() > 0) {
+            byte[] evicted = memory.read(eldest.getValue());
+            Key evictedKey = eldest.getKey();
+            memory.remove(evictedKey);
+            storeSpill(evictedKey, evicted);
+            spills.incrementAndGet();
+          }
+          else {
+            memory.remove(eldest.getKey());
+            evictions.incrementAndGet();
+          }
+        }
+        memory.write(key, block);
+      }
+      else {
+        storeSpill(key, block);
+      }
+    }
+
+    private void storeSpill(Key key, byte[] block) throws IOException {
+      if (spill.isFull()) {
+        spill.remove(spill.eldest().getKey());
+        evictions.incrementAndGet();
+      }
+      spill.write(key, block);
+    }
+  }
+
+  /** Identifies a block of a source. */
+  private static final class Key {
+    private final String source;
+    private final long index;
+
+    Key(String source, long index) {
+      this.source = source;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return index == k.index && source.equals(k.source);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * source.hashCode() + (int) (index ^ (index >>> 32));
+    }
+  }
+
+  /** Location and length of a block within a tier. */
+  private static final class Slot {
+    private final int index;
+    private final int length;
+
+    Slot(int index, int length) {
+      this.index = index;
+      this.length = length;
+    }
+  }
+
+  /**
+   * A fixed number of block-sized slots, carved out of direct buffers or of
+   * memory-mapped files that are allocated as they are first needed.
+   */
+  private static final class Tier {
+    private final int blockSize;
+    private final int slots;
+    private final int slotsPerSlab;
+    private final File directory;
+    private final ByteBuffer[] slabs;
+    private final List<File> files = new ArrayList<File>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+    private final LinkedHashMap<Key, Slot> entries =
+      new LinkedHashMap<Key, Slot>(16, 0.75f, true);
+    private int nextSlot;
+    private long bytes;
+
+    Tier(long capacity, int blockSize, File directory) {
+      long count = capacity / blockSize;
+      if (count > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Capacity too large: " + capacity);
+      }
+      this.blockSize = blockSize;
+      this.slots = (int) count;
+      this.slotsPerSlab = (int) Math.max(1, SLAB_SIZE / blockSize);
+      this.directory = directory;
+      this.slabs = new ByteBuffer[(slots + slotsPerSlab - 1) / slotsPerSlab];
+    }
+
+    long getCapacity() {
+      return (long) slots * blockSize;
+    }
+
+    int getSlotCount() {
+      return slots;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    boolean isFull() {
+      return entries.size() >= slots;
+    }
+
+    Slot get(Key key) {
+      return entries.get(key);
+    }
+
+    Map.Entry<Key, Slot> eldest() {
+      return entries.entrySet().iterator().next();
+    }
+
+    byte[] read(Slot slot) {
+      byte[] block = new byte[slot.length];
+      ByteBuffer buffer = slice(slot.index);
+      buffer.get(block);
+      return block;
+    }
+
+    void write(Key key, byte[] block) throws IOException {
+      int index;
+      if (!free.isEmpty()) {
+        index = free.pop();
+      }
+      else {
+        index = nextSlot;
+        if (slabs[index / slotsPerSlab] == null) {
+          allocate(index / slotsPerSlab);
+        }
+        nextSlot++;
+      }
+      slice(index).put(block);
+      entries.put(key, new Slot(index, block.length));
+      bytes += block.length;
+    }
+
+    void remove(Key key) {
+      Slot slot = entries.remove(key);
+      if (slot != null) {
+        free.push(slot.index);
+        bytes -= slot.length;
+      }
+    }
+
+    void clear() {
+      entries.clear();
+      free.clear();
+      nextSlot = 0;
+      bytes = 0;
+      for (int i=0; i<slabs.length; i++) {
+        slabs[i] = null;
+      }
+      Iterator<File> it = files.iterator();
+      while (it.hasNext()) {
+        File file = it.next();
+        if (!file.delete()) {
+          LOGGER.debug("Could not delete spill file {}", file);
+        }
+        it.remove();
+      }
+    }
+
+    private ByteBuffer slice(int index) {
+      ByteBuffer buffer = slabs[index / slotsPerSlab].duplicate();
+      buffer.position((index % slotsPerSlab) * blockSize);
+      return buffer;
+    }
+
+    private void allocate(int slab) throws IOException {
+      int count = Math.min(slotsPerSlab, slots - slab * slotsPerSlab);
+      long size = (long) count * blockSize;
+      if (directory == null) {
+        slabs[slab] = ByteBuffer.allocateDirect((int) size);
+        return;
+      }
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Cannot create spill directory " + directory);
+      }
+      File file = File.createTempFile("spill", ".cache", directory);
+      file.deleteOnExit();
+      files.add(file);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(size);
+        slabs[slab] =
+          raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      finally {
+        raf.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Helper methods for the typed array reads of {@link IRandomAccess}, such
+ * as {@link IRandomAccess#readShorts(short[], int, int)}.
+ */
+final class TypedReads {
+
+  // -- Constants --
+
+  /** Size of the array used to read through handles without a buffer. */
+  private static final int CHUNK_SIZE = 8192;
+
+  // -- Constructor --
+
+  private TypedReads() { }
+
+  // -- TypedReads API methods --
+
+  /**
+   * Fills the remaining space of a typed buffer from the handle's current
+   * position, by reading bytes into a temporary array.  This is used by
+   * handles that do not keep their bytes in a ByteBuffer.
+   *
+   * @param handle the handle from which to read, in its byte order
+   * @param dst a ShortBuffer, IntBuffer, LongBuffer, FloatBuffer or
+   *        DoubleBuffer to fill
+   * @param size the number of bytes in each value
+   * @throws EOFException if the end of the stream is reached first
+   * @throws IOException if reading is not possible
+   */
+  static void readFully(IRandomAccess handle, Buffer dst, int size)
+    throws IOException
+  {
+    // FileHandle reports a null order, but always reads big-endian values
+    ByteOrder order = handle.getOrder();
+    if (order == null) {
+      order = ByteOrder.BIG_ENDIAN;
+    }
+    byte[] chunk =
+      new byte[(int) Math.min(CHUNK_SIZE, (long) dst.remaining() * size)];
+    while (dst.hasRemaining()) {
+      int n = Math.min(dst.remaining(), chunk.length / size) * size;
+      handle.readFully(chunk, 0, n);
+      put(ByteBuffer.wrap(chunk, 0, n).order(order), dst);
+    }
+  }
+
+  /**
+   * @return the number of bytes needed to fill the remaining space of
+   *         <code>dst</code>
+   * @throws EOFException if fewer bytes than that remain in the handle
+   * @throws IOException if the handle's length cannot be retrieved
+   */
+  static int checkLength(IRandomAccess handle, Buffer dst, int size)
+    throws IOException
+  {
+    long bytes = (long) dst.remaining() * size;
+    if (handle.getFilePointer() + bytes > handle.length()) {
+      throw new EOFException(AbstractNIOHandle.EOF_ERROR_MSG);
+    }
+    return (int) bytes;
+  }
+
+  /**
+   * Copies values from the remaining bytes of <code>src</code>, in its
+   * byte order, to a typed buffer.
+   */
+  static void put(ByteBuffer src, Buffer dst) {
+    if (dst instanceof ShortBuffer) {
+      ((ShortBuffer) dst).put(src.asShortBuffer());
+    }
+    else if (dst instanceof IntBuffer) {
+      ((IntBuffer) dst).put(src.asIntBuffer());
+    }
+    else if (dst instanceof LongBuffer) {
+      ((LongBuffer) dst).put(src.asLongBuffer());
+    }
+    else if (dst instanceof FloatBuffer) {
+      ((FloatBuffer) dst).put(src.asFloatBuffer());
+    }
+    else if (dst instanceof DoubleBuffer) {
+      ((DoubleBuffer) dst).put(src.asDoubleBuffer());
+    }
+    else {
+      throw new IllegalArgumentException("Unsupported buffer: " + dst);
+    }
+  }
+
+}
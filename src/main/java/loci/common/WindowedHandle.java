@@ -0,0 +1,486 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a contiguous range of another IRandomAccess, such as
+ * an uncompressed entry within a Zip file.  Offsets are relative to the
+ * start of the range, and reads are passed directly to the underlying
+ * handle, so seeking and reading are as fast as for the underlying handle.
+ *
+ * The underlying handle is owned by the view: its file pointer is moved by
+ * reads and it is closed when the view is closed.
+ *
+ * @see IRandomAccess
+ */
+public class WindowedHandle implements IRandomAccess {
+
+  // -- Constants --
+
+  private static final String EOF_ERROR_MSG =
+    "Attempting to read beyond end of window";
+
+  // -- Fields --
+
+  private final IRandomAccess handle;
+  private final long offset;
+  private final long length;
+  private long fp;
+
+  // -- Constructor --
+
+  /**
+   * Creates a view of <code>length</code> bytes of <code>handle</code>,
+   * starting at <code>offset</code>.
+   *
+   * @param handle the underlying handle
+   * @param offset the offset in <code>handle</code> of the first byte
+   * @param length the number of bytes in the view
+   * @throws IOException if the range extends beyond the end of
+   *         <code>handle</code>
+   */
+  public WindowedHandle(IRandomAccess handle, long offset, long length)
+    throws IOException
+  {
+    if (offset < 0 || length < 0 || offset + length > handle.length()) {
+      throw new IOException("Invalid window: offset=" + offset +
+        ", length=" + length + ", handle length=" + handle.length());
+    }
+    this.handle = handle;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  // -- WindowedHandle API methods --
+
+  /** @return the offset of the view within the underlying handle */
+  public long getOffset() {
+    return offset;
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess.close() */
+  @Override
+  public void close() throws IOException {
+    handle.close();
+  }
+
+  /* @see IRandomAccess.getFilePointer() */
+  @Override
+  public long getFilePointer() {
+    return fp;
+  }
+
+  /* @see IRandomAccess.length() */
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /* @see IRandomAccess.getOrder() */
+  @Override
+  public ByteOrder getOrder() {
+    return handle.getOrder();
+  }
+
+  /* @see IRandomAccess.setOrder(ByteOrder) */
+  @Override
+  public void setOrder(ByteOrder order) {
+    handle.setOrder(order);
+  }
+
+  /* @see IRandomAccess.read(byte[]) */
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  /* @see IRandomAccess.read(byte[], int, int) */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = (int) Math.min(len, length - fp);
+    if (n <= 0) {
+      return 0;
+    }
+    position();
+    n = handle.read(b, off, n);
+    if (n > 0) fp += n;
+    return n;
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer) */
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return read(buffer, 0, buffer.capacity());
+  }
+
+  /* @see IRandomAccess.read(ByteBuffer, int, int) */
+  @Override
+  public int read(ByteBuffer buffer, int off, int len) throws IOException {
+    int n = (int) Math.min(len, length - fp);
+    if (n <= 0) {
+      return 0;
+    }
+    position();
+    n = handle.read(buffer, off, n);
+    if (n > 0) fp += n;
+    return n;
+  }
+
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    if (pos >= length) {
+      return -1;
+    }
+    return handle.read(offset + pos, b, off, (int) Math.min(len, length - pos));
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    if (pos >= length) {
+      return -1;
+    }
+    ByteBuffer d = dst;
+    if (dst.remaining() > length - pos) {
+      d = dst.duplicate();
+      d.limit(d.position() + (int) (length - pos));
+    }
+    int n = handle.read(offset + pos, d);
+    if (n > 0 && d != dst) {
+      dst.position(dst.position() + n);
+    }
+    return n;
+  }
+
+  /**
+   * Requests are translated to offsets within the underlying handle, so
+   * that they are coalesced in the same way.
+   *
+   * @see IRandomAccess#readBatch(List)
+   */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    List<ReadRequest> translated = new ArrayList<ReadRequest>(requests.size());
+    for (ReadRequest r : requests) {
+      if (r.getEnd() > length) {
+        throw new EOFException(EOF_ERROR_MSG);
+      }
+      translated.add(new ReadRequest(offset + r.getOffset(), r.getBuffer(),
+        r.getBufferOffset(), r.getLength()));
+    }
+    handle.readBatch(translated);
+  }
+
+  /* @see IRandomAccess.readShorts(short[], int, int) */
+  @Override
+  public void readShorts(short[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, ShortBuffer.wrap(dst, off, len), 2);
+  }
+
+  /* @see IRandomAccess.readInts(int[], int, int) */
+  @Override
+  public void readInts(int[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, IntBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readLongs(long[], int, int) */
+  @Override
+  public void readLongs(long[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, LongBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.readFloats(float[], int, int) */
+  @Override
+  public void readFloats(float[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, FloatBuffer.wrap(dst, off, len), 4);
+  }
+
+  /* @see IRandomAccess.readDoubles(double[], int, int) */
+  @Override
+  public void readDoubles(double[] dst, int off, int len) throws IOException {
+    TypedReads.readFully(this, DoubleBuffer.wrap(dst, off, len), 8);
+  }
+
+  /* @see IRandomAccess.seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0) {
+      throw new IOException("Negative seek offset: " + pos);
+    }
+    fp = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput.readBoolean() */
+  @Override
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  /* @see java.io.DataInput.readByte() */
+  @Override
+  public byte readByte() throws IOException {
+    prepare(1);
+    return handle.readByte();
+  }
+
+  /* @see java.io.DataInput.readChar() */
+  @Override
+  public char readChar() throws IOException {
+    prepare(2);
+    return handle.readChar();
+  }
+
+  /* @see java.io.DataInput.readDouble() */
+  @Override
+  public double readDouble() throws IOException {
+    prepare(8);
+    return handle.readDouble();
+  }
+
+  /* @see java.io.DataInput.readFloat() */
+  @Override
+  public float readFloat() throws IOException {
+    prepare(4);
+    return handle.readFloat();
+  }
+
+  /* @see java.io.DataInput.readFully(byte[]) */
+  @Override
+  public void readFully(byte[] b) throws IOException {
+    readFully(b, 0, b.length);
+  }
+
+  /* @see java.io.DataInput.readFully(byte[], int, int) */
+  @Override
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    prepare(len);
+    handle.readFully(b, off, len);
+  }
+
+  /* @see java.io.DataInput.readInt() */
+  @Override
+  public int readInt() throws IOException {
+    prepare(4);
+    return handle.readInt();
+  }
+
+  /* @see java.io.DataInput.readLine() */
+  @Override
+  public String readLine() throws IOException {
+    throw new IOException("Unimplemented");
+  }
+
+  /* @see java.io.DataInput.readLong() */
+  @Override
+  public long readLong() throws IOException {
+    prepare(8);
+    return handle.readLong();
+  }
+
+  /* @see java.io.DataInput.readShort() */
+  @Override
+  public short readShort() throws IOException {
+    prepare(2);
+    return handle.readShort();
+  }
+
+  /* @see java.io.DataInput.readUnsignedByte() */
+  @Override
+  public int readUnsignedByte() throws IOException {
+    return readByte() & 0xff;
+  }
+
+  /* @see java.io.DataInput.readUnsignedShort() */
+  @Override
+  public int readUnsignedShort() throws IOException {
+    return readShort() & 0xffff;
+  }
+
+  /* @see java.io.DataInput.readUTF() */
+  @Override
+  public String readUTF() throws IOException {
+    int len = readUnsignedShort();
+    byte[] b = new byte[len];
+    readFully(b);
+    return new String(b, Constants.ENCODING);
+  }
+
+  /* @see java.io.DataInput.skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, length - fp));
+    fp += skipped;
+    return skipped;
+  }
+
+  // -- DataOutput API methods --
+
+  /* @see java.io.DataOutput.write(byte[]) */
+  @Override
+  public void write(byte[] b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.write(byte[], int, int) */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer) */
+  @Override
+  public void write(ByteBuffer buf) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see IRandomAccess.write(ByteBuffer, int, int) */
+  @Override
+  public void write(ByteBuffer buf, int off, int len) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.write(int) */
+  @Override
+  public void write(int b) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeBoolean(boolean) */
+  @Override
+  public void writeBoolean(boolean v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeByte(int) */
+  @Override
+  public void writeByte(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeBytes(String) */
+  @Override
+  public void writeBytes(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeChar(int) */
+  @Override
+  public void writeChar(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeChars(String) */
+  @Override
+  public void writeChars(String s) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeDouble(double) */
+  @Override
+  public void writeDouble(double v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeFloat(float) */
+  @Override
+  public void writeFloat(float v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeInt(int) */
+  @Override
+  public void writeInt(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeLong(long) */
+  @Override
+  public void writeLong(long v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeShort(int) */
+  @Override
+  public void writeShort(int v) throws IOException {
+    throw readOnly();
+  }
+
+  /* @see java.io.DataOutput.writeUTF(String) */
+  @Override
+  public void writeUTF(String str) throws IOException {
+    throw readOnly();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Positions the underlying handle at the file pointer, and advances the
+   * file pointer past the next <code>n</code> bytes.
+   */
+  private void prepare(int n) throws IOException {
+    if (fp + n > length) {
+      throw new EOFException(EOF_ERROR_MSG);
+    }
+    position();
+    fp += n;
+  }
+
+  /** Moves the underlying handle's file pointer to match this view's. */
+  private void position() throws IOException {
+    if (handle.getFilePointer() != offset + fp) {
+      handle.seek(offset + fp);
+    }
+  }
+
+  private static HandleException readOnly() {
+    return new HandleException("This stream is read-only.");
+  }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * The central directory of a Zip file, which lists the name, compression
+ * method, sizes and position of every entry.  Reading the directory from
+ * the end of the file avoids scanning the whole archive to find an entry.
+ * Zip64 archives are supported.
+ *
+ * @see ZipHandle
+ */
+class ZipDirectory {
+
+  // -- Constants --
+
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ENTRY_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+  private static final int END_LENGTH = 22;
+  private static final int ZIP64_LOCATOR_LENGTH = 20;
+  private static final int ZIP64_END_LENGTH = 56;
+  private static final int ENTRY_LENGTH = 46;
+  private static final int LOCAL_LENGTH = 30;
+  private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+  private static final int ZIP64_EXTRA = 0x0001;
+
+  // -- Fields --
+
+  private final long fileLength;
+  private final long lastModified;
+  private final List<Entry> entries;
+  private final Map<String, Entry> byName;
+
+  // -- Constructor --
+
+  private ZipDirectory(long fileLength, long lastModified, List<Entry> entries)
+  {
+    this.fileLength = fileLength;
+    this.lastModified = lastModified;
+    this.entries = Collections.unmodifiableList(entries);
+    this.byName = new HashMap<String, Entry>();
+    for (Entry e : entries) {
+      if (!byName.containsKey(e.getName())) {
+        byName.put(e.getName(), e);
+      }
+    }
+  }
+
+  // -- ZipDirectory API methods --
+
+  /**
+   * Reads the central directory of a Zip file.
+   *
+   * @param file the name of the Zip file, used to detect later changes
+   * @param handle the contents of the Zip file
+   * @return the directory
+   * @throws IOException if the directory cannot be read or is malformed
+   */
+  static ZipDirectory read(String file, IRandomAccess handle)
+    throws IOException
+  {
+    long length = handle.length();
+
+    // the end of central directory record is followed by a comment of up
+    // to 64 KB, so search backwards for its signature
+    int tail = (int) Math.min(length, END_LENGTH + MAX_COMMENT_LENGTH);
+    byte[] b = readAt(handle, length - tail, tail);
+    int end = -1;
+    for (int i=tail - END_LENGTH; i>=0; i--) {
+      if (getInt(b, i) == END_SIGNATURE &&
+        i + END_LENGTH + getShort(b, i + 20) <= tail)
+      {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new IOException("No Zip central directory in " + file);
+    }
+
+    long count = getShort(b, end + 10);
+    long directoryLength = getUnsignedInt(b, end + 12);
+    long directoryOffset = getUnsignedInt(b, end + 16);
+
+    long endOffset = length - tail + end;
+    if (endOffset >= ZIP64_LOCATOR_LENGTH) {
+      byte[] locator = readAt(handle, endOffset - ZIP64_LOCATOR_LENGTH,
+        ZIP64_LOCATOR_LENGTH);
+      if (getInt(locator, 0) == ZIP64_LOCATOR_SIGNATURE) {
+        byte[] zip64 = readAt(handle, getLong(locator, 8), ZIP64_END_LENGTH);
+        if (getInt(zip64, 0) != ZIP64_END_SIGNATURE) {
+          throw new IOException("Invalid Zip64 directory in " + file);
+        }
+        count = getLong(zip64, 32);
+        directoryLength = getLong(zip64, 40);
+        directoryOffset = getLong(zip64, 48);
+      }
+    }
+    if (directoryOffset + directoryLength > length ||
+      directoryLength > Integer.MAX_VALUE)
+    {
+      throw new IOException("Invalid Zip central directory in " + file);
+    }
+
+    byte[] directory = readAt(handle, directoryOffset, (int) directoryLength);
+    List<Entry> entries = new ArrayList<Entry>();
+    int offset = 0;
+    for (long i=0; i<count; i++) {
+      if (offset + ENTRY_LENGTH > directory.length ||
+        getInt(directory, offset) != ENTRY_SIGNATURE)
+      {
+        throw new IOException("Invalid Zip central directory in " + file);
+      }
+      int method = getShort(directory, offset + 10);
+      long crc = getUnsignedInt(directory, offset + 16);
+      long compressedSize = getUnsignedInt(directory, offset + 20);
+      long size = getUnsignedInt(directory, offset + 24);
+      int nameLength = getShort(directory, offset + 28);
+      int extraLength = getShort(directory, offset + 30);
+      int commentLength = getShort(directory, offset + 32);
+      long localOffset = getUnsignedInt(directory, offset + 42);
+      int next = offset + ENTRY_LENGTH + nameLength + extraLength +
+        commentLength;
+      if (next > directory.length) {
+        throw new IOException("Invalid Zip central directory in " + file);
+      }
+
+      // names are decoded as UTF-8, as ZipInputStream does by default
+      String name = new String(directory, offset + ENTRY_LENGTH, nameLength,
+        Constants.ENCODING);
+
+      // Zip64 sizes and offsets are stored in an extra field, in this
+      // order, only for the values that did not fit in 32 bits
+      int extra = offset + ENTRY_LENGTH + nameLength;
+      int extraEnd = extra + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = getShort(directory, extra);
+        int dataLength = getShort(directory, extra + 2);
+        int data = extra + 4;
+        int dataEnd = Math.min(data + dataLength, extraEnd);
+        if (id == ZIP64_EXTRA) {
+          if (size == 0xffffffffL && data + 8 <= dataEnd) {
+            size = getLong(directory, data);
+            data += 8;
+          }
+          if (compressedSize == 0xffffffffL && data + 8 <= dataEnd) {
+            compressedSize = getLong(directory, data);
+            data += 8;
+          }
+          if (localOffset == 0xffffffffL && data + 8 <= dataEnd) {
+            localOffset = getLong(directory, data);
+          }
+        }
+        extra += 4 + dataLength;
+      }
+
+      entries.add(new Entry(name, method, crc, compressedSize, size,
+        localOffset));
+      offset = next;
+    }
+
+    File f = new File(file);
+    return new ZipDirectory(length, f.lastModified(), entries);
+  }
+
+  /**
+   * @param file the name of the Zip file
+   * @param handle the contents of the Zip file
+   * @return true if the file has not changed since this directory was read
+   * @throws IOException if the length of the file cannot be retrieved
+   */
+  boolean matches(String file, IRandomAccess handle) throws IOException {
+    return handle.length() == fileLength &&
+      new File(file).lastModified() == lastModified;
+  }
+
+  /** @return the entries, in the order in which they are listed */
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @param name the name of an entry
+   * @return the first entry with the given name, or null if there is none
+   */
+  Entry getEntry(String name) {
+    return byName.get(name);
+  }
+
+  /** @return the number of entries */
+  int size() {
+    return entries.size();
+  }
+
+  // -- Helper methods --
+
+  private static byte[] readAt(IRandomAccess handle, long pos, int len)
+    throws IOException
+  {
+    byte[] b = new byte[len];
+    int off = 0;
+    while (off < len) {
+      int n = handle.read(pos + off, b, off, len - off);
+      if (n <= 0) {
+        throw new IOException("Unexpected end of Zip file");
+      }
+      off += n;
+    }
+    return b;
+  }
+
+  private static int getShort(byte[] b, int off) {
+    return DataTools.bytesToInt(b, off, 2, true);
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return DataTools.bytesToInt(b, off, 4, true);
+  }
+
+  private static long getUnsignedInt(byte[] b, int off) {
+    return getInt(b, off) & 0xffffffffL;
+  }
+
+  private static long getLong(byte[] b, int off) {
+    return DataTools.bytesToLong(b, off, 8, true);
+  }
+
+  // -- Helper classes --
+
+  /** An entry listed in the central directory. */
+  static final class Entry {
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localOffset;
+
+    /** Offset of the entry data, read lazily from the local header. */
+    private volatile long dataOffset = -1;
+
+    Entry(String name, int method, long crc, long compressedSize, long size,
+      long localOffset)
+    {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localOffset = localOffset;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /** @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} */
+    int getMethod() {
+      return method;
+    }
+
+    long getCrc() {
+      return crc;
+    }
+
+    long getCompressedSize() {
+      return compressedSize;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    /**
+     * Returns the offset of the entry's (possibly compressed) data.
+     * The length of the local header is not recorded in the central
+     * directory, so it is read on first use.
+     *
+     * @param handle the contents of the Zip file
+     * @return the offset of the first byte after the local header
+     * @throws IOException if the local header cannot be read
+     */
+    long getDataOffset(IRandomAccess handle) throws IOException {
+      if (dataOffset < 0) {
+        byte[] b = readAt(handle, localOffset, LOCAL_LENGTH);
+        if (getInt(b, 0) != LOCAL_SIGNATURE) {
+          throw new IOException("Invalid Zip local header for " + name);
+        }
+        dataOffset = localOffset + LOCAL_LENGTH + getShort(b, 26) +
+          getShort(b, 28);
+      }
+      return dataOffset;
+    }
+  }
+
+}
@@ -36,23 +36,50 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * StreamHandle implementation for reading from Zip-compressed files
  * or byte arrays.  Instances of ZipHandle are read-only.
  *
+ * Entries are located using the Zip file's central directory, which is
+ * cached for each file, so opening an entry does not require reading the
+ * entries before it.  Entries that are stored without compression are
+ * read through a {@link WindowedHandle}, so they can be seeked and read
+ * directly without any decompression.  The CRC-32 of compressed entries
+ * is checked against the central directory whenever an entry is
+ * decompressed to its end.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class ZipHandle extends StreamHandle {
 
+  // -- Static fields --
+
+  /** Directories of recently opened files, keyed by name. */
+  private static final Cache<String, ZipDirectory> DIRECTORIES =
+    CacheBuilder.newBuilder().maximumSize(64).softValues().build();
+
   // -- Fields --
 
-  private RandomAccessInputStream in;
-  private ZipInputStream zip;
+  private IRandomAccess in;
+  private ZipDirectory.Entry entry;
+
+  /** View of the entry data, if the entry is stored without compression. */
+  private WindowedHandle window;
   private String entryName;
   private int entryCount;
 
@@ -62,10 +89,10 @@ public class ZipHandle extends StreamHandle {
     super();
     this.file = file;
 
-    in = openStream(file);
-    zip = new ZipInputStream(in);
+    in = getHandle(file);
+    ZipDirectory directory = getDirectory(file, in);
     entryName = null;
-    entryCount = 0;
+    entryCount = directory.size();
 
     // strip off .zip extension and directory prefix
     String innerFile = file.substring(0, file.length() - 4);
@@ -74,25 +101,17 @@ public class ZipHandle extends StreamHandle {
     if (slash >= 0) innerFile = innerFile.substring(slash + 1);
 
     // look for Zip entry with same prefix as the Zip file itself
-    boolean matchFound = false;
     length = 0;
-    while (true) {
-      ZipEntry ze = zip.getNextEntry();
-      if (ze == null) break;
-      if (entryName == null) entryName = ze.getName();
-      if (!matchFound && ze.getName().startsWith(innerFile)) {
-        // found entry with matching name
-        entryName = ze.getName();
-        matchFound = true;
+    for (ZipDirectory.Entry e : directory.getEntries()) {
+      if (entry == null || (!entry.getName().startsWith(innerFile) &&
+        e.getName().startsWith(innerFile)))
+      {
+        entry = e;
       }
-      entryCount++;
-      length += ze.getSize();
+      length += e.getSize();
     }
+    if (entry != null) entryName = entry.getName();
     resetStream();
-
-    if (length <= 0) {
-      populateLength();
-    }
   }
 
   /**
@@ -109,17 +128,17 @@ public class ZipHandle extends StreamHandle {
     super();
     this.file = file;
 
-    in = openStream(file);
-    zip = new ZipInputStream(in);
+    in = getHandle(file);
     entryName = entry.getName();
     entryCount = 1;
 
-    seekToEntry();
-    resetStream();
-    length = entry.getSize();
-    if (length <= 0) {
-      populateLength();
+    this.entry = getDirectory(file, in).getEntry(entryName);
+    if (this.entry == null) {
+      in.close();
+      throw new IOException("No entry " + entryName + " in " + file);
     }
+    resetStream();
+    length = this.entry.getSize();
   }
 
   // -- ZipHandle API methods --
@@ -165,13 +184,73 @@ public class ZipHandle extends StreamHandle {
 
   // -- IRandomAccess API methods --
 
+  /**
+   * Entries that are stored without compression are seeked directly;
+   * otherwise, decompression restarts from the beginning of the entry
+   * if <code>pos</code> is behind the current position.
+   *
+   * @see IRandomAccess#seek(long)
+   */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (window != null) {
+      window.seek(pos);
+      fp = pos;
+    }
+    else {
+      super.seek(pos);
+    }
+  }
+
+  /* @see IRandomAccess#read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    if (window != null) {
+      return window.read(pos, b, off, len);
+    }
+    return super.read(pos, b, off, len);
+  }
+
+  /* @see IRandomAccess#read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer dst) throws IOException {
+    if (window != null) {
+      return window.read(pos, dst);
+    }
+    return super.read(pos, dst);
+  }
+
+  /* @see IRandomAccess#readBatch(List) */
+  @Override
+  public void readBatch(List<ReadRequest> requests) throws IOException {
+    if (window != null) {
+      window.readBatch(requests);
+    }
+    else {
+      super.readBatch(requests);
+    }
+  }
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    if (window != null) {
+      int skipped = window.skipBytes(n);
+      fp += skipped;
+      return skipped;
+    }
+    return super.skipBytes(n);
+  }
+
   /* @see IRandomAccess#close() */
   @Override
   public void close() throws IOException {
     super.close();
-    zip = null;
+    entry = null;
     entryName = null;
-    if (in != null) in.close();
+    if (window != null) window.close();
+    else if (in != null) in.close();
+    window = null;
     in = null;
     entryCount = 0;
   }
@@ -181,42 +260,215 @@ public class ZipHandle extends StreamHandle {
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    openEntry(0);
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Replaces the current stream with one that reads the entry from the
+   * given decompressed offset, which must be 0 unless the entry is stored
+   * without compression.
+   */
+  private void openEntry(long pos) throws IOException {
+    if (window != null) {
+      window.seek(pos);
+      return;
+    }
     if (stream != null) stream.close();
-    if (in != null) {
-      in.close();
-      in = openStream(file);
+    InputStream data;
+    if (entry == null) {
+      data = new EntryInputStream(in, 0, 0);
+    }
+    else {
+      long offset = entry.getDataOffset(in);
+      switch (entry.getMethod()) {
+        case ZipEntry.STORED:
+          // the window is positioned independently of the stream, which
+          // is left unbuffered so that the two cannot disagree
+          window = new WindowedHandle(in, offset, entry.getSize());
+          window.seek(pos);
+          stream = new DataInputStream(new WindowInputStream(window));
+          return;
+        case ZipEntry.DEFLATED:
+          // the inflater may need one byte beyond the compressed data,
+          // which is always present since the central directory follows
+          final Inflater inflater = new Inflater(true);
+          data = new CheckedEntryStream(new InflaterInputStream(
+            new EntryInputStream(in, offset, entry.getCompressedSize() + 1),
+            inflater, 8192)
+          {
+            @Override
+            public void close() throws IOException {
+              super.close();
+              inflater.end();
+            }
+          }, entry);
+          break;
+        default:
+          throw new IOException("Unsupported compression method " +
+            entry.getMethod() + " for " + entryName);
+      }
     }
-    if (zip != null) zip.close();
-    zip = new ZipInputStream(in);
-    if (entryName != null) seekToEntry();
     stream = new DataInputStream(new BufferedInputStream(
-      zip, RandomAccessInputStream.MAX_OVERHEAD));
+      data, RandomAccessInputStream.MAX_OVERHEAD));
     stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
   }
 
-  // -- Helper methods --
+  /**
+   * Returns the central directory of the given file, from the cache if it
+   * is up to date, and otherwise by reading it from the file.
+   */
+  private static ZipDirectory getDirectory(String file, IRandomAccess handle)
+    throws IOException
+  {
+    ZipDirectory directory = DIRECTORIES.getIfPresent(file);
+    if (directory == null || !directory.matches(file, handle)) {
+      directory = ZipDirectory.read(file, handle);
+      DIRECTORIES.put(file, directory);
+    }
+    return directory;
+  }
 
-  private void seekToEntry() throws IOException {
-    while (!entryName.equals(zip.getNextEntry().getName()));
+  private static IRandomAccess getHandle(String file) throws IOException {
+    return Location.getHandle(file, false, false);
   }
 
-  private void populateLength() throws IOException {
-    length = -1;
-    while (stream.available() > 0) {
-      stream.skip(1);
-      length++;
+  // -- Helper classes --
+
+  /**
+   * Computes the CRC-32 of a decompressed entry as it is read, and compares
+   * it with the value in the central directory once the whole entry has
+   * been read.
+   */
+  private static final class CheckedEntryStream extends CheckedInputStream {
+    private final ZipDirectory.Entry entry;
+    private long count;
+    private boolean verified;
+
+    CheckedEntryStream(InputStream in, ZipDirectory.Entry entry) {
+      super(in, new CRC32());
+      this.entry = entry;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      update(b < 0 ? -1 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      update(n);
+      return n;
+    }
+
+    /** Counts the bytes read, checking the CRC-32 at the end of the entry. */
+    private void update(int n) throws ZipException {
+      if (n > 0) {
+        count += n;
+      }
+      if (!verified && (n < 0 || count >= entry.getSize())) {
+        verified = true;
+        long crc = getChecksum().getValue();
+        if (count != entry.getSize() || crc != entry.getCrc()) {
+          throw new ZipException("Invalid CRC-32 or size for entry " +
+            entry.getName());
+        }
+      }
     }
-    resetStream();
   }
 
-  private static IRandomAccess getHandle(String file) throws IOException {
-    return Location.getHandle(file, false, false);
+  /**
+   * Reads a range of the Zip file, using positional reads so that several
+   * streams may share the same handle.
+   */
+  private static final class EntryInputStream extends InputStream {
+    private final IRandomAccess handle;
+    private long position;
+    private long remaining;
+
+    EntryInputStream(IRandomAccess handle, long position, long length)
+      throws IOException
+    {
+      this.handle = handle;
+      this.position = position;
+      this.remaining = Math.max(0,
+        Math.min(length, handle.length() - position));
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = handle.read(position, b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        position += n;
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, remaining));
+      position += skipped;
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
   }
 
-  private static RandomAccessInputStream openStream(String file)
-    throws IOException
-  {
-    return new RandomAccessInputStream(getHandle(file), file);
+  /** Reads from the current position of a window. */
+  private static final class WindowInputStream extends InputStream {
+    private final WindowedHandle window;
+
+    WindowInputStream(WindowedHandle window) {
+      this.window = window;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (window.getFilePointer() >= window.length()) {
+        return -1;
+      }
+      return window.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len > 0 && window.getFilePointer() >= window.length()) {
+        return -1;
+      }
+      return window.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0,
+        Math.min(n, window.length() - window.getFilePointer()));
+      window.seek(window.getFilePointer() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(window.length() - window.getFilePointer(),
+        Integer.MAX_VALUE);
+    }
   }
 
 }
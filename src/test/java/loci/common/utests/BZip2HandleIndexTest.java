@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import loci.common.BZip2Handle;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for seeking within BZip2 files using the block index.
+ *
+ * @see loci.common.BZip2Handle
+ */
+public class BZip2HandleIndexTest {
+
+  // -- Fields --
+
+  private byte[] data;
+  private File file;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Random random = new Random(23);
+    data = new byte[1536 * 1024];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : i / 64);
+    }
+    File raw = File.createTempFile("BZip2HandleIndexTest", ".dat");
+    raw.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(raw);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+
+    // use the smallest block size, so that the file has many blocks
+    try {
+      Process p = Runtime.getRuntime().exec(
+        new String[] {"bzip2", "-1", raw.getAbsolutePath()});
+      p.waitFor();
+    }
+    catch (IOException e) {
+      raw.delete();
+      throw new SkipException("bzip2 is not installed");
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    file = new File(raw.getAbsolutePath() + ".bz2");
+    file.deleteOnExit();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    if (file != null) {
+      file.delete();
+    }
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testLength() throws IOException {
+    BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+    try {
+      assertEquals(data.length, handle.length());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testRandomSeeks() throws IOException {
+    BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+    try {
+      Random random = new Random(5);
+      for (int i=0; i<50; i++) {
+        assertReadAt(handle, random.nextInt(data.length - 500), 500);
+      }
+      assertReadAt(handle, data.length - 1, 1);
+      assertReadAt(handle, 0, 100);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testReadAcrossBlocks() throws IOException {
+    BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+    try {
+      assertReadAt(handle, data.length - 1000, 1000);
+      assertReadAt(handle, 200000, data.length - 200000);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testParallelRead() throws IOException {
+    BZip2Handle.setParallelism(4);
+    try {
+      BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+      try {
+        assertEquals(data.length, handle.length());
+        assertReadAt(handle, 0, data.length);
+      }
+      finally {
+        handle.close();
+      }
+    }
+    finally {
+      BZip2Handle.setParallelism(1);
+    }
+  }
+
+  @Test
+  public void testParallelRandomSeeks() throws IOException {
+    BZip2Handle.setParallelism(3);
+    try {
+      BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+      try {
+        Random random = new Random(7);
+        for (int i=0; i<20; i++) {
+          assertReadAt(handle, random.nextInt(data.length - 500000), 500000);
+        }
+      }
+      finally {
+        handle.close();
+      }
+    }
+    finally {
+      BZip2Handle.setParallelism(1);
+    }
+  }
+
+  // -- Helper methods --
+
+  private void assertReadAt(BZip2Handle handle, int pos, int len)
+    throws IOException
+  {
+    handle.seek(pos);
+    assertEquals(pos, handle.getFilePointer());
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    for (int i=0; i<len; i++) {
+      assertEquals(data[pos + i], b[i]);
+    }
+  }
+
+}
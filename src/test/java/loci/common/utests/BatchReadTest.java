@@ -0,0 +1,192 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.IRandomAccess;
+import loci.common.ReadRequest;
+import loci.common.utests.providers.IRandomAccessProvider;
+import loci.common.utests.providers.IRandomAccessProviderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for batch reads from a loci.common.IRandomAccess.
+ *
+ * @see loci.common.IRandomAccess#readBatch(List)
+ * @see loci.common.ReadRequest
+ */
+@Test(groups="readTests")
+public class BatchReadTest {
+
+  private static final byte[] PAGE = new byte[512];
+
+  static {
+    for (int i=0; i<PAGE.length; i++) {
+      PAGE[i] = (byte) (i * 7 + 1);
+    }
+  }
+
+  private static final String MODE = "r";
+
+  private static final int BUFFER_SIZE = 16;
+
+  private IRandomAccess fileHandle;
+
+  private int maxGap;
+
+  @Parameters({"provider"})
+  @BeforeMethod
+  public void setUp(String provider) throws IOException {
+    IRandomAccessProviderFactory factory = new IRandomAccessProviderFactory();
+    IRandomAccessProvider instance = factory.getInstance(provider);
+    fileHandle = instance.createMock(PAGE, MODE, BUFFER_SIZE);
+    maxGap = ReadRequest.getMaxGap();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    fileHandle.close();
+    ReadRequest.setMaxGap(maxGap);
+  }
+
+  private void assertRead(ReadRequest r) {
+    for (int i=0; i<r.getLength(); i++) {
+      assertEquals(PAGE[(int) r.getOffset() + i],
+        r.getBuffer()[r.getBufferOffset() + i]);
+    }
+  }
+
+  private List<ReadRequest> requests() {
+    List<ReadRequest> requests = new ArrayList<ReadRequest>();
+    requests.add(new ReadRequest(300, new byte[20]));
+    requests.add(new ReadRequest(0, new byte[10]));
+    requests.add(new ReadRequest(10, new byte[30], 5, 25));
+    requests.add(new ReadRequest(40, new byte[4]));
+    requests.add(new ReadRequest(60, new byte[16]));
+    requests.add(new ReadRequest(500, new byte[12]));
+    return requests;
+  }
+
+  @Test
+  public void testReadBatch() throws IOException {
+    fileHandle.seek(7);
+    List<ReadRequest> requests = requests();
+    fileHandle.readBatch(requests);
+    for (ReadRequest r : requests) {
+      assertRead(r);
+    }
+    assertEquals(7, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testReadBatchNoGap() throws IOException {
+    ReadRequest.setMaxGap(0);
+    List<ReadRequest> requests = requests();
+    fileHandle.readBatch(requests);
+    for (ReadRequest r : requests) {
+      assertRead(r);
+    }
+  }
+
+  @Test
+  public void testReadBatchOverlapping() throws IOException {
+    List<ReadRequest> requests = new ArrayList<ReadRequest>();
+    requests.add(new ReadRequest(100, new byte[50]));
+    requests.add(new ReadRequest(120, new byte[10]));
+    requests.add(new ReadRequest(140, new byte[40]));
+    requests.add(new ReadRequest(100, new byte[1]));
+    fileHandle.readBatch(requests);
+    for (ReadRequest r : requests) {
+      assertRead(r);
+    }
+  }
+
+  @Test
+  public void testReadBatchEmpty() throws IOException {
+    fileHandle.readBatch(new ArrayList<ReadRequest>());
+    assertEquals(0, fileHandle.getFilePointer());
+  }
+
+  @Test(expectedExceptions = EOFException.class)
+  public void testReadBatchPastEnd() throws IOException {
+    List<ReadRequest> requests = requests();
+    requests.add(new ReadRequest(PAGE.length - 4, new byte[8]));
+    fileHandle.readBatch(requests);
+  }
+
+  @Test
+  public void testCoalesce() {
+    List<ReadRequest.Run> runs =
+      ReadRequest.coalesce(requests(), 16, Integer.MAX_VALUE);
+    assertEquals(3, runs.size());
+    assertEquals(0, runs.get(0).getStart());
+    assertEquals(76, runs.get(0).getEnd());
+    assertEquals(4, runs.get(0).size());
+    assertFalse(runs.get(0).isOverlapping());
+    assertEquals(300, runs.get(1).getStart());
+    assertEquals(500, runs.get(2).getStart());
+
+    runs = ReadRequest.coalesce(requests(), 0, Integer.MAX_VALUE);
+    assertEquals(5, runs.size());
+    assertEquals(35, runs.get(0).getEnd());
+
+    runs = ReadRequest.coalesce(requests(), 16, 40);
+    assertEquals(4, runs.size());
+    assertEquals(35, runs.get(0).getLength());
+    assertEquals(36, runs.get(1).getLength());
+  }
+
+  @Test
+  public void testCoalesceOverlapping() {
+    List<ReadRequest.Run> runs = ReadRequest.coalesce(Arrays.asList(
+      new ReadRequest(0, new byte[10]), new ReadRequest(5, new byte[2])),
+      0, Integer.MAX_VALUE);
+    assertEquals(1, runs.size());
+    assertEquals(10, runs.get(0).getLength());
+    assertTrue(runs.get(0).isOverlapping());
+  }
+
+}
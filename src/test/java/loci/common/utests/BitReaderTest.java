@@ -0,0 +1,190 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import loci.common.BitReader;
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for reading bits through an accumulator.
+ *
+ * @see loci.common.BitReader
+ */
+public class BitReaderTest {
+
+  // -- Constants --
+
+  private static final int COUNT = 20000;
+
+  // -- Fields --
+
+  private int[] values;
+
+  private int[] widths;
+
+  private ByteArrayHandle handle;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Random r = new Random(42);
+    values = new int[COUNT];
+    widths = new int[COUNT];
+    handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    for (int i=0; i<COUNT; i++) {
+      widths[i] = 1 + r.nextInt(30);
+      values[i] = r.nextInt(1 << widths[i]);
+      out.writeBits(values[i], widths[i]);
+    }
+    out.close();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testReadBits() throws IOException {
+    // a small buffer makes values cross buffer boundaries
+    BitReader bits = new BitReader(stream(), 7);
+    long position = 0;
+    for (int i=0; i<COUNT; i++) {
+      assertEquals(values[i], bits.peekBits(widths[i]));
+      assertEquals(values[i], bits.readBits(widths[i]));
+      position += widths[i];
+      assertEquals(position, bits.getBitPosition());
+    }
+  }
+
+  @Test
+  public void testLongValues() throws IOException {
+    RandomAccessInputStream in = stream();
+    BitReader bits = new BitReader(in);
+    long expected = ((long) values[0] << widths[1]) | values[1];
+    assertEquals(expected, bits.readBits(widths[0] + widths[1]));
+
+    in.seek(0);
+    bits = new BitReader(in);
+    long value = bits.readBits(BitReader.MAX_BITS);
+    in.seek(0);
+    long high = in.readBits(32) & 0xffffffffL;
+    long low = in.readBits(BitReader.MAX_BITS - 32);
+    assertEquals((high << (BitReader.MAX_BITS - 32)) | low, value);
+  }
+
+  @Test
+  public void testBulk() throws IOException {
+    RandomAccessInputStream in = stream();
+    int[] expected = new int[100];
+    for (int i=0; i<expected.length; i++) {
+      expected[i] = in.readBits(12);
+    }
+    in.seek(0);
+    BitReader bits = new BitReader(in);
+    int[] actual = new int[expected.length + 2];
+    bits.readBits(actual, 1, expected.length, 12);
+    for (int i=0; i<expected.length; i++) {
+      assertEquals(expected[i], actual[i + 1]);
+    }
+  }
+
+  @Test
+  public void testSkipAndSync() throws IOException {
+    RandomAccessInputStream in = stream();
+    in.readBits(widths[0]);
+    BitReader bits = new BitReader(in, 16);
+    assertEquals(values[1], bits.readBits(widths[1]));
+    long skip = 0;
+    for (int i=2; i<COUNT-1; i++) {
+      skip += widths[i];
+    }
+    bits.skipBits(skip);
+    assertEquals(values[COUNT - 1], bits.peekBits(widths[COUNT - 1]));
+
+    // the stream continues where the bit reader stopped
+    bits.close();
+    assertEquals(values[COUNT - 1], in.readBits(widths[COUNT - 1]));
+  }
+
+  @Test
+  public void testAlign() throws IOException {
+    BitReader bits = new BitReader(stream());
+    assertTrue(bits.isBitOnByteBoundary());
+    bits.readBits(3);
+    assertFalse(bits.isBitOnByteBoundary());
+    bits.alignToByte();
+    assertTrue(bits.isBitOnByteBoundary());
+    assertEquals(8, bits.getBitPosition());
+    assertEquals(handle.getBytes()[1] & 0xff, bits.readBits(8));
+  }
+
+  @Test
+  public void testEOF() throws IOException {
+    BitReader bits =
+      new BitReader(new RandomAccessInputStream(new byte[] {(byte) 0xa5}));
+    assertEquals(0xa5 << 4, bits.peekBits(12));
+    assertEquals(0xa, bits.readBits(4));
+    try {
+      bits.readBits(5);
+      throw new AssertionError("Expected an EOFException");
+    }
+    catch (EOFException e) { }
+    assertEquals(0x5, bits.readBits(4));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooManyBits() throws IOException {
+    new BitReader(stream()).readBits(BitReader.MAX_BITS + 1);
+  }
+
+  // -- Helper methods --
+
+  private RandomAccessInputStream stream() throws IOException {
+    return new RandomAccessInputStream(new ByteArrayHandle(
+      handle.getBytes().clone()));
+  }
+
+}
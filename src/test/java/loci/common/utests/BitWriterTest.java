@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.BitReader;
+import loci.common.BitWriter;
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for writing bits through an accumulator.
+ *
+ * @see loci.common.BitWriter
+ */
+public class BitWriterTest {
+
+  // -- Tests --
+
+  @Test
+  public void testSameAsStream() throws IOException {
+    Random r = new Random(7);
+    ByteArrayHandle expected = new ByteArrayHandle();
+    ByteArrayHandle actual = new ByteArrayHandle();
+    RandomAccessOutputStream plain = new RandomAccessOutputStream(expected);
+    RandomAccessOutputStream stream = new RandomAccessOutputStream(actual);
+    // a small buffer makes values cross buffer boundaries
+    BitWriter bits = new BitWriter(stream, 5);
+    long count = 0;
+    for (int i=0; i<10000; i++) {
+      int n = r.nextInt(32);
+      int value = r.nextInt();
+      plain.writeBits(value, n);
+      bits.writeBits(value, n);
+      count += n;
+      assertEquals(count, bits.getBitCount());
+    }
+    plain.close();
+    bits.close();
+    stream.close();
+    assertTrue(Arrays.equals(bytes(expected), bytes(actual)));
+  }
+
+  @Test
+  public void testLongValues() throws IOException {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream stream = new RandomAccessOutputStream(handle);
+    BitWriter bits = new BitWriter(stream);
+    long big = 0x123456789abcdefL;
+    bits.writeBits(1, 1);
+    bits.writeBits(big, BitWriter.MAX_BITS);
+    bits.writeBits(big, 40);
+    bits.close();
+
+    BitReader reader = new BitReader(new RandomAccessInputStream(handle));
+    assertEquals(1, reader.readBits(1));
+    assertEquals(big & ((1L << BitWriter.MAX_BITS) - 1),
+      reader.readBits(BitWriter.MAX_BITS));
+    assertEquals(big & ((1L << 40) - 1), reader.readBits(40));
+    assertEquals(13, handle.length());
+  }
+
+  @Test
+  public void testBulk() throws IOException {
+    int[] values = new int[1001];
+    for (int i=0; i<values.length; i++) {
+      values[i] = (i * 37) & 0xfff;
+    }
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream stream = new RandomAccessOutputStream(handle);
+    BitWriter bits = new BitWriter(stream);
+    bits.writeBits(values, 1, values.length - 1, 12);
+    bits.close();
+    assertEquals(1500, handle.length());
+
+    int[] read = new int[values.length];
+    new BitReader(new RandomAccessInputStream(handle)).readBits(
+      read, 1, values.length - 1, 12);
+    assertEquals(0, values[0]);
+    assertTrue(Arrays.equals(values, read));
+  }
+
+  @Test
+  public void testContinueStream() throws IOException {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream stream = new RandomAccessOutputStream(handle);
+    stream.writeBits(5, 3);
+    BitWriter bits = new BitWriter(stream);
+    assertEquals(3, bits.getBitCount());
+    bits.writeBits("10110");
+    assertTrue(bits.isBitOnByteBoundary());
+    bits.writeBits(1, 1);
+    bits.alignToByte();
+    bits.writeBits(0xff, 8);
+    bits.close();
+    stream.close();
+    assertEquals(3, handle.length());
+    assertEquals((byte) 0xb6, handle.getBytes()[0]);
+    assertEquals((byte) 0x80, handle.getBytes()[1]);
+    assertEquals((byte) 0xff, handle.getBytes()[2]);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testIllegalString() throws IOException {
+    new BitWriter(new RandomAccessOutputStream(new ByteArrayHandle()))
+      .writeBits("012");
+  }
+
+  // -- Helper methods --
+
+  private byte[] bytes(ByteArrayHandle handle) throws IOException {
+    return Arrays.copyOf(handle.getBytes(), (int) handle.length());
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.BlockCache;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the process-wide block cache used by NIOFileHandle.
+ *
+ * @see loci.common.BlockCache
+ */
+public class BlockCacheTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 1024;
+
+  // -- Fields --
+
+  private File file;
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    data = new byte[64 * BLOCK_SIZE + 17];
+    new Random(5).nextBytes(data);
+    file = File.createTempFile("blockcache", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    BlockCache.setShared(null);
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testSharedBetweenHandles() throws IOException {
+    BlockCache cache = new BlockCache(1024 * BLOCK_SIZE, BLOCK_SIZE);
+    BlockCache.setShared(cache);
+
+    NIOFileHandle first = open();
+    assertTrue(first.isBlockCacheEnabled());
+    assertEquals(data.length, readAll(first));
+    first.close();
+    long misses = cache.getMissCount();
+    assertEquals(65, misses);
+
+    NIOFileHandle second = open();
+    assertEquals(data.length, readAll(second));
+    second.close();
+    assertEquals(misses, cache.getMissCount());
+    assertTrue(cache.getHitCount() > 0);
+    assertEquals(data.length, cache.getResidentBytes());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    BlockCache cache = new BlockCache(16 * BLOCK_SIZE, BLOCK_SIZE);
+    BlockCache.setShared(cache);
+
+    NIOFileHandle handle = open();
+    assertEquals(data.length, readAll(handle));
+    handle.close();
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.getResidentBytes() <= cache.getCapacity());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    BlockCache cache = new BlockCache(1024 * BLOCK_SIZE, BLOCK_SIZE);
+    BlockCache.setShared(cache);
+
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BLOCK_SIZE);
+    handle.setBlockCacheEnabled(false);
+    assertEquals(data.length, readAll(handle));
+    handle.close();
+    assertEquals(0, cache.getMissCount());
+    assertEquals(0, cache.getResidentBytes());
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    BlockCache.setShared(new BlockCache(8 * BLOCK_SIZE, BLOCK_SIZE));
+    final NIOFileHandle handle = open();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t=0; t<8; t++) {
+        final long seed = t;
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            Random r = new Random(seed);
+            byte[] b = new byte[3 * BLOCK_SIZE];
+            for (int i=0; i<200; i++) {
+              int pos = r.nextInt(data.length);
+              int len = Math.min(b.length, data.length - pos);
+              int n = handle.read(pos, b, 0, len);
+              if (n != len || !Arrays.equals(
+                Arrays.copyOfRange(b, 0, n),
+                Arrays.copyOfRange(data, pos, pos + n)))
+              {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    }
+    finally {
+      pool.shutdown();
+      handle.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private NIOFileHandle open() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BLOCK_SIZE);
+    handle.setBlockCacheEnabled(true);
+    return handle;
+  }
+
+  private int readAll(NIOFileHandle handle) throws IOException {
+    byte[] b = new byte[data.length];
+    int total = 0;
+    while (total < b.length) {
+      int n = handle.read(b, total, Math.min(777, b.length - total));
+      if (n <= 0) break;
+      total += n;
+    }
+    assertTrue(Arrays.equals(data, b));
+    return total;
+  }
+
+}
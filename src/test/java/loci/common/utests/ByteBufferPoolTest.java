@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import loci.common.ByteBufferPool;
+import loci.common.NIOByteBufferProvider;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the loci.common.ByteBufferPool class.
+ *
+ * @see loci.common.ByteBufferPool
+ */
+public class ByteBufferPoolTest {
+
+  // -- Fields --
+
+  private ByteBufferPool pool;
+  private ByteBufferPool originalPool;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() {
+    pool = new ByteBufferPool(64 * 1024, false);
+    originalPool = NIOByteBufferProvider.getBufferPool();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    NIOByteBufferProvider.setBufferPool(originalPool);
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testSizeClasses() {
+    ByteBuffer small = pool.acquire(10);
+    assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, small.capacity());
+    assertEquals(10, small.limit());
+    ByteBuffer large = pool.acquire(5000);
+    assertEquals(8192, large.capacity());
+    assertEquals(5000, large.limit());
+    ByteBuffer exact = pool.acquire(8192);
+    assertEquals(8192, exact.capacity());
+  }
+
+  @Test
+  public void testHitsAndMisses() {
+    ByteBuffer first = pool.acquire(1000);
+    assertEquals(0, pool.getHitCount());
+    assertEquals(1, pool.getMissCount());
+    first.order(ByteOrder.LITTLE_ENDIAN);
+    first.put((byte) 1);
+    pool.release(first);
+    assertEquals(first.capacity(), pool.getPooledBytes());
+
+    ByteBuffer second = pool.acquire(2000);
+    assertSame(first, second);
+    assertEquals(1, pool.getHitCount());
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(0, second.position());
+    assertEquals(2000, second.limit());
+    assertEquals(ByteOrder.BIG_ENDIAN, second.order());
+  }
+
+  @Test
+  public void testCapacityLimit() {
+    ByteBuffer a = pool.acquire(32 * 1024);
+    ByteBuffer b = pool.acquire(32 * 1024);
+    ByteBuffer c = pool.acquire(32 * 1024);
+    pool.release(a);
+    pool.release(b);
+    pool.release(c);
+    assertEquals(64 * 1024, pool.getPooledBytes());
+    assertEquals(1, pool.getDiscardCount());
+    pool.clear();
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testForeignBuffersDiscarded() {
+    pool.release(ByteBuffer.allocate(5000));
+    pool.release(ByteBuffer.allocateDirect(4096));
+    pool.release(ByteBuffer.allocate(4096).asReadOnlyBuffer());
+    assertEquals(3, pool.getDiscardCount());
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testNIOFileHandleReuse() throws IOException {
+    byte[] page = new byte[64 * 1024];
+    for (int i=0; i<page.length; i++) {
+      page[i] = (byte) i;
+    }
+    File file = File.createTempFile("pool", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(page);
+    }
+    finally {
+      out.close();
+    }
+
+    NIOByteBufferProvider.setBufferPool(pool);
+    NIOFileHandle handle = new NIOFileHandle(file, "r", 4096);
+    try {
+      for (int i=0; i<page.length; i+=1000) {
+        handle.seek(page.length - 1 - i);
+        assertEquals(page[page.length - 1 - i], handle.readByte());
+      }
+    }
+    finally {
+      handle.close();
+    }
+    long misses = pool.getMissCount();
+    assertTrue(pool.getHitCount() > 0);
+    assertTrue(pool.getPooledBytes() > 0);
+
+    handle = new NIOFileHandle(file, "r", 4096);
+    try {
+      handle.seek(12345);
+      assertEquals(page[12345], handle.readByte());
+    }
+    finally {
+      handle.close();
+    }
+    assertEquals(misses, pool.getMissCount());
+  }
+
+}
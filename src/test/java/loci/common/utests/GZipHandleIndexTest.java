@@ -0,0 +1,257 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.GZipHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for seeking within indexed gzip files.
+ *
+ * @see loci.common.GZipHandle#setIndexSpan(long)
+ */
+public class GZipHandleIndexTest {
+
+  // -- Constants --
+
+  private static final long SPAN = 64 * 1024;
+
+  // -- Fields --
+
+  private byte[] data;
+  private File file;
+  private long span;
+  private boolean sidecar;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    span = GZipHandle.getIndexSpan();
+    sidecar = GZipHandle.isIndexSidecar();
+    GZipHandle.setIndexSpan(SPAN);
+
+    // a mixture of compressible and incompressible data, so that the
+    // compressed stream contains dynamic, fixed and stored blocks
+    Random random = new Random(17);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    while (bytes.size() < 2 * 1024 * 1024) {
+      byte[] chunk = new byte[random.nextInt(20000)];
+      if (random.nextInt(5) == 0) {
+        random.nextBytes(chunk);
+      }
+      else {
+        for (int i=0; i<chunk.length; i++) {
+          int noise = random.nextInt(16) == 0 ? 1 : 0;
+          chunk[i] = (byte) ('a' + (i % 13) + noise);
+        }
+      }
+      bytes.write(chunk);
+    }
+    data = bytes.toByteArray();
+
+    file = File.createTempFile("GZipHandleIndexTest", ".gz");
+    file.deleteOnExit();
+    // write two concatenated members
+    int half = data.length / 2;
+    OutputStream out = new FileOutputStream(file);
+    try {
+      GZIPOutputStream gz = new GZIPOutputStream(out);
+      gz.write(data, 0, half);
+      gz.finish();
+      gz = new GZIPOutputStream(out) {
+        {
+          def.setLevel(Deflater.BEST_SPEED);
+        }
+      };
+      gz.write(data, half, data.length - half);
+      gz.finish();
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    GZipHandle.setIndexSpan(span);
+    GZipHandle.setIndexSidecar(sidecar);
+    new File(file.getAbsolutePath() + ".gzidx").delete();
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testLength() throws IOException {
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      assertEquals(data.length, handle.length());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testRandomSeeks() throws IOException {
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      Random random = new Random(3);
+      for (int i=0; i<100; i++) {
+        assertReadAt(handle, random.nextInt(data.length - 1000), 1000);
+      }
+      assertReadAt(handle, data.length - 10, 10);
+      assertReadAt(handle, 0, 10);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testSequentialAfterSeek() throws IOException {
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      assertReadAt(handle, data.length - 100, 10);
+      int pos = data.length / 2 - 300000;
+      assertReadAt(handle, pos, data.length - pos);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    GZipHandle.setIndexSpan(0);
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      assertEquals(data.length, handle.length());
+      assertReadAt(handle, data.length - 100, 100);
+      assertReadAt(handle, 100, 100);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testSidecar() throws IOException {
+    File index = new File(file.getAbsolutePath() + ".gzidx");
+    GZipHandle.setIndexSidecar(false);
+    new GZipHandle(file.getAbsolutePath()).close();
+    assertFalse(index.exists());
+
+    // a different span forces the index to be rebuilt and saved
+    GZipHandle.setIndexSpan(SPAN * 2);
+    GZipHandle.setIndexSidecar(true);
+    new GZipHandle(file.getAbsolutePath()).close();
+    assertTrue(index.exists());
+
+    // a stale index is ignored
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      assertEquals(data.length, handle.length());
+      assertReadAt(handle, data.length / 3, 5000);
+      assertReadAt(handle, 7, 5000);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testCorruptSidecar() throws IOException {
+    File index = new File(file.getAbsolutePath() + ".gzidx");
+    GZipHandle.setIndexSidecar(true);
+    GZipHandle.setIndexSpan(SPAN * 3);
+    new GZipHandle(file.getAbsolutePath()).close();
+    assertTrue(index.exists());
+
+    // overwrite the length of the first checkpoint's window
+    RandomAccessFile raf = new RandomAccessFile(index, "rw");
+    try {
+      raf.seek(60);
+      raf.writeInt(-1);
+    }
+    finally {
+      raf.close();
+    }
+
+    // the sidecar is read because the cached index has a different span
+    GZipHandle.setIndexSpan(SPAN * 4);
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    try {
+      assertEquals(data.length, handle.length());
+      assertReadAt(handle, data.length / 2, 5000);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private void assertReadAt(GZipHandle handle, int pos, int len)
+    throws IOException
+  {
+    handle.seek(pos);
+    assertEquals(pos, handle.getFilePointer());
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    for (int i=0; i<len; i++) {
+      assertEquals(data[pos + i], b[i]);
+    }
+    assertEquals(pos + len, handle.getFilePointer());
+  }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import loci.common.HTTPRangeHandle;
+import loci.common.HandleException;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.URLHandle;
+import loci.common.utests.providers.RangeServer;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for reading from a local HTTP server using range requests.
+ *
+ * @see loci.common.HTTPRangeHandle
+ */
+public class HTTPRangeHandleTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 1024;
+
+  // -- Fields --
+
+  private RangeServer server;
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    server = RangeServer.getInstance();
+    data = new byte[100 * BLOCK_SIZE + 17];
+    new Random(11).nextBytes(data);
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testRandomReads() throws IOException {
+    HTTPRangeHandle handle =
+      new HTTPRangeHandle(server.publish(data, true), BLOCK_SIZE, 8);
+    try {
+      assertEquals(data.length, handle.length());
+      Random random = new Random(3);
+      for (int i=0; i<50; i++) {
+        int pos = random.nextInt(data.length - 3000);
+        byte[] b = new byte[random.nextInt(3000)];
+        handle.seek(pos);
+        handle.readFully(b);
+        for (int j=0; j<b.length; j++) {
+          assertEquals(data[pos + j], b[j]);
+        }
+      }
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testOnlyReadBlocksAreFetched() throws IOException {
+    String url = server.publish(data, true);
+    int before = server.getRequestCount();
+    HTTPRangeHandle handle = new HTTPRangeHandle(url, BLOCK_SIZE, 8);
+    try {
+      handle.seek(50 * BLOCK_SIZE + 10);
+      handle.readInt();
+      handle.seek(50 * BLOCK_SIZE + 20);
+      handle.readLong();
+      handle.seek(10);
+      handle.readShort();
+
+      // one request for the first block and length, one for block 50
+      assertEquals(2, server.getRequestCount() - before);
+      assertEquals(1, handle.getCacheMissCount());
+      assertEquals(2, handle.getCacheHitCount());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testCacheEviction() throws IOException {
+    String url = server.publish(data, true);
+    HTTPRangeHandle handle = new HTTPRangeHandle(url, BLOCK_SIZE, 2);
+    try {
+      handle.seek(BLOCK_SIZE);
+      handle.readByte();
+      handle.seek(2 * BLOCK_SIZE);
+      handle.readByte();
+      handle.seek(0);
+      handle.readByte();
+      assertEquals(3, handle.getCacheMissCount());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws IOException {
+    HTTPRangeHandle handle =
+      new HTTPRangeHandle(server.publish(data, true), BLOCK_SIZE, 16);
+    try {
+      handle.prefetch(0, 10 * BLOCK_SIZE);
+      byte[] b = new byte[10 * BLOCK_SIZE];
+      handle.readFully(b);
+      for (int i=0; i<b.length; i++) {
+        assertEquals(data[i], b[i]);
+      }
+      // the first block was fetched by the constructor
+      assertEquals(10, handle.getRequestCount());
+      assertEquals(9, handle.getPrefetchHitCount());
+      assertEquals(10 * BLOCK_SIZE, handle.getBytesFetched());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testReadAhead() throws IOException {
+    HTTPRangeHandle handle =
+      new HTTPRangeHandle(server.publish(data, true), BLOCK_SIZE, 16);
+    try {
+      handle.setReadAhead(4);
+      byte[] b = new byte[100];
+      for (int pos=0; pos + b.length <= data.length; pos += b.length) {
+        handle.readFully(b);
+        for (int i=0; i<b.length; i++) {
+          assertEquals(data[pos + i], b[i]);
+        }
+      }
+      assertTrue(handle.getPrefetchHitCount() > 0);
+      // no block is requested twice
+      int blocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      assertTrue(handle.getRequestCount() <= blocks);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testWastedPrefetch() throws Exception {
+    HTTPRangeHandle handle =
+      new HTTPRangeHandle(server.publish(data, true), BLOCK_SIZE, 8);
+    handle.prefetch(20 * BLOCK_SIZE, 4 * BLOCK_SIZE);
+    handle.seek(20 * BLOCK_SIZE);
+    handle.readByte();
+    for (int i=0; i<500 && handle.getPendingPrefetchCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, handle.getPendingPrefetchCount());
+    handle.close();
+    assertEquals(1, handle.getPrefetchHitCount());
+    assertEquals(3, handle.getPrefetchWastedCount());
+  }
+
+  @Test
+  public void testEmptyResource() throws IOException {
+    HTTPRangeHandle handle =
+      new HTTPRangeHandle(server.publish(new byte[0], true));
+    try {
+      assertEquals(0, handle.length());
+      assertEquals(-1, handle.read(0, new byte[1], 0, 1));
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test(expectedExceptions=HandleException.class)
+  public void testRangesUnsupported() throws IOException {
+    new HTTPRangeHandle(server.publish(data, false));
+  }
+
+  @Test
+  public void testLocationHandle() throws IOException {
+    IRandomAccess handle =
+      Location.getHandle(server.publish(data, true), false, false);
+    try {
+      assertTrue(handle instanceof HTTPRangeHandle);
+    }
+    finally {
+      handle.close();
+    }
+
+    handle = Location.getHandle(server.publish(data, false), false, false);
+    try {
+      assertTrue(handle instanceof URLHandle);
+      assertEquals(data.length, handle.length());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.ByteArrayHandle;
+import loci.common.GZipHandle;
+import loci.common.HandleDetector;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for choosing handles by file name and magic bytes.
+ *
+ * @see loci.common.HandleDetector
+ */
+public class HandleDetectorTest {
+
+  // -- Fields --
+
+  private HandleDetector detector;
+
+  private File gzip;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    detector = new HandleDetector();
+    gzip = File.createTempFile("detect", ".gz");
+    gzip.deleteOnExit();
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip));
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    gzip.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testDetect() throws IOException {
+    String id = gzip.getAbsolutePath();
+    assertSame(HandleDetector.GZIP, detector.detect(id));
+    assertSame(HandleDetector.GZIP, detector.detect(id));
+    assertEquals(1, detector.getHeaderReadCount());
+
+    IRandomAccess handle = detector.open(id);
+    assertTrue(handle instanceof GZipHandle);
+    assertEquals(3, handle.length());
+    handle.close();
+    assertEquals(1, detector.getHeaderReadCount());
+  }
+
+  @Test
+  public void testNotOpened() throws IOException {
+    File file = File.createTempFile("detect", ".dat");
+    file.deleteOnExit();
+    assertNull(detector.detect(file.getAbsolutePath()));
+    assertNull(detector.detect("/does/not/exist.gz"));
+    assertEquals(0, detector.getHeaderReadCount());
+    file.delete();
+  }
+
+  @Test
+  public void testWrongMagic() throws IOException {
+    File file = File.createTempFile("detect", ".bz2");
+    file.deleteOnExit();
+    write(file, new byte[] {'B', 'Y', 'E'});
+    assertNull(detector.detect(file.getAbsolutePath()));
+    assertNull(detector.detect(file.getAbsolutePath()));
+    assertEquals(1, detector.getHeaderReadCount());
+
+    IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+    assertTrue(handle instanceof NIOFileHandle);
+    handle.close();
+    file.delete();
+  }
+
+  @Test
+  public void testModified() throws IOException {
+    String id = gzip.getAbsolutePath();
+    assertSame(HandleDetector.GZIP, detector.detect(id));
+    write(gzip, new byte[] {0});
+    gzip.setLastModified(gzip.lastModified() + 2000);
+    assertNull(detector.detect(id));
+    assertEquals(2, detector.getHeaderReadCount());
+  }
+
+  @Test
+  public void testCustomDetector() throws IOException {
+    File file = File.createTempFile("detect", ".raw");
+    file.deleteOnExit();
+    write(file, new byte[] {'R', 'A', 'W', '!', 5});
+    HandleDetector.Detector raw =
+      new HandleDetector.MagicDetector(".RAW", 'R', 'A', 'W', '!') {
+        @Override
+        public IRandomAccess open(String id) {
+          return new ByteArrayHandle(new byte[] {5});
+        }
+      };
+    String id = file.getAbsolutePath();
+    assertNull(detector.detect(id));
+    detector.addDetector(raw);
+    assertSame(raw, detector.detect(id));
+    IRandomAccess handle = detector.open(id);
+    assertEquals(5, handle.readByte());
+    handle.close();
+    assertTrue(detector.removeDetector(raw));
+    assertNull(detector.detect(id));
+    file.delete();
+  }
+
+  // -- Helper methods --
+
+  private void write(File file, byte[] data) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import loci.common.HandlePool;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for leasing pooled file handles.
+ *
+ * @see loci.common.HandlePool
+ */
+public class HandlePoolTest {
+
+  // -- Fields --
+
+  private File[] files;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    files = new File[3];
+    for (int i=0; i<files.length; i++) {
+      files[i] = File.createTempFile("pool", ".dat");
+      files[i].deleteOnExit();
+      write(files[i], new byte[] {(byte) i, 1, 2, 3, 4, 5, 6, 7});
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    HandlePool.setShared(null);
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testReuse() throws IOException {
+    HandlePool pool = new HandlePool(4);
+    String id = files[0].getAbsolutePath();
+    IRandomAccess first = pool.lease(id, 0);
+    IRandomAccess second = pool.lease(id, 0);
+    assertEquals(1, pool.getMissCount());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(1, pool.getOpenCount());
+    assertEquals(2, pool.getLeaseCount());
+
+    // each lease has its own file pointer
+    first.seek(4);
+    assertEquals(0, second.readByte());
+    assertEquals(4, first.readByte());
+    assertEquals(1, second.readByte());
+
+    first.close();
+    first.close();
+    assertEquals(1, pool.getLeaseCount());
+    second.close();
+    assertEquals(0, pool.getLeaseCount());
+    assertEquals(1, pool.getOpenCount());
+
+    pool.lease(id, 0).close();
+    assertEquals(2, pool.getHitCount());
+    pool.clear();
+    assertEquals(0, pool.getOpenCount());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    HandlePool pool = new HandlePool(2);
+    for (File file : files) {
+      pool.lease(file.getAbsolutePath(), 0).close();
+    }
+    assertEquals(2, pool.getOpenCount());
+    assertEquals(1, pool.getEvictionCount());
+
+    // the least recently leased file was closed
+    pool.lease(files[0].getAbsolutePath(), 0).close();
+    assertEquals(4, pool.getMissCount());
+  }
+
+  @Test
+  public void testBudget() throws IOException {
+    HandlePool pool = new HandlePool(1);
+    IRandomAccess first = pool.lease(files[0].getAbsolutePath(), 0);
+    IRandomAccess second = pool.lease(files[1].getAbsolutePath(), 0);
+    assertEquals(1, pool.getOpenCount());
+    assertEquals(0, first.readByte());
+    assertEquals(1, second.readByte());
+    second.close();
+    first.close();
+    assertEquals(1, pool.getOpenCount());
+    assertEquals(0, pool.getEvictionCount());
+  }
+
+  @Test
+  public void testModified() throws IOException {
+    HandlePool pool = new HandlePool(4);
+    String id = files[0].getAbsolutePath();
+    pool.lease(id, 0).close();
+    write(files[0], new byte[] {9, 8, 7});
+    files[0].setLastModified(files[0].lastModified() + 2000);
+    IRandomAccess lease = pool.lease(id, 0);
+    assertEquals(3, lease.length());
+    assertEquals(9, lease.readByte());
+    lease.close();
+    assertEquals(2, pool.getMissCount());
+    assertEquals(1, pool.getOpenCount());
+  }
+
+  @Test
+  public void testLocation() throws IOException {
+    HandlePool pool = new HandlePool(4);
+    HandlePool.setShared(pool);
+    String id = files[1].getAbsolutePath();
+    IRandomAccess handle = Location.getHandle(id);
+    assertTrue(handle instanceof HandlePool.Lease);
+    assertEquals(1, handle.readByte());
+    handle.close();
+
+    handle = Location.getHandle(id, true);
+    assertFalse(handle instanceof HandlePool.Lease);
+    assertTrue(handle instanceof NIOFileHandle);
+    handle.close();
+    assertEquals(1, pool.getMissCount());
+  }
+
+  // -- Helper methods --
+
+  private void write(File file, byte[] data) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}
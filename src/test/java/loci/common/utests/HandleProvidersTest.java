@@ -0,0 +1,251 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.Constants;
+import loci.common.HandleCapability;
+import loci.common.HandleException;
+import loci.common.HandlePool;
+import loci.common.HandleProviders;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+import loci.common.utests.providers.EchoHandleProvider;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for opening handles by URI scheme.
+ *
+ * @see loci.common.HandleProviders
+ */
+public class HandleProvidersTest {
+
+  // -- Tests --
+
+  @Test
+  public void testScheme() {
+    assertEquals("http", HandleProviders.getScheme("HTTP://example.com/"));
+    assertEquals("mem", HandleProviders.getScheme("mem:a"));
+    assertEquals("svn+ssh", HandleProviders.getScheme("svn+ssh://host/x"));
+    assertNull(HandleProviders.getScheme("C:\\data\\file.tif"));
+    assertNull(HandleProviders.getScheme("/data/file.tif"));
+    assertNull(HandleProviders.getScheme("data/a:b"));
+    assertNull(HandleProviders.getScheme("2x:y"));
+  }
+
+  @Test
+  public void testServiceLoader() throws IOException {
+    HandleProviders registry = HandleProviders.getInstance();
+    assertTrue(registry.findProvider("echo:hello") instanceof
+      EchoHandleProvider);
+    IRandomAccess handle = Location.getHandle("echo:hello");
+    assertEquals(10, handle.length());
+    assertEquals("echo:hello", read(handle, 10));
+    handle.close();
+  }
+
+  @Test
+  public void testCapabilities() {
+    HandleProviders registry = HandleProviders.getInstance();
+    assertTrue(registry.getCapabilities("/tmp/file").contains(
+      HandleCapability.MAPPABLE));
+    assertFalse(registry.getCapabilities("http://example.com/").contains(
+      HandleCapability.WRITABLE));
+    assertTrue(registry.getCapabilities("mem:a").contains(
+      HandleCapability.WRITABLE));
+    assertTrue(registry.getSchemes().contains("zip"));
+    assertFalse(registry.getCapabilities("http://example.com/").contains(
+      HandleCapability.POSITIONAL_READ));
+  }
+
+  @Test
+  public void testArchiveCapabilities() throws IOException {
+    File file = File.createTempFile("provider", ".gz");
+    file.deleteOnExit();
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+
+    HandleProviders registry = HandleProviders.getInstance();
+    assertEquals(HandleProviders.ARCHIVE_CAPABILITIES,
+      registry.getCapabilities(file.getAbsolutePath()));
+    assertEquals(HandleProviders.ARCHIVE_CAPABILITIES,
+      registry.getCapabilities(file.toURI().toString()));
+    assertFalse(registry.getCapabilities(file.getAbsolutePath()).contains(
+      HandleCapability.POSITIONAL_READ));
+    file.delete();
+  }
+
+  @Test
+  public void testPooledCapabilities() {
+    HandleProviders registry = HandleProviders.getInstance();
+    HandlePool.setShared(new HandlePool(2));
+    try {
+      assertEquals(HandleProviders.POOLED_FILE_CAPABILITIES,
+        registry.getCapabilities("/tmp/file"));
+      assertFalse(registry.getCapabilities("/tmp/file").contains(
+        HandleCapability.MAPPABLE));
+    }
+    finally {
+      HandlePool.setShared(null);
+    }
+  }
+
+  @Test
+  public void testMemory() throws IOException {
+    IRandomAccess handle = Location.getHandle("mem:test", true);
+    handle.writeInt(42);
+    handle.writeShort(7);
+    handle.close();
+    assertEquals(6, HandleProviders.MemoryProvider.get("test").length);
+
+    handle = Location.getHandle("mem:test");
+    assertEquals(6, handle.length());
+    assertEquals(42, handle.readInt());
+    assertEquals(7, handle.readShort());
+    handle.close();
+    assertTrue(HandleProviders.MemoryProvider.remove("test"));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testMemoryMissing() throws IOException {
+    Location.getHandle("mem:missing");
+  }
+
+  @Test
+  public void testFileURI() throws IOException {
+    File file = File.createTempFile("provider", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+
+    IRandomAccess handle = Location.getHandle(file.toURI().toString());
+    assertTrue(handle instanceof NIOFileHandle);
+    assertEquals(3, handle.length());
+    handle.close();
+    file.delete();
+  }
+
+  @Test
+  public void testFileURIArchive() throws IOException {
+    File file = File.createTempFile("provider", ".gz");
+    file.deleteOnExit();
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+
+    String uri = file.toURI().toString();
+    IRandomAccess handle = Location.getHandle(uri, false, true);
+    assertEquals(3, handle.length());
+    handle.close();
+    handle = Location.getHandle(uri, false, false);
+    assertTrue(handle instanceof NIOFileHandle);
+    assertEquals(file.length(), handle.length());
+    handle.close();
+    file.delete();
+  }
+
+  @Test
+  public void testZipEntry() throws IOException {
+    File file = File.createTempFile("provider", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    out.putNextEntry(new ZipEntry("a.txt"));
+    out.write(new byte[] {'a'});
+    out.putNextEntry(new ZipEntry("dir/b.txt"));
+    out.write(new byte[] {'b', 'b'});
+    out.close();
+
+    IRandomAccess handle =
+      Location.getHandle("zip:" + file.getAbsolutePath() + "!/dir/b.txt");
+    assertEquals(2, handle.length());
+    assertEquals("bb", read(handle, 2));
+    handle.close();
+    file.delete();
+  }
+
+  @Test
+  public void testObjectStore() throws IOException {
+    File root = File.createTempFile("objects", "");
+    root.delete();
+    File bucket = new File(root, "bucket");
+    bucket.mkdirs();
+    File object = new File(bucket, "key.bin");
+    FileOutputStream out = new FileOutputStream(object);
+    out.write(new byte[] {9, 8});
+    out.close();
+
+    HandleProviders.ObjectStoreProvider.setRoot(root);
+    try {
+      IRandomAccess handle = Location.getHandle("obj://bucket/key.bin");
+      assertEquals(2, handle.length());
+      assertEquals(9, handle.readByte());
+      handle.close();
+      try {
+        Location.getHandle("obj://bucket/key.bin", true);
+        throw new AssertionError("Expected a HandleException");
+      }
+      catch (HandleException e) { }
+    }
+    finally {
+      HandleProviders.ObjectStoreProvider.setRoot(null);
+      object.delete();
+      bucket.delete();
+      root.delete();
+    }
+  }
+
+  // -- Helper methods --
+
+  private String read(IRandomAccess handle, int n) throws IOException {
+    byte[] b = new byte[n];
+    handle.readFully(b);
+    return new String(b, Constants.ENCODING);
+  }
+
+}
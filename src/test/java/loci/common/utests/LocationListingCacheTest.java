@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.RandomAccessOutputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the directory listings and file attributes caches in
+ * {@link Location}.
+ *
+ * @see loci.common.Location#cacheDirectoryListings(boolean)
+ */
+public class LocationListingCacheTest {
+
+  // -- Fields --
+
+  private File[] dirs;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Location.reset();
+    Location.cacheDirectoryListings(true);
+    dirs = new File[2];
+    for (int i=0; i<dirs.length; i++) {
+      dirs[i] = File.createTempFile("listing", "");
+      dirs[i].delete();
+      dirs[i].mkdir();
+      new File(dirs[i], "a.txt").createNewFile();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Location.reset();
+    for (File dir : dirs) {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testCached() throws IOException {
+    Location dir = new Location(dirs[0]);
+    assertEquals(1, dir.list().length);
+    new File(dirs[0], "b.txt").createNewFile();
+    assertEquals(1, dir.list().length);
+    assertEquals(1, Location.getDirectoryListingsHitCount());
+    assertEquals(1, Location.getDirectoryListingsMissCount());
+
+    Location.clearDirectoryListingsCache();
+    assertEquals(2, dir.list().length);
+    assertEquals(2, Location.getDirectoryListingsMissCount());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    Location.setCacheDirectoryTimeout(0.05);
+    Location dir = new Location(dirs[0]);
+    assertEquals(1, dir.list().length);
+    new File(dirs[0], "b.txt").createNewFile();
+    Thread.sleep(100);
+    assertEquals(2, dir.list().length);
+    assertEquals(0, Location.getDirectoryListingsHitCount());
+    assertEquals(2, Location.getDirectoryListingsMissCount());
+  }
+
+  @Test
+  public void testMaxSize() throws IOException {
+    Location.setCacheDirectoryMaxSize(1);
+    Location first = new Location(dirs[0]);
+    Location second = new Location(dirs[1]);
+    first.list();
+    second.list();
+    second.list();
+    first.list();
+    assertEquals(1, Location.getDirectoryListingsHitCount());
+    assertEquals(3, Location.getDirectoryListingsMissCount());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    Location.cacheDirectoryListings(false);
+    Location dir = new Location(dirs[0]);
+    dir.list();
+    dir.list();
+    assertEquals(0, Location.getDirectoryListingsHitCount());
+    assertEquals(0, Location.getDirectoryListingsMissCount());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    // the listing cannot expire during the test, however slow it is
+    Location.setCacheDirectoryTimeout(60);
+    Location.setCacheDirectoryRefreshAge(0.05);
+    Location.refreshDirectoryListings(true);
+    Location dir = new Location(dirs[0]);
+    assertEquals(1, dir.list().length);
+    new File(dirs[0], "b.txt").createNewFile();
+    Thread.sleep(100);
+
+    // the stale listing is returned, and replaced in the background
+    assertEquals(1, dir.list().length);
+    int n = 1;
+    for (int i=0; i<500 && n == 1; i++) {
+      Thread.sleep(10);
+      n = dir.list().length;
+    }
+    assertEquals(2, n);
+    assertEquals(1, Location.getDirectoryListingsMissCount());
+  }
+
+  @Test
+  public void testAttributes() throws IOException {
+    Location.cacheFileAttributes(true);
+    File file = new File(dirs[0], "a.txt");
+    Location location = new Location(file.getAbsolutePath());
+    assertTrue(location.exists());
+    assertTrue(location.isFile());
+    assertFalse(location.isDirectory());
+    assertEquals(0, location.length());
+
+    OutputStream out = new FileOutputStream(file);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+    assertEquals(0, location.length());
+
+    Location.clearDirectoryListingsCache();
+    assertEquals(3, location.length());
+    assertEquals(file.lastModified(), location.lastModified());
+    assertTrue(new Location(dirs[0]).isDirectory());
+  }
+
+  @Test
+  public void testAttributesMissing() throws IOException {
+    Location.cacheFileAttributes(true);
+    Location location = new Location(dirs[0].getAbsolutePath(), "b.txt");
+    assertFalse(location.exists());
+    assertFalse(location.isFile());
+    assertEquals(0, location.length());
+    assertEquals(0, location.lastModified());
+
+    // files created or deleted through Location are not stale
+    assertTrue(location.createNewFile());
+    assertTrue(location.exists());
+    assertTrue(location.delete());
+    assertFalse(location.exists());
+
+    Location nested = new Location(dirs[0].getAbsolutePath(), "c/d");
+    Location parent = new Location(dirs[0].getAbsolutePath(), "c");
+    assertFalse(parent.exists());
+    assertTrue(nested.mkdirs());
+    assertTrue(parent.isDirectory());
+    assertTrue(nested.delete());
+    assertTrue(parent.delete());
+  }
+
+  @Test
+  public void testAttributesWritten() throws IOException {
+    Location.cacheFileAttributes(true);
+    String id = new File(dirs[0], "b.txt").getAbsolutePath();
+    Location location = new Location(id);
+    assertFalse(location.exists());
+
+    IRandomAccess handle = Location.getHandle(id, true);
+    assertTrue(location.exists());
+    assertEquals(0, location.length());
+    handle.writeInt(42);
+    handle.close();
+    assertEquals(4, location.length());
+
+    RandomAccessOutputStream out = new RandomAccessOutputStream(id);
+    out.seek(4);
+    out.writeShort(7);
+    out.close();
+    assertEquals(6, location.length());
+  }
+
+}
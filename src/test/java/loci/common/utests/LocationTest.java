@@ -38,9 +38,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import loci.common.DirectoryEntry;
 import loci.common.Location;
 
 import org.testng.SkipException;
@@ -229,6 +232,42 @@ public class LocationTest {
     }
   }
 
+  @Test
+  public void testDirectoryStream() throws IOException {
+    Location dir = files[2];
+    List<String> all = names(dir.newDirectoryStream(null, false));
+    List<String> complete = Arrays.asList(dir.list());
+    assertEquals(complete.size(), all.size());
+    assertEquals(true, all.containsAll(complete));
+    assertEquals(complete.size() - 1,
+      names(dir.newDirectoryStream(null, true)).size());
+
+    DirectoryStream<DirectoryEntry> valid =
+      dir.newDirectoryStream("validTest*", true);
+    try {
+      int count = 0;
+      for (DirectoryEntry entry : valid) {
+        assertEquals(files[0].getName(), entry.getName());
+        assertEquals(files[0].getAbsolutePath(), entry.getAbsolutePath());
+        assertEquals(true, entry.isFile());
+        assertEquals(false, entry.isDirectory());
+        assertEquals(files[0].length(), entry.length());
+        assertEquals(files[0].lastModified(), entry.lastModified());
+        assertEquals(files[0], entry.toLocation());
+        count++;
+      }
+      assertEquals(1, count);
+    }
+    finally {
+      valid.close();
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testDirectoryStreamNotDirectory() throws IOException {
+    files[0].newDirectoryStream(null, false);
+  }
+
   @Test
   public void testToURL() throws IOException {
     for (Location file : files) {
@@ -255,4 +294,21 @@ public class LocationTest {
     }
   }
 
+  // -- Helper methods --
+
+  private List<String> names(DirectoryStream<DirectoryEntry> entries)
+    throws IOException
+  {
+    List<String> names = new ArrayList<String>();
+    try {
+      for (DirectoryEntry entry : entries) {
+        names.add(entry.getName());
+      }
+    }
+    finally {
+      entries.close();
+    }
+    return names;
+  }
+
 }
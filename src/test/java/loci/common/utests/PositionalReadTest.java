@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.IRandomAccess;
+import loci.common.utests.providers.IRandomAccessProvider;
+import loci.common.utests.providers.IRandomAccessProviderFactory;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for positional reads from a loci.common.IRandomAccess.
+ *
+ * @see loci.common.IRandomAccess#read(long, byte[], int, int)
+ * @see loci.common.IRandomAccess#read(long, java.nio.ByteBuffer)
+ */
+@Test(groups="readTests")
+public class PositionalReadTest {
+
+  private static final byte[] PAGE = new byte[256];
+
+  static {
+    for (int i=0; i<PAGE.length; i++) {
+      PAGE[i] = (byte) (i * 3);
+    }
+  }
+
+  private static final String MODE = "r";
+
+  private static final int BUFFER_SIZE = 16;
+
+  private IRandomAccess fileHandle;
+
+  private String provider;
+
+  @Parameters({"provider"})
+  @BeforeMethod
+  public void setUp(String provider) throws IOException {
+    IRandomAccessProviderFactory factory = new IRandomAccessProviderFactory();
+    IRandomAccessProvider instance = factory.getInstance(provider);
+    fileHandle = instance.createMock(PAGE, MODE, BUFFER_SIZE);
+    this.provider = provider;
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    fileHandle.close();
+  }
+
+  @Test
+  public void testReadDoesNotMovePointer() throws IOException {
+    fileHandle.seek(10);
+    byte[] b = new byte[8];
+    assertEquals(8, fileHandle.read(100, b, 0, 8));
+    for (int i=0; i<b.length; i++) {
+      assertEquals(PAGE[100 + i], b[i]);
+    }
+    assertEquals(10, fileHandle.getFilePointer());
+    assertEquals(PAGE[10], fileHandle.readByte());
+  }
+
+  @Test
+  public void testReadWithOffset() throws IOException {
+    byte[] b = new byte[12];
+    assertEquals(4, fileHandle.read(40, b, 8, 4));
+    for (int i=0; i<4; i++) {
+      assertEquals(0, b[i]);
+      assertEquals(PAGE[40 + i], b[8 + i]);
+    }
+  }
+
+  @Test
+  public void testReadPastEnd() throws IOException {
+    byte[] b = new byte[32];
+    assertEquals(6, fileHandle.read(PAGE.length - 6, b, 0, b.length));
+    assertEquals(PAGE[PAGE.length - 1], b[5]);
+    assertEquals(-1, fileHandle.read(PAGE.length, b, 0, b.length));
+  }
+
+  @Test
+  public void testReadByteBuffer() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(20);
+    buf.position(4);
+    buf.limit(14);
+    assertEquals(10, fileHandle.read(200, buf));
+    assertEquals(14, buf.position());
+    for (int i=0; i<10; i++) {
+      assertEquals(PAGE[200 + i], buf.get(4 + i));
+    }
+    assertEquals(0, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testReadDirectByteBuffer() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(8);
+    assertEquals(8, fileHandle.read(PAGE.length - 8, buf));
+    buf.flip();
+    for (int i=0; i<8; i++) {
+      assertEquals(PAGE[PAGE.length - 8 + i], buf.get());
+    }
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    if (!provider.contains("NIOFileHandle") &&
+      !provider.contains("ByteArrayHandle") &&
+      !provider.equals("HTTPRangeHandle") &&
+      !provider.equals("CachedGZipHandle") &&
+      !provider.equals("HandlePoolLease"))
+    {
+      throw new SkipException(provider + " is not safe for concurrent use");
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t=0; t<8; t++) {
+        final int seed = t;
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            byte[] b = new byte[7];
+            for (int i=0; i<1000; i++) {
+              int pos = (i * 31 + seed * 17) % (PAGE.length - b.length);
+              fileHandle.read(pos, b, 0, b.length);
+              for (int j=0; j<b.length; j++) {
+                if (b[j] != PAGE[pos + j]) return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertEquals(Boolean.TRUE, result.get());
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+}
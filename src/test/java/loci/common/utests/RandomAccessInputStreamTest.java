@@ -33,11 +33,13 @@
 package loci.common.utests;
 
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
 
 import java.io.IOException;
 import java.util.Random;
 
 import loci.common.ByteArrayHandle;
+import loci.common.Constants;
 import loci.common.IRandomAccess;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -176,4 +178,104 @@ public class RandomAccessInputStreamTest {
     }
   }
 
+  @Test
+  public void testFindString() throws IOException {
+    RandomAccessInputStream in = text("abc\ndef\r\nghi", Constants.ENCODING);
+    assertEquals("abc\n", in.readLine());
+    assertEquals(4, in.getFilePointer());
+    assertEquals("def\r\n", in.findString("\r\n", "\n"));
+    assertEquals(9, in.getFilePointer());
+    assertEquals("ghi", in.findString("\n"));
+    assertEquals(12, in.getFilePointer());
+    assertEquals("", in.findString("\n"));
+
+    in.seek(0);
+    assertNull(in.findString(false, "\r\n"));
+    assertEquals(9, in.getFilePointer());
+    in.close();
+  }
+
+  @Test
+  public void testFindStringEarliestStart() throws IOException {
+    RandomAccessInputStream in = text("xabcd", Constants.ENCODING);
+    assertEquals("xabc", in.findString("abc", "b"));
+    in.seek(0);
+    assertEquals("xab", in.findString("ab", "abc"));
+    in.seek(0);
+    assertEquals("xabc", in.findString("abc", "ab"));
+    in.seek(0);
+    assertEquals("xabcd", in.findString(1, "cd"));
+    in.seek(0);
+    assertEquals("", in.findString("q", ""));
+    assertEquals(0, in.getFilePointer());
+    in.close();
+  }
+
+  @Test
+  public void testFindStringEncoding() throws IOException {
+    String s = "h\u00e9llo\nw\u00f6rld\n";
+    RandomAccessInputStream in = text(s, Constants.ENCODING);
+    assertEquals("h\u00e9llo\n", in.readLine());
+    assertEquals(7, in.getFilePointer());
+    assertEquals("w\u00f6rld\n", in.readString("\n"));
+    in.close();
+
+    in = text(s, "UTF-16BE");
+    in.setEncoding("UTF-16BE");
+    assertEquals("h\u00e9llo\n", in.findString("\n"));
+    in.close();
+  }
+
+  @Test
+  public void testReadStringBuilder() throws IOException {
+    RandomAccessInputStream in =
+      text("ab\u00e9c\0de\0", Constants.ENCODING);
+    StringBuilder sb = new StringBuilder();
+    assertEquals(6, in.readCString(sb));
+    assertEquals("ab\u00e9c\0", sb.toString());
+    sb.setLength(0);
+    assertEquals(3, in.readCString(sb));
+    assertEquals("de\0", sb.toString());
+    assertEquals(0, in.readCString(sb));
+    assertEquals("de\0", sb.toString());
+
+    in.seek(0);
+    sb.setLength(0);
+    assertEquals(5, in.readString(5, sb));
+    assertEquals("ab\u00e9c", sb.toString());
+    in.seek(0);
+    assertEquals("ab\u00e9c", in.readString(5));
+    in.close();
+
+    in = new RandomAccessInputStream(new ByteArrayHandle(
+      new byte[] {0x41, (byte) 0xe9, 0x42}));
+    sb.setLength(0);
+    assertEquals(3, in.readByteToString(5, sb));
+    assertEquals("A\u00e9B", sb.toString());
+    in.seek(0);
+    assertEquals("A\u00e9B", in.readByteToString(3));
+    in.seek(0);
+    in.setEncoding("ISO-8859-1");
+    sb.setLength(0);
+    in.readString(3, sb);
+    assertEquals("A\u00e9B", sb.toString());
+    in.close();
+
+    in = text("x\u00e9\u4e2d", "UTF-16BE");
+    in.setEncoding("UTF-16BE");
+    sb.setLength(0);
+    assertEquals(6, in.readString(6, sb));
+    assertEquals("x\u00e9\u4e2d", sb.toString());
+    in.close();
+  }
+
+  // -- Helper methods --
+
+  private RandomAccessInputStream text(String s, String encoding)
+    throws IOException
+  {
+    return new RandomAccessInputStream(
+      new ByteArrayHandle(s.getBytes(encoding)));
+  }
+
 }
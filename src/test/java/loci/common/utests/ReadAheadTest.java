@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import loci.common.ByteBufferPool;
+import loci.common.NIOByteBufferProvider;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for read-ahead in the loci.common.NIOFileHandle class.
+ *
+ * @see loci.common.NIOFileHandle#setReadAheadDepth(int)
+ */
+public class ReadAheadTest {
+
+  // -- Constants --
+
+  private static final int BUFFER_SIZE = 4096;
+
+  // -- Fields --
+
+  private byte[] data;
+  private File file;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    data = new byte[256 * 1024 + 123];
+    new Random(42).nextBytes(data);
+    file = File.createTempFile("ReadAheadTest", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testDisabledByDefault() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      assertEquals(0, handle.getReadAheadDepth());
+      readSequentially(handle, 1000);
+      assertEquals(0, handle.getReadAheadIssuedCount());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testSequentialRead() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      handle.setReadAheadDepth(4);
+      assertEquals(4, handle.getReadAheadDepth());
+      readSequentially(handle, 1000);
+      assertTrue(handle.getReadAheadHitCount() > data.length / BUFFER_SIZE / 2);
+      assertTrue(handle.getReadAheadIssuedCount() >=
+        handle.getReadAheadHitCount() + handle.getReadAheadWastedCount());
+      assertTrue(handle.getPendingReadAheadCount() <= 4);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testStraddlingReads() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      handle.setReadAheadDepth(2);
+      readSequentially(handle, 333);
+      assertTrue(handle.getReadAheadHitCount() > 0);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testRandomSeeks() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      handle.setReadAheadDepth(3);
+      byte[] b = new byte[100];
+      while (handle.getFilePointer() < BUFFER_SIZE * 4) {
+        handle.readFully(b);
+      }
+      assertTrue(handle.getPendingReadAheadCount() > 0);
+      Random random = new Random(7);
+      for (int i=0; i<200; i++) {
+        int pos = random.nextInt(data.length - b.length);
+        handle.seek(pos);
+        handle.readFully(b);
+        for (int j=0; j<b.length; j++) {
+          assertEquals(data[pos + j], b[j]);
+        }
+      }
+      assertTrue(handle.getReadAheadWastedCount() > 0);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testPooledBuffers() throws IOException {
+    ByteBufferPool original = NIOByteBufferProvider.getBufferPool();
+    ByteBufferPool pool = new ByteBufferPool(1024 * 1024, false);
+    NIOByteBufferProvider.setBufferPool(pool);
+    try {
+      NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+      try {
+        handle.setReadAheadDepth(4);
+        readSequentially(handle, 1000);
+        handle.seek(0);
+        readSequentially(handle, 500);
+      }
+      finally {
+        handle.close();
+      }
+      assertTrue(pool.getHitCount() > 0);
+    }
+    finally {
+      NIOByteBufferProvider.setBufferPool(original);
+    }
+  }
+
+  @Test
+  public void testReadWriteIgnored() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "rw", BUFFER_SIZE);
+    try {
+      handle.setReadAheadDepth(4);
+      assertEquals(0, handle.getReadAheadDepth());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testDisable() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      handle.setReadAheadDepth(4);
+      byte[] b = new byte[BUFFER_SIZE * 3];
+      handle.readFully(b);
+      handle.setReadAheadDepth(0);
+      assertEquals(0, handle.getPendingReadAheadCount());
+      long issued = handle.getReadAheadIssuedCount();
+      readSequentially(handle, 1000);
+      assertEquals(issued, handle.getReadAheadIssuedCount());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testManyHandles() throws IOException {
+    NIOFileHandle[] handles = new NIOFileHandle[100];
+    try {
+      for (int i=0; i<handles.length; i++) {
+        handles[i] = new NIOFileHandle(file, "r", BUFFER_SIZE);
+        handles[i].setReadAheadDepth(16);
+        handles[i].readFully(new byte[BUFFER_SIZE * 2]);
+      }
+      for (NIOFileHandle handle : handles) {
+        assertTrue(handle.getPendingReadAheadCount() <= 16);
+        readSequentially(handle, 1000);
+      }
+    }
+    finally {
+      for (NIOFileHandle handle : handles) {
+        if (handle != null) {
+          handle.close();
+        }
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  private void readSequentially(NIOFileHandle handle, int chunk)
+    throws IOException
+  {
+    byte[] b = new byte[chunk];
+    long pos = handle.getFilePointer();
+    while (pos < data.length) {
+      int n = (int) Math.min(chunk, data.length - pos);
+      handle.readFully(b, 0, n);
+      for (int i=0; i<n; i++) {
+        assertEquals(data[(int) pos + i], b[i]);
+      }
+      pos += n;
+    }
+    assertEquals(data.length, handle.getFilePointer());
+  }
+
+}
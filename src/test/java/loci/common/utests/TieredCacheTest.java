@@ -0,0 +1,242 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.CachedHandle;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.TieredCache;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the off-heap and spill tiers of TieredCache, and for
+ * reopening compressed files through it.
+ *
+ * @see loci.common.TieredCache
+ * @see loci.common.CachedHandle
+ */
+public class TieredCacheTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 1024;
+
+  // -- Fields --
+
+  private File spillDirectory;
+
+  private TieredCache cache;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    spillDirectory = File.createTempFile("spill", "");
+    spillDirectory.delete();
+    cache = new TieredCache(4 * BLOCK_SIZE, 8 * BLOCK_SIZE, spillDirectory,
+      BLOCK_SIZE);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    TieredCache.setShared(null);
+    cache.clear();
+    spillDirectory.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testMemoryTier() throws IOException {
+    byte[] block = block(1);
+    cache.put("a", 0, block);
+    assertTrue(Arrays.equals(block, cache.get("a", 0)));
+    assertNull(cache.get("a", 1));
+    assertNull(cache.get("b", 0));
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(BLOCK_SIZE, cache.getMemoryBytes());
+    assertEquals(0, cache.getSpillBytes());
+  }
+
+  @Test
+  public void testSpill() throws IOException {
+    for (int i=0; i<6; i++) {
+      cache.put("a", i, block(i));
+    }
+    assertEquals(4 * BLOCK_SIZE, cache.getMemoryBytes());
+    assertEquals(2 * BLOCK_SIZE, cache.getSpillBytes());
+    assertEquals(2, cache.getSpillCount());
+    assertEquals(1, spillDirectory.list().length);
+
+    // the oldest block is read back from disk, and moved to memory
+    assertTrue(Arrays.equals(block(0), cache.get("a", 0)));
+    assertEquals(1, cache.getSpillHitCount());
+    assertTrue(Arrays.equals(block(0), cache.get("a", 0)));
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(6 * BLOCK_SIZE,
+      cache.getMemoryBytes() + cache.getSpillBytes());
+
+    cache.clear();
+    assertEquals(0, spillDirectory.list().length);
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    for (int i=0; i<20; i++) {
+      cache.put("a", i, block(i));
+    }
+    assertEquals(8, cache.getEvictionCount());
+    assertEquals(cache.getMemoryCapacity(), cache.getMemoryBytes());
+    assertEquals(cache.getSpillCapacity(), cache.getSpillBytes());
+    assertNull(cache.get("a", 7));
+    for (int i=8; i<20; i++) {
+      assertTrue(Arrays.equals(block(i), cache.get("a", i)));
+    }
+  }
+
+  @Test
+  public void testConcurrentSegments() throws Exception {
+    final TieredCache large = new TieredCache(1000 * BLOCK_SIZE,
+      500 * BLOCK_SIZE, spillDirectory, BLOCK_SIZE);
+    assertEquals(1000 * BLOCK_SIZE, large.getMemoryCapacity());
+    assertEquals(500 * BLOCK_SIZE, large.getSpillCapacity());
+    final AtomicReference<Throwable> failure =
+      new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int t=0; t<threads.length; t++) {
+      final String source = "s" + t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i=0; i<400; i++) {
+              large.put(source, i, block(i));
+            }
+            for (int i=0; i<400; i++) {
+              byte[] block = large.get(source, i);
+              if (block != null && !Arrays.equals(block(i), block)) {
+                throw new AssertionError(source + " block " + i);
+              }
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    assertEquals(1600, large.getMemoryHitCount() + large.getSpillHitCount() +
+      large.getMissCount());
+    assertTrue(large.getMemoryBytes() <= large.getMemoryCapacity());
+    assertTrue(large.getSpillBytes() <= large.getSpillCapacity());
+    large.clear();
+  }
+
+  @Test
+  public void testShortBlock() throws IOException {
+    byte[] block = Arrays.copyOf(block(3), 17);
+    cache.put("a", 0, block);
+    assertTrue(Arrays.equals(block, cache.get("a", 0)));
+    assertEquals(17, cache.getMemoryBytes());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testBlockTooLong() throws IOException {
+    cache.put("a", 0, new byte[BLOCK_SIZE + 1]);
+  }
+
+  @Test
+  public void testReopenGZip() throws IOException {
+    byte[] data = new byte[10 * BLOCK_SIZE + 5];
+    new Random(3).nextBytes(data);
+    File file = File.createTempFile("tiered", ".gz");
+    file.deleteOnExit();
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+    out.write(data);
+    out.close();
+
+    TieredCache.setShared(new TieredCache(4 * BLOCK_SIZE, 16 * BLOCK_SIZE,
+      spillDirectory, BLOCK_SIZE));
+    TieredCache shared = TieredCache.getShared();
+    for (int pass=0; pass<2; pass++) {
+      IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+      assertTrue(handle instanceof CachedHandle);
+      byte[] b = new byte[data.length];
+      // read backwards, which is the worst case for a gzip stream
+      for (int offset=b.length - 100; offset >= 0; offset -= 100) {
+        handle.seek(offset);
+        handle.readFully(b, offset, 100);
+      }
+      handle.seek(0);
+      handle.readFully(b, 0, b.length % 100);
+      handle.close();
+      assertTrue(Arrays.equals(data, b));
+    }
+    // every block was decoded once, and then read from the cache
+    assertEquals(11, shared.getMissCount());
+    assertTrue(shared.getSpillHitCount() > 0);
+    shared.clear();
+    file.delete();
+  }
+
+  // -- Helper methods --
+
+  private byte[] block(int seed) {
+    byte[] b = new byte[BLOCK_SIZE];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import loci.common.IRandomAccess;
+import loci.common.utests.providers.IRandomAccessProvider;
+import loci.common.utests.providers.IRandomAccessProviderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for reading arrays of primitive values from a
+ * loci.common.IRandomAccess.
+ *
+ * @see loci.common.IRandomAccess#readShorts(short[], int, int)
+ */
+@Test(groups="readTests")
+public class TypedArrayReadTest {
+
+  private static final byte[] PAGE = new byte[1000];
+
+  static {
+    for (int i=0; i<PAGE.length; i++) {
+      PAGE[i] = (byte) (i * 31 + 5);
+    }
+  }
+
+  private static final String MODE = "r";
+
+  private static final int BUFFER_SIZE = 16;
+
+  /** Odd starting offset, so that values straddle buffer boundaries. */
+  private static final int OFFSET = 3;
+
+  private IRandomAccess fileHandle;
+
+  @Parameters({"provider"})
+  @BeforeMethod
+  public void setUp(String provider) throws IOException {
+    IRandomAccessProviderFactory factory = new IRandomAccessProviderFactory();
+    IRandomAccessProvider instance = factory.getInstance(provider);
+    fileHandle = instance.createMock(PAGE, MODE, BUFFER_SIZE);
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    fileHandle.close();
+  }
+
+  /**
+   * Wraps the test data from {@link #OFFSET} in the handle's byte order.
+   * Handles that do not support setting the order, such as FileHandle,
+   * report a null order and read big-endian values.
+   */
+  private ByteBuffer expected() {
+    ByteOrder order = fileHandle.getOrder();
+    ByteBuffer b = ByteBuffer.wrap(PAGE);
+    b.position(OFFSET);
+    return b.slice().order(order == null ? ByteOrder.BIG_ENDIAN : order);
+  }
+
+  @Test
+  public void testReadShorts() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {
+      ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+    {
+      fileHandle.setOrder(order);
+      fileHandle.seek(OFFSET);
+      short[] values = new short[490];
+      fileHandle.readShorts(values, 1, 488);
+      ByteBuffer b = expected();
+      assertEquals(0, values[0]);
+      for (int i=0; i<488; i++) {
+        assertEquals(b.getShort(), values[i + 1]);
+      }
+      assertEquals(0, values[489]);
+      assertEquals(OFFSET + 976, fileHandle.getFilePointer());
+      assertEquals(b.getShort(), fileHandle.readShort());
+    }
+  }
+
+  @Test
+  public void testReadInts() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {
+      ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+    {
+      fileHandle.setOrder(order);
+      fileHandle.seek(OFFSET);
+      int[] values = new int[248];
+      fileHandle.readInts(values, 0, values.length);
+      ByteBuffer b = expected();
+      for (int value : values) {
+        assertEquals(b.getInt(), value);
+      }
+      assertEquals(OFFSET + 992, fileHandle.getFilePointer());
+    }
+  }
+
+  @Test
+  public void testReadLongs() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {
+      ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+    {
+      fileHandle.setOrder(order);
+      fileHandle.seek(OFFSET);
+      long[] values = new long[124];
+      fileHandle.readLongs(values, 0, values.length);
+      ByteBuffer b = expected();
+      for (long value : values) {
+        assertEquals(b.getLong(), value);
+      }
+      assertEquals(OFFSET + 992, fileHandle.getFilePointer());
+    }
+  }
+
+  @Test
+  public void testReadFloats() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {
+      ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+    {
+      fileHandle.setOrder(order);
+      fileHandle.seek(OFFSET);
+      float[] values = new float[248];
+      fileHandle.readFloats(values, 0, values.length);
+      ByteBuffer b = expected();
+      for (float value : values) {
+        assertEquals(Float.floatToRawIntBits(b.getFloat()),
+          Float.floatToRawIntBits(value));
+      }
+    }
+  }
+
+  @Test
+  public void testReadDoubles() throws IOException {
+    for (ByteOrder order : new ByteOrder[] {
+      ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+    {
+      fileHandle.setOrder(order);
+      fileHandle.seek(OFFSET);
+      double[] values = new double[124];
+      fileHandle.readDoubles(values, 0, values.length);
+      ByteBuffer b = expected();
+      for (double value : values) {
+        assertEquals(Double.doubleToRawLongBits(b.getDouble()),
+          Double.doubleToRawLongBits(value));
+      }
+    }
+  }
+
+  @Test
+  public void testMatchesSingleReads() throws IOException {
+    fileHandle.seek(OFFSET);
+    short[] shorts = new short[8];
+    fileHandle.readShorts(shorts, 0, shorts.length);
+    double[] doubles = new double[2];
+    fileHandle.readDoubles(doubles, 0, doubles.length);
+    fileHandle.seek(OFFSET);
+    for (short value : shorts) {
+      assertEquals(fileHandle.readShort(), value);
+    }
+    for (double value : doubles) {
+      assertEquals(Double.doubleToRawLongBits(fileHandle.readDouble()),
+        Double.doubleToRawLongBits(value));
+    }
+  }
+
+  @Test
+  public void testReadEmpty() throws IOException {
+    fileHandle.seek(10);
+    fileHandle.readInts(new int[4], 1, 0);
+    assertEquals(10, fileHandle.getFilePointer());
+  }
+
+  @Test(expectedExceptions = EOFException.class)
+  public void testReadPastEnd() throws IOException {
+    fileHandle.seek(PAGE.length - 7);
+    fileHandle.readLongs(new long[1], 0, 1);
+  }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.Constants;
+import loci.common.ZipHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for opening entries of Zip files with many entries.
+ *
+ * @see loci.common.ZipHandle
+ */
+public class ZipHandleTest {
+
+  // -- Constants --
+
+  private static final int ENTRY_COUNT = 200;
+  private static final int ENTRY_LENGTH = 5000;
+
+  // -- Fields --
+
+  private File file;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    file = File.createTempFile("ZipHandleTest", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i=0; i<ENTRY_COUNT; i++) {
+        byte[] data = getData(i);
+        ZipEntry entry = new ZipEntry(getName(i));
+        if (i % 2 == 1) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(data.length);
+          entry.setCompressedSize(data.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testEntryCount() throws IOException {
+    ZipHandle handle = new ZipHandle(file.getAbsolutePath());
+    try {
+      assertEquals(ENTRY_COUNT, handle.getEntryCount());
+      assertEquals(getName(0), handle.getEntryName());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testDeflatedEntry() throws IOException {
+    checkEntry(ENTRY_COUNT - 2);
+  }
+
+  @Test
+  public void testStoredEntry() throws IOException {
+    checkEntry(ENTRY_COUNT - 1);
+  }
+
+  @Test(expectedExceptions=IOException.class)
+  public void testMissingEntry() throws IOException {
+    new ZipHandle(file.getAbsolutePath(), new ZipEntry("missing"));
+  }
+
+  @Test
+  public void testCrc() throws IOException {
+    int index = ENTRY_COUNT - 2;
+    byte[] data = getData(index);
+    ZipHandle handle =
+      new ZipHandle(file.getAbsolutePath(), new ZipEntry(getName(index)));
+    try {
+      byte[] b = new byte[data.length];
+      handle.readFully(b);
+      assertTrue(Arrays.equals(data, b));
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test(expectedExceptions=ZipException.class)
+  public void testInvalidCrc() throws IOException {
+    int index = ENTRY_COUNT - 2;
+    corruptCrc(getName(index));
+    ZipHandle handle =
+      new ZipHandle(file.getAbsolutePath(), new ZipEntry(getName(index)));
+    try {
+      handle.readFully(new byte[ENTRY_LENGTH]);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Changes the CRC-32 of an entry in the central directory. */
+  private void corruptCrc(String name) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      byte[] zip = new byte[(int) raf.length()];
+      raf.readFully(zip);
+      byte[] header = {'P', 'K', 1, 2};
+      byte[] entry = name.getBytes(Constants.ENCODING);
+      for (int i=0; i<zip.length - 46 - entry.length; i++) {
+        if (matches(zip, i, header) && matches(zip, i + 46, entry)) {
+          raf.seek(i + 16);
+          raf.writeByte(zip[i + 16] ^ 0xff);
+          return;
+        }
+      }
+      throw new IOException("No central directory entry for " + name);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  private static boolean matches(byte[] b, int offset, byte[] pattern) {
+    for (int i=0; i<pattern.length; i++) {
+      if (b[offset + i] != pattern[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void checkEntry(int index) throws IOException {
+    byte[] data = getData(index);
+    ZipHandle handle =
+      new ZipHandle(file.getAbsolutePath(), new ZipEntry(getName(index)));
+    try {
+      assertEquals(data.length, handle.length());
+      Random random = new Random(index);
+      for (int i=0; i<20; i++) {
+        int pos = random.nextInt(data.length - 100);
+        handle.seek(pos);
+        assertEquals(pos, handle.getFilePointer());
+        byte[] b = new byte[100];
+        handle.readFully(b);
+        for (int j=0; j<b.length; j++) {
+          assertEquals(data[pos + j], b[j]);
+        }
+      }
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  private static String getName(int index) {
+    return "entry" + index + ".dat";
+  }
+
+  private static byte[] getData(int index) {
+    Random random = new Random(index);
+    byte[] data = new byte[ENTRY_LENGTH];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : i / 16);
+    }
+    return data;
+  }
+
+}
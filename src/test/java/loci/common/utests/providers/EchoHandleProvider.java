@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests.providers;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Constants;
+import loci.common.HandleCapability;
+import loci.common.HandleProvider;
+import loci.common.IRandomAccess;
+
+/**
+ * HandleProvider for <code>echo:</code> ids, whose contents are the id
+ * itself.  It is registered in
+ * <code>META-INF/services/loci.common.HandleProvider</code> so that loading
+ * providers with ServiceLoader can be tested.
+ *
+ * @see loci.common.HandleProviders
+ */
+public class EchoHandleProvider implements HandleProvider {
+
+  @Override
+  public Set<String> getSchemes() {
+    return Collections.singleton("echo");
+  }
+
+  @Override
+  public Set<HandleCapability> getCapabilities() {
+    return EnumSet.of(HandleCapability.SEEKABLE);
+  }
+
+  @Override
+  public IRandomAccess open(String id, boolean writable, int bufferSize)
+    throws IOException
+  {
+    return new ByteArrayHandle(id.getBytes(Constants.ENCODING));
+  }
+
+}
@@ -51,9 +51,19 @@ public class IRandomAccessProviderFactory {
       new ExistingByteArrayHandleProvider());
     providers.put("ByteArrayHandle", new ByteArrayHandleProvider());
     providers.put("BZip2Handle", new BZip2HandleProvider());
+    providers.put("CachedNIOFileHandle", new CachedNIOFileHandleProvider());
+    providers.put("CachedGZipHandle", new CachedGZipHandleProvider());
+    providers.put("FileHandle", new FileHandleProvider());
+    providers.put("HandlePoolLease", new HandlePoolLeaseProvider());
     providers.put("GZipHandle", new GZipHandleProvider());
+    providers.put("HTTPRangeHandle", new HTTPRangeHandleProvider());
     providers.put("NIOFileHandle", new NIOFileHandleProvider());
+    providers.put("MappedNIOFileHandle", new MappedNIOFileHandleProvider());
+    providers.put("ReadAheadNIOFileHandle",
+      new ReadAheadNIOFileHandleProvider());
+    providers.put("StoredZipHandle", new StoredZipHandleProvider());
     providers.put("URLHandle", new URLHandleProvider());
+    providers.put("WindowedHandle", new WindowedHandleProvider());
     providers.put("ZipHandle", new ZipHandleProvider());
   }
 
@@ -0,0 +1,81 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests.providers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import loci.common.IRandomAccess;
+import loci.common.NIOByteBufferProvider;
+import loci.common.NIOFileHandle;
+
+/**
+ * Implementation of IRandomAccessProvider that produces instances of
+ * loci.common.NIOFileHandle which map the whole file in small segments.
+ *
+ * @see IRandomAccessProvider
+ * @see loci.common.NIOFileHandle
+ * @see loci.common.NIOByteBufferProvider#setMapWholeFile(boolean)
+ */
+class MappedNIOFileHandleProvider implements IRandomAccessProvider {
+
+  /** Segment size small enough for test pages to span several segments. */
+  private static final long SEGMENT_SIZE = 16;
+
+  @Override
+  public IRandomAccess createMock(
+      byte[] page, String mode, int bufferSize) throws IOException {
+    File pageFile = File.createTempFile("page", ".dat");
+    pageFile.deleteOnExit();
+    OutputStream stream = new FileOutputStream(pageFile);
+    try {
+      stream.write(page);
+    } finally {
+      stream.close();
+    }
+    long segmentSize = NIOByteBufferProvider.getMappedSegmentSize();
+    NIOByteBufferProvider.setMapWholeFile(true);
+    NIOByteBufferProvider.setMappedSegmentSize(SEGMENT_SIZE);
+    NIOByteBufferProvider.setUnmapOnClose(true);
+    try {
+      return new NIOFileHandle(pageFile, mode, bufferSize);
+    } finally {
+      NIOByteBufferProvider.setMapWholeFile(false);
+      NIOByteBufferProvider.setMappedSegmentSize(segmentSize);
+      NIOByteBufferProvider.setUnmapOnClose(false);
+    }
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests.providers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server for testing range requests.  Each published byte
+ * array is served from its own path, with or without support for the
+ * <code>Range</code> header.
+ */
+public class RangeServer {
+
+  // -- Constants --
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  // -- Static fields --
+
+  private static RangeServer instance;
+
+  // -- Fields --
+
+  private final HttpServer server;
+  private final Map<String, byte[]> resources =
+    new ConcurrentHashMap<String, byte[]>();
+  private final Map<String, Boolean> rangeSupport =
+    new ConcurrentHashMap<String, Boolean>();
+  private final AtomicInteger count = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+
+  // -- Constructor --
+
+  private RangeServer() throws IOException {
+    // without this, each small response is delayed by Nagle's algorithm
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  // -- RangeServer API methods --
+
+  /** @return the shared server, started on first use */
+  public static synchronized RangeServer getInstance() throws IOException {
+    if (instance == null) {
+      instance = new RangeServer();
+    }
+    return instance;
+  }
+
+  /**
+   * @param data the bytes to serve
+   * @param ranges true if range requests should be honoured
+   * @return the URL from which the bytes are served
+   */
+  public String publish(byte[] data, boolean ranges) {
+    String path = "/resource" + count.incrementAndGet();
+    resources.put(path, data);
+    rangeSupport.put(path, ranges);
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  /** @return the number of requests received so far */
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  // -- Helper methods --
+
+  private void serve(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    String path = exchange.getRequestURI().getPath();
+    byte[] data = resources.get(path);
+    if (data == null) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    Matcher m = range == null ? null : RANGE.matcher(range);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      if (m == null || !m.matches() || !rangeSupport.get(path)) {
+        exchange.sendResponseHeaders(200, data.length == 0 ? -1 : data.length);
+        out.write(data);
+        return;
+      }
+      long start = Long.parseLong(m.group(1));
+      long end = m.group(2).isEmpty() ? data.length - 1 :
+        Math.min(Long.parseLong(m.group(2)), data.length - 1);
+      if (start >= data.length) {
+        exchange.getResponseHeaders().set("Content-Range",
+          "bytes */" + data.length);
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      int len = (int) (end - start + 1);
+      exchange.getResponseHeaders().set("Content-Range",
+        "bytes " + start + "-" + end + "/" + data.length);
+      exchange.sendResponseHeaders(206, len);
+      out.write(data, (int) start, len);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}